@@ -0,0 +1,100 @@
+package Benchmarks;
+
+import Networking.NetworkManager;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+// TCPHandler as it was before connections were served concurrently, kept so the
+// "before" numbers can be measured on the same machine: one accept loop that reads
+// each client until it hangs up before accepting the next, and a client that opens
+// a new socket and thread per message. Only startup and shutdown differ: the port is
+// bound before startServer returns, and closing it is not reported as an error.
+final class BaselineTcpHandler implements NetworkManager {
+    private ServerSocket serverSocket;
+    private volatile boolean isRunning;
+
+    @Override
+    public void startServer(int port, Function<String, String> onMessageReceived) {
+        try {
+            serverSocket = new ServerSocket(port);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        isRunning = true;
+        Thread acceptor = new Thread(() -> {
+            try {
+                while (isRunning) {
+                    Socket clientSocket = serverSocket.accept();
+
+                    BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+                    PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
+
+                    String inputLine;
+                    while ((inputLine = in.readLine()) != null) {
+                        String response = onMessageReceived.apply(inputLine);
+                        out.println(response);
+                    }
+                    clientSocket.close();
+                }
+            } catch (IOException e) {
+                if (isRunning) {
+                    e.printStackTrace();
+                }
+            }
+        }, "baseline-tcp-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @Override
+    public void sendMessage(String host, int port, String message, Consumer<String> onResponseReceived) {
+        Thread sender = new Thread(() -> {
+            try (Socket socket = new Socket(host, port);
+                    PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+
+                out.println(message);
+                String response = in.readLine();
+                if (response != null) {
+                    onResponseReceived.accept(response);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    @Override
+    public CompletableFuture<String> sendMessageAsync(String host, int port, String message, long timeoutMillis) {
+        CompletableFuture<String> result = new CompletableFuture<>();
+        sendMessage(host, port, message, result::complete);
+        return timeoutMillis > 0 ? result.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS) : result;
+    }
+
+    @Override
+    public void stopServer() {
+        isRunning = false;
+        try {
+            if (serverSocket != null && !serverSocket.isClosed()) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void setSimulatePacketLoss(boolean simulate) {
+    }
+}
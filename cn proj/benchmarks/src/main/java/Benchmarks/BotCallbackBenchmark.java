@@ -0,0 +1,40 @@
+package Benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// The bot callback on its own, without any networking, so transport numbers can be
+// read as "network cost = round trip - bot cost".
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BotCallbackBenchmark {
+    @Param({"16", "1024"})
+    public int messageLength;
+
+    private String message;
+
+    @Setup
+    public void setUp() {
+        message = "x".repeat(messageLength);
+    }
+
+    @Benchmark
+    public String reply() {
+        return Loopback.BOT.apply(message);
+    }
+}
@@ -0,0 +1,72 @@
+package Benchmarks;
+
+import Bot.CachingBot;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+// A bot that costs a few microseconds per reply, with and without the response
+// cache, fed a skewed mix of messages: most traffic is a handful of greetings and
+// FAQs, the rest is a long tail of one-off questions.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class CachingBotBenchmark {
+    private static final int MESSAGES = 1 << 16;
+
+    @Param({"off", "on"})
+    public String cache;
+
+    // Share of messages drawn from the 100 popular ones.
+    @Param({"0.8", "0.5"})
+    public double popularShare;
+
+    private Function<String, String> bot;
+    private String[] messages;
+
+    @Setup
+    public void setUp() {
+        Function<String, String> expensive = msg -> {
+            Blackhole.consumeCPU(2000);
+            return "Bot: I received '" + msg + "'";
+        };
+        bot = "on".equals(cache) ? new CachingBot(expensive, 10000, 16L * 1024 * 1024, 0) : expensive;
+
+        Random random = new Random(7);
+        messages = new String[MESSAGES];
+        for (int i = 0; i < MESSAGES; i++) {
+            messages[i] = random.nextDouble() < popularShare
+                    ? "faq-" + random.nextInt(100)
+                    : "question-" + random.nextInt(1_000_000);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int next;
+    }
+
+    @Benchmark
+    public String reply(Cursor cursor) {
+        String message = messages[cursor.next++ & (MESSAGES - 1)];
+        return bot.apply(message);
+    }
+}
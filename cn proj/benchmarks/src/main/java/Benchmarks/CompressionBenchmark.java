@@ -0,0 +1,121 @@
+package Benchmarks;
+
+import Networking.PayloadCompression;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+// CPU cost of deflating chat messages of a given size: PayloadCompression (preset
+// dictionary, per-thread Deflater), plain deflate with a reused Deflater, and a new
+// Deflater per message, plus inflating. Bytes on the wire for the whole corpus are
+// printed once per trial, since JMH only reports time.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+    private static final int MESSAGES = 256;
+    private static final String[] SENTENCES = {
+        "hello", "hi there", "good morning everyone", "thanks, that helped a lot",
+        "can you help me with this?", "what do you mean?", "I think that's a good idea",
+        "the server keeps timing out when I send a large message",
+        "is TCP reliable even when the network drops packets?",
+        "how does UDP deal with packet loss and out of order delivery?",
+        "Bot: I received 'hello'", "Hello! How can I help you today?",
+        "Goodbye, have a nice day!", "Server busy, please try again later",
+        "let's meet tomorrow after the weekend", "sorry, I was away from my desk",
+        "the handshake takes three round trips before any data moves",
+        "ok", "see you", "I don't know yet, let me check and get back to you",
+    };
+
+    // Approximate message size in bytes.
+    @Param({"64", "256", "1024", "4096"})
+    public int size;
+
+    private byte[][] messages;
+    private byte[][] deflated;
+    private Deflater plain;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(11);
+        messages = new byte[MESSAGES][];
+        deflated = new byte[MESSAGES][];
+        long raw = 0;
+        long withDictionary = 0;
+        long withoutDictionary = 0;
+        plain = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        for (int i = 0; i < MESSAGES; i++) {
+            StringBuilder message = new StringBuilder();
+            while (message.length() < size) {
+                message.append(SENTENCES[random.nextInt(SENTENCES.length)]).append(' ');
+            }
+            messages[i] = message.toString().getBytes(StandardCharsets.UTF_8);
+            byte[] compressed = PayloadCompression.compress(messages[i]);
+            deflated[i] = compressed != null ? compressed : messages[i];
+            raw += messages[i].length;
+            withDictionary += compressed != null ? compressed.length : messages[i].length;
+            withoutDictionary += Math.min(messages[i].length, deflatePlain(plain, messages[i]).length);
+        }
+        System.out.printf("%nsize=%d: raw %d bytes, deflate %d (%.0f%%), deflate with dictionary %d (%.0f%%)%n",
+                size, raw, withoutDictionary, 100.0 * withoutDictionary / raw, withDictionary,
+                100.0 * withDictionary / raw);
+    }
+
+    private static byte[] deflatePlain(Deflater deflater, byte[] input) {
+        deflater.reset();
+        deflater.setInput(input);
+        deflater.finish();
+        byte[] out = new byte[input.length + 64];
+        int length = 0;
+        while (!deflater.finished()) {
+            length += deflater.deflate(out, length, out.length - length);
+        }
+        return Arrays.copyOf(out, length);
+    }
+
+    @Benchmark
+    public byte[] compressWithDictionary() {
+        return PayloadCompression.compress(messages[next++ & (MESSAGES - 1)]);
+    }
+
+    @Benchmark
+    public byte[] compressPlain() {
+        return deflatePlain(plain, messages[next++ & (MESSAGES - 1)]);
+    }
+
+    // What a Deflater per message would cost; it holds native zlib state.
+    @Benchmark
+    public byte[] compressNewDeflater() {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            return deflatePlain(deflater, messages[next++ & (MESSAGES - 1)]);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @Benchmark
+    public byte[] decompressWithDictionary() throws ProtocolException {
+        int i = next++ & (MESSAGES - 1);
+        return deflated[i] == messages[i] ? messages[i] : PayloadCompression.decompress(deflated[i]);
+    }
+}
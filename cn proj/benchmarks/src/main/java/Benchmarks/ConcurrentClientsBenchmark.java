@@ -0,0 +1,131 @@
+package Benchmarks;
+
+import Metrics.LatencyHistogram;
+import Networking.NetworkManager;
+import Networking.NioTcpHandler;
+import Networking.TCPHandler;
+import Networking.UDPClient;
+import Networking.UDPHandler;
+import Networking.WireFormat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.runner.IterationType;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// N clients hit the server at once and we time how long the whole burst takes to be
+// answered. This is the load test for the TCP connection engine (thousands of open
+// connections) and for the UDP receiver threads. SampleTime gives the tail of the
+// burst times; each request's own latency goes into a histogram, and at the end of a
+// run messages per second and the p99 over the measured iterations are printed.
+// tcp-baseline is the accept loop from before connections were served concurrently.
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConcurrentClientsBenchmark {
+    // udp-n pulls datagrams off the socket with n receiver threads; only udp has them,
+    // so they are not crossed with the tcp transports.
+    @Param({"tcp", "tcp-nio", "udp-1", "udp-4", "tcp-baseline"})
+    public String transport;
+
+    @Param({"16", "256", "2000"})
+    public int clients;
+
+    private NetworkManager server;
+    private NetworkManager client;
+    private UDPClient udpClient;
+    private int port;
+    // Send to reply, per request, and the time spent in burst(); warmup is cleared.
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private long burstNanos;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        switch (transport) {
+            case "tcp": {
+                TCPHandler tcp = new TCPHandler();
+                port = Loopback.freeTcpPort();
+                server = tcp;
+                client = tcp;
+                break;
+            }
+            case "tcp-nio":
+                port = Loopback.freeTcpPort();
+                server = new NioTcpHandler();
+                client = new TCPHandler();
+                break;
+            case "tcp-baseline": {
+                BaselineTcpHandler baseline = new BaselineTcpHandler();
+                port = Loopback.freeTcpPort();
+                server = baseline;
+                client = baseline;
+                break;
+            }
+            default: {
+                UDPHandler udp = new UDPHandler();
+                udp.setReceiverThreads(Integer.parseInt(transport.substring("udp-".length())));
+                udpClient = new UDPClient(false, 64, WireFormat.TEXT);
+                udp.setClient(udpClient);
+                port = Loopback.freeUdpPort();
+                server = udp;
+                client = udp;
+                break;
+            }
+        }
+        server.startServer(port, Loopback.BOT);
+    }
+
+    @TearDown(Level.Iteration)
+    public void endIteration(IterationParams iteration) {
+        if (iteration.getType() == IterationType.WARMUP) {
+            latency.reset();
+            burstNanos = 0;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        double perSecond = burstNanos == 0 ? 0 : latency.getCount() * 1e9 / burstNanos;
+        System.out.printf("%ntransport=%s clients=%d: %.0f msgs/s, p99=%.2f ms (%s)%n", transport, clients,
+                perSecond, latency.getQuantileNanos(0.99) / 1e6, latency);
+        server.stopServer();
+        if (udpClient != null) {
+            udpClient.close();
+        }
+    }
+
+    @Benchmark
+    public void burst() throws Exception {
+        CountDownLatch answered = new CountDownLatch(clients);
+        long start = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            long sent = System.nanoTime();
+            client.sendMessage(Loopback.HOST, port, "Hello " + i, reply -> {
+                latency.record(System.nanoTime() - sent);
+                answered.countDown();
+            });
+        }
+        boolean done = answered.await(30, TimeUnit.SECONDS);
+        burstNanos += System.nanoTime() - start;
+        if (!done) {
+            throw new TimeoutException(answered.getCount() + " of " + clients + " clients got no reply");
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package Benchmarks;
+
+import Networking.FrameCodec;
+import Networking.UDPHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+// Cost of pulling the sequence number off a message: the byte-level SEQ: parser the
+// UDP server uses now, the String-based parsing it replaced, and the binary frame
+// header. Run with -prof gc to see the allocation side.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeaderParsingBenchmark {
+    private static final String MESSAGE = "SEQ:12345|Hello, how are you today?";
+
+    private ByteBuffer textDatagram;
+    private byte[] textBytes;
+    private ByteBuffer binaryDatagram;
+
+    @Setup
+    public void setUp() {
+        textBytes = MESSAGE.getBytes(StandardCharsets.UTF_8);
+        textDatagram = ByteBuffer.wrap(textBytes);
+        binaryDatagram = FrameCodec.encode(FrameCodec.TYPE_MESSAGE, 12345, "Hello, how are you today?");
+    }
+
+    @Benchmark
+    public int parseSequenceHeader() {
+        textDatagram.position(0);
+        return UDPHandler.parseSequenceHeader(textDatagram);
+    }
+
+    // What UDPHandler did before parsing moved down to the bytes, line for line,
+    // including the content substring it went on to hand to the bot.
+    @Benchmark
+    public void parseSequenceHeaderFromString(Blackhole blackhole) {
+        String received = new String(textBytes, 0, textBytes.length);
+        if (received.startsWith("SEQ:")) {
+            int splitIndex = received.indexOf("|");
+            if (splitIndex != -1) {
+                int seqNum = Integer.parseInt(received.substring(4, splitIndex));
+                String content = received.substring(splitIndex + 1);
+                blackhole.consume(seqNum);
+                blackhole.consume(content);
+            }
+        }
+    }
+
+    @Benchmark
+    public FrameCodec.Frame decodeFrame() throws ProtocolException {
+        binaryDatagram.position(0);
+        return FrameCodec.decode(binaryDatagram);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeFrame() {
+        return FrameCodec.encode(FrameCodec.TYPE_REPLY, 12345, "Hello, how are you today?");
+    }
+
+    @Benchmark
+    public byte[] encodeText() {
+        return ("ACK:" + 12345 + "|" + "Hello, how are you today?").getBytes(StandardCharsets.UTF_8);
+    }
+}
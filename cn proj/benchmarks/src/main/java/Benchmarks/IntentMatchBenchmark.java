@@ -0,0 +1,86 @@
+package Benchmarks;
+
+import Bot.IntentBot;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Per-message match time of the intent engine as the rule set grows. Each rule has
+// three keywords drawn from a generated vocabulary; messages are a dozen words long,
+// some containing keywords and some not. With the compiled automaton the time should
+// stay flat from 100 to 10k rules.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IntentMatchBenchmark {
+    private static final int MESSAGES = 1024;
+
+    @Param({"100", "1000", "10000"})
+    public int rules;
+
+    private Path rulesFile;
+    private IntentBot bot;
+    private String[] messages;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Random random = new Random(11);
+        int vocabulary = rules * 3;
+        rulesFile = Files.createTempFile("intent-rules", ".txt");
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(rulesFile, StandardCharsets.UTF_8))) {
+            for (int i = 0; i < rules; i++) {
+                out.println("intent" + i + ": " + word(random.nextInt(vocabulary)) + ", "
+                        + word(random.nextInt(vocabulary)) + " " + word(random.nextInt(vocabulary)) + ", "
+                        + word(random.nextInt(vocabulary)) + " => Reply " + i);
+            }
+            out.println("* => Bot: I received '{message}'");
+        }
+        bot = new IntentBot(rulesFile);
+
+        messages = new String[MESSAGES];
+        for (int i = 0; i < MESSAGES; i++) {
+            StringBuilder message = new StringBuilder();
+            for (int w = 0; w < 12; w++) {
+                // Half the words come from the rules' vocabulary, half never match.
+                message.append(random.nextBoolean() ? word(random.nextInt(vocabulary)) : "filler" + w).append(' ');
+            }
+            messages[i] = message.toString().trim();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(rulesFile);
+    }
+
+    private static String word(int n) {
+        return "w" + Integer.toString(n, 36);
+    }
+
+    @Benchmark
+    public String match() {
+        return bot.apply(messages[next++ & (MESSAGES - 1)]);
+    }
+}
@@ -0,0 +1,63 @@
+package Benchmarks;
+
+import Bot.EchoBot;
+import Networking.NetworkManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.Function;
+
+// Shared plumbing for the transport benchmarks: free ports, the same bot the GUI
+// runs, a blocking round trip through sendMessageAsync, and a throwaway keystore
+// for the TLS ones.
+final class Loopback {
+    static final String HOST = "localhost";
+    static final Function<String, String> BOT = new EchoBot();
+
+    private Loopback() {
+    }
+
+    static int freeTcpPort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    static int freeUdpPort() throws IOException {
+        try (DatagramSocket socket = new DatagramSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    static final String KEYSTORE_PASSWORD = "changeit";
+
+    // A new self-signed certificate for localhost, made with the JDK's keytool. The
+    // subject alternative names let clients verify it by name or by loopback address.
+    // The file is deleted when the JVM exits.
+    static Path selfSignedKeystore() throws IOException, InterruptedException {
+        Path dir = Files.createTempDirectory("chat-tls");
+        Path keystore = dir.resolve("chat.p12");
+        String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+        Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "chat", "-keyalg", "EC",
+                "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1", "-validity", "1",
+                "-storetype", "PKCS12", "-keystore", keystore.toString(), "-storepass", KEYSTORE_PASSWORD)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        if (process.waitFor() != 0) {
+            throw new IOException("keytool failed with exit code " + process.exitValue());
+        }
+        // Deleted in reverse order of registration: the file, then its directory.
+        dir.toFile().deleteOnExit();
+        keystore.toFile().deleteOnExit();
+        return keystore;
+    }
+
+    static String roundTrip(NetworkManager client, int port, String message) throws Exception {
+        return client.sendMessageAsync(HOST, port, message, 10000).get();
+    }
+}
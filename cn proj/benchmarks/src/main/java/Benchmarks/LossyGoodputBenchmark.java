@@ -0,0 +1,83 @@
+package Benchmarks;
+
+import Networking.NetworkImpairment;
+import Networking.UDPClient;
+import Networking.UDPHandler;
+import Networking.WireFormat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Goodput of reliable UDP while the server side drops a share of the datagrams.
+// The seed is fixed so every run loses the same packets. Only real replies count;
+// an iteration in which any message goes unanswered fails.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class LossyGoodputBenchmark {
+    private static final int MESSAGES = 200;
+
+    @Param({"0", "0.05", "0.2", "0.5"})
+    public double lossRate;
+
+    private UDPHandler server;
+    private UDPClient client;
+    private NetworkImpairment impairment;
+    private int port;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        port = Loopback.freeUdpPort();
+        impairment = new NetworkImpairment(42);
+        impairment.setLossRate(lossRate);
+        server = new UDPHandler();
+        server.setImpairment(impairment);
+        server.startServer(port, Loopback.BOT);
+        client = new UDPClient(true, 64, WireFormat.TEXT);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        server.stopServer();
+        server.setImpairment(null);
+        client.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void deliver() throws Exception {
+        CountDownLatch answered = new CountDownLatch(MESSAGES);
+        AtomicInteger failed = new AtomicInteger();
+        for (int i = 0; i < MESSAGES; i++) {
+            // send() would hand a give-up to its callback as TIMEOUT_RESPONSE, like a reply.
+            client.sendAsync(Loopback.HOST, port, "Hello " + i, 0).whenComplete((reply, error) -> {
+                if (error != null) {
+                    failed.incrementAndGet();
+                }
+                answered.countDown();
+            });
+        }
+        if (!answered.await(60, TimeUnit.SECONDS) || failed.get() > 0) {
+            throw new IllegalStateException((MESSAGES - answered.getCount() - failed.get()) + " of " + MESSAGES
+                    + " messages answered");
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package Benchmarks;
+
+import Networking.PipelinedTCPClient;
+import Networking.TCPHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+// Messages per second over one TCP connection as the number of requests allowed in
+// flight grows. Depth 1 is the old send-and-wait behaviour.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PipelineDepthBenchmark {
+    private static final int MESSAGES = 1000;
+
+    @Param({"1", "8", "64"})
+    public int depth;
+
+    private TCPHandler server;
+    private PipelinedTCPClient client;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        int port = Loopback.freeTcpPort();
+        server = new TCPHandler();
+        server.startServer(port, Loopback.BOT);
+        client = new PipelinedTCPClient(Loopback.HOST, port, depth);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        client.close();
+        server.stopServer();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void pipeline() throws Exception {
+        CountDownLatch answered = new CountDownLatch(MESSAGES);
+        for (int i = 0; i < MESSAGES; i++) {
+            client.send("Hello " + i, reply -> answered.countDown());
+        }
+        if (!answered.await(30, TimeUnit.SECONDS)) {
+            throw new IllegalStateException(answered.getCount() + " of " + MESSAGES + " messages unanswered");
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package Benchmarks;
+
+import Networking.NetworkManager;
+import Networking.NioTcpHandler;
+import Networking.RoomRegistry;
+import Networking.StreamRoomMember;
+import Networking.TCPHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Time for one room post to reach every member. "memory" runs the registry against
+// in-process members writing to a null stream, which isolates the cost of the
+// fan-out itself; "tcp" and "nio" post over a socket and wait until every member's
+// socket has read the push. Each member holds two file descriptors in this process,
+// so the socket variants at 10000 members need a raised open-file limit.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoomFanOutBenchmark {
+    private static final String ROOM = "bench";
+    private static final String TEXT = "x".repeat(100);
+    private static final String POST = "/say " + ROOM + " " + TEXT;
+
+    @Param({"memory", "tcp", "nio"})
+    public String transport;
+
+    @Param({"1000", "10000"})
+    public int members;
+
+    private RoomRegistry rooms;
+    private NetworkManager server;
+    private final List<SocketChannel> memberChannels = new ArrayList<>();
+    private Selector selector;
+    private Thread memberReader;
+    private final AtomicLong pushesRead = new AtomicLong();
+    private Socket poster;
+    private OutputStream posterOut;
+    private BufferedReader posterIn;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        rooms = new RoomRegistry();
+        if (transport.equals("memory")) {
+            for (int i = 0; i < members; i++) {
+                rooms.join(ROOM, new StreamRoomMember(OutputStream.nullOutputStream(), () -> { }, Runnable::run,
+                        rooms.getMemberQueueCapacity(), false));
+            }
+            return;
+        }
+
+        int port = Loopback.freeTcpPort();
+        if (transport.equals("tcp")) {
+            TCPHandler tcp = new TCPHandler();
+            tcp.setMaxConnections(members + 16);
+            tcp.setRoomRegistry(rooms);
+            server = tcp;
+        } else {
+            NioTcpHandler nio = new NioTcpHandler();
+            nio.setRoomRegistry(rooms);
+            server = nio;
+        }
+        server.startServer(port, Loopback.BOT);
+
+        selector = Selector.open();
+        ByteBuffer joinReply = ByteBuffer.allocate(256);
+        for (int i = 0; i < members; i++) {
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress(Loopback.HOST, port));
+            channel.write(ByteBuffer.wrap(("/join " + ROOM + "\n").getBytes(StandardCharsets.UTF_8)));
+            joinReply.clear();
+            while (joinReply.position() == 0 || joinReply.get(joinReply.position() - 1) != '\n') {
+                channel.read(joinReply);
+            }
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+            memberChannels.add(channel);
+        }
+        memberReader = new Thread(this::readPushes, "room-members");
+        memberReader.setDaemon(true);
+        memberReader.start();
+
+        poster = new Socket(Loopback.HOST, port);
+        poster.setTcpNoDelay(true);
+        posterOut = poster.getOutputStream();
+        posterIn = new BufferedReader(new InputStreamReader(poster.getInputStream(), StandardCharsets.UTF_8));
+        posterOut.write(("/join " + ROOM + "\n").getBytes(StandardCharsets.UTF_8));
+        posterIn.readLine();
+    }
+
+    // Counts pushes arriving on any member socket; each one is a single line.
+    private void readPushes() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                selector.select();
+                for (SelectionKey key : selector.selectedKeys()) {
+                    buffer.clear();
+                    if (((SocketChannel) key.channel()).read(buffer) < 0) {
+                        key.cancel();
+                        continue;
+                    }
+                    int lines = 0;
+                    for (int i = 0; i < buffer.position(); i++) {
+                        if (buffer.get(i) == '\n') {
+                            lines++;
+                        }
+                    }
+                    pushesRead.addAndGet(lines);
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException e) {
+            // Selector closed by tearDown
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        if (server == null) {
+            return;
+        }
+        memberReader.interrupt();
+        selector.close();
+        for (SocketChannel channel : memberChannels) {
+            channel.close();
+        }
+        poster.close();
+        server.stopServer();
+    }
+
+    @Benchmark
+    public int post() throws Exception {
+        if (server == null) {
+            return rooms.broadcast(ROOM, null, TEXT);
+        }
+        long target = pushesRead.get() + members;
+        posterOut.write((POST + "\n").getBytes(StandardCharsets.UTF_8));
+        posterIn.readLine(); // "Sent to N members"
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (pushesRead.get() < target) {
+            if (System.nanoTime() > deadline) {
+                throw new TimeoutException((target - pushesRead.get()) + " of " + members + " members got no push");
+            }
+            LockSupport.parkNanos(10_000);
+        }
+        return members;
+    }
+}
@@ -0,0 +1,128 @@
+package Benchmarks;
+
+import Bot.StreamingBot;
+import Networking.NetworkManager;
+import Networking.TCPConnectionPool;
+import Networking.TCPHandler;
+import Networking.UDPClient;
+import Networking.UDPHandler;
+import Networking.WireFormat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// Time to the first piece of a reply against time to the whole of it, for a bot
+// that takes a while to generate a long answer, with and without streaming. Without
+// it, the first piece is the whole reply. Binary format over TCP and reliable UDP,
+// since only those stream.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StreamingReplyBenchmark {
+    private static final String MESSAGE = "tell me a story";
+    private static final int CHUNKS = 10;
+    private static final long CHUNK_MILLIS = 2;
+
+    @Param({"tcp", "udp"})
+    public String transport;
+
+    @Param({"true", "false"})
+    public boolean streaming;
+
+    private NetworkManager server;
+    private NetworkManager client;
+    private TCPConnectionPool pool;
+    private UDPClient udpClient;
+    private int port;
+    private CompletableFuture<String> outstanding;
+
+    // Stands in for a generative bot: a sentence every CHUNK_MILLIS.
+    static final class GeneratingBot implements StreamingBot {
+        @Override
+        public void stream(String message, Consumer<String> onChunk) {
+            for (int i = 0; i < CHUNKS; i++) {
+                try {
+                    Thread.sleep(CHUNK_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                onChunk.accept("Sentence " + i + " of the answer to '" + message + "'. ");
+            }
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        if (transport.equals("tcp")) {
+            port = Loopback.freeTcpPort();
+            server = new TCPHandler();
+            pool = new TCPConnectionPool(WireFormat.BINARY);
+            pool.setStreaming(streaming);
+            TCPHandler tcp = new TCPHandler();
+            tcp.setConnectionPool(pool);
+            client = tcp;
+        } else {
+            port = Loopback.freeUdpPort();
+            server = new UDPHandler();
+            udpClient = new UDPClient(true, 16, WireFormat.BINARY);
+            udpClient.setStreaming(streaming);
+            UDPHandler udp = new UDPHandler();
+            udp.setClient(udpClient);
+            client = udp;
+        }
+        server.startServer(port, new GeneratingBot());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        if (udpClient != null) {
+            udpClient.close();
+        }
+        if (pool != null) {
+            pool.close();
+        }
+        server.stopServer();
+    }
+
+    // firstChunk returns before the reply is done; the next request waits for it here.
+    @TearDown(Level.Invocation)
+    public void awaitReply() throws Exception {
+        if (outstanding != null) {
+            outstanding.get();
+            outstanding = null;
+        }
+    }
+
+    @Benchmark
+    public String firstChunk() throws Exception {
+        CompletableFuture<String> first = new CompletableFuture<>();
+        outstanding = client.sendMessageStreaming(Loopback.HOST, port, MESSAGE, 10000, first::complete);
+        return first.get();
+    }
+
+    @Benchmark
+    public String wholeReply() throws Exception {
+        outstanding = client.sendMessageStreaming(Loopback.HOST, port, MESSAGE, 10000, chunk -> {
+        });
+        return outstanding.get();
+    }
+}
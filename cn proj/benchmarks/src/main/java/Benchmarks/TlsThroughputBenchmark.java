@@ -0,0 +1,84 @@
+package Benchmarks;
+
+import Networking.NetworkManager;
+import Networking.NioTcpHandler;
+import Networking.TCPConnectionPool;
+import Networking.TCPHandler;
+import Networking.Tls;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.net.ssl.SSLContext;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+// What encryption costs once the connection is up: round trips of a given size
+// over one pooled connection, in the clear and over TLS, so the handshake is
+// paid once in setup and never measured.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TlsThroughputBenchmark {
+    @Param({"tcp", "tcp-tls", "tcp-nio", "tcp-nio-tls"})
+    public String transport;
+
+    // Message size in bytes.
+    @Param({"64", "16384"})
+    public int size;
+
+    private NetworkManager server;
+    private TCPConnectionPool pool;
+    private String message;
+    private int port;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        SSLContext serverContext = null;
+        SSLContext clientContext = null;
+        if (transport.endsWith("-tls")) {
+            Path keystore = Loopback.selfSignedKeystore();
+            char[] password = Loopback.KEYSTORE_PASSWORD.toCharArray();
+            serverContext = Tls.serverContext(keystore, password);
+            clientContext = Tls.clientContext(keystore, password);
+        }
+        port = Loopback.freeTcpPort();
+        if (transport.startsWith("tcp-nio")) {
+            NioTcpHandler nio = new NioTcpHandler();
+            nio.setSslContext(serverContext);
+            server = nio;
+        } else {
+            TCPHandler tcp = new TCPHandler();
+            tcp.setSslContext(serverContext);
+            server = tcp;
+        }
+        server.startServer(port, Loopback.BOT);
+        pool = new TCPConnectionPool();
+        pool.setSslContext(clientContext);
+        message = "x".repeat(size);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.close();
+        server.stopServer();
+    }
+
+    @Benchmark
+    public String roundTrip() throws Exception {
+        return pool.request(Loopback.HOST, port, message);
+    }
+}
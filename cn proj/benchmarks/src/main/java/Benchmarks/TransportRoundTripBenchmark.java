@@ -0,0 +1,86 @@
+package Benchmarks;
+
+import Networking.NetworkManager;
+import Networking.NioTcpHandler;
+import Networking.TCPHandler;
+import Networking.UDPClient;
+import Networking.UDPHandler;
+import Networking.WireFormat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// Single-client round-trip latency over loopback: one message out, one bot reply
+// back, through the same sendMessage path the GUI uses. SampleTime gives the
+// percentiles, not just the mean.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransportRoundTripBenchmark {
+    @Param({"tcp", "tcp-binary", "tcp-nio", "udp", "udp-binary", "udp-reliable"})
+    public String transport;
+
+    private NetworkManager server;
+    private NetworkManager client;
+    private UDPClient udpClient;
+    private int port;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        switch (transport) {
+            case "tcp":
+            case "tcp-binary": {
+                TCPHandler tcp = new TCPHandler();
+                tcp.setWireFormat("tcp-binary".equals(transport) ? WireFormat.BINARY : WireFormat.TEXT);
+                port = Loopback.freeTcpPort();
+                server = tcp;
+                client = tcp;
+                break;
+            }
+            case "tcp-nio":
+                port = Loopback.freeTcpPort();
+                server = new NioTcpHandler();
+                client = new TCPHandler();
+                break;
+            default: {
+                UDPHandler udp = new UDPHandler();
+                udpClient = new UDPClient("udp-reliable".equals(transport), 64,
+                        "udp-binary".equals(transport) ? WireFormat.BINARY : WireFormat.TEXT);
+                udp.setClient(udpClient);
+                port = Loopback.freeUdpPort();
+                server = udp;
+                client = udp;
+                break;
+            }
+        }
+        server.startServer(port, Loopback.BOT);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        server.stopServer();
+        if (udpClient != null) {
+            udpClient.close();
+        }
+    }
+
+    @Benchmark
+    public String roundTrip() throws Exception {
+        return Loopback.roundTrip(client, port, "Hello");
+    }
+}
@@ -0,0 +1,198 @@
+package Bot;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+// Remembers the replies of a deterministic bot. The cache is split into segments,
+// each an LRU map behind its own lock, so concurrent workers rarely contend. Both
+// the number of entries and their approximate size in bytes are bounded, and
+// entries older than the TTL are treated as misses. Two workers missing the same
+// message at once may both run the bot; the second reply just overwrites the first.
+// clear() is for a bot whose answers change, like IntentBot on reload: a reply the
+// bot was still working out when the cache was cleared is not kept.
+public class CachingBot implements Function<String, String> {
+    private static final int SEGMENTS = 16;
+    // Rough per-entry cost of the map node, the entry and the two String headers.
+    private static final int ENTRY_OVERHEAD_BYTES = 96;
+
+    private final Function<String, String> bot;
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final long ttlNanos;
+    // Bumped by clear(), so a reply computed before it is not stored after it.
+    private final AtomicLong generation = new AtomicLong();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+
+    // ttlMillis of 0 keeps entries until they are evicted.
+    public CachingBot(Function<String, String> bot, int maxEntries, long maxBytes, long ttlMillis) {
+        if (maxEntries <= 0 || maxBytes <= 0) {
+            throw new IllegalArgumentException("maxEntries and maxBytes must be positive");
+        }
+        this.bot = bot;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(Math.max(1, maxEntries / SEGMENTS), Math.max(1, maxBytes / SEGMENTS));
+        }
+    }
+
+    @Override
+    public String apply(String message) {
+        Segment segment = segmentFor(message);
+        String cached = segment.get(message);
+        if (cached != null) {
+            hits.increment();
+            return cached;
+        }
+        misses.increment();
+        long asked = generation.get();
+        String reply = bot.apply(message);
+        if (reply != null) {
+            segment.put(message, reply, asked);
+        }
+        return reply;
+    }
+
+    private Segment segmentFor(String message) {
+        int h = message.hashCode();
+        h ^= h >>> 16;
+        return segments[h & (SEGMENTS - 1)];
+    }
+
+    public void clear() {
+        generation.incrementAndGet();
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    public long getExpirationCount() {
+        return expirations.sum();
+    }
+
+    public double getHitRate() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    public long getSizeBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            bytes += segment.bytes();
+        }
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("CachingBot[entries=%d, bytes=%d, hits=%d, misses=%d, hitRate=%.1f%%, evictions=%d,"
+                + " expirations=%d]", size(), getSizeBytes(), getHitCount(), getMissCount(), getHitRate() * 100,
+                getEvictionCount(), getExpirationCount());
+    }
+
+    private static long weigh(String message, String reply) {
+        return ENTRY_OVERHEAD_BYTES + 2L * (message.length() + reply.length());
+    }
+
+    private static final class Entry {
+        private final String reply;
+        private final long weight;
+        private final long created = System.nanoTime();
+
+        Entry(String reply, long weight) {
+            this.reply = reply;
+            this.weight = weight;
+        }
+    }
+
+    private final class Segment {
+        private final int maxEntries;
+        private final long maxBytes;
+        // Access order, so iteration starts at the least recently used entry.
+        private final LinkedHashMap<String, Entry> map = new LinkedHashMap<>(16, 0.75f, true);
+        private long bytes;
+
+        Segment(int maxEntries, long maxBytes) {
+            this.maxEntries = maxEntries;
+            this.maxBytes = maxBytes;
+        }
+
+        synchronized String get(String message) {
+            Entry entry = map.get(message);
+            if (entry == null) {
+                return null;
+            }
+            if (ttlNanos > 0 && System.nanoTime() - entry.created > ttlNanos) {
+                map.remove(message);
+                bytes -= entry.weight;
+                expirations.increment();
+                return null;
+            }
+            return entry.reply;
+        }
+
+        synchronized void put(String message, String reply, long asked) {
+            if (asked != generation.get()) {
+                return; // Cleared while the bot was answering
+            }
+            long weight = weigh(message, reply);
+            if (weight > maxBytes) {
+                return; // Would evict the whole segment for one reply
+            }
+            Entry previous = map.put(message, new Entry(reply, weight));
+            if (previous != null) {
+                bytes -= previous.weight;
+            }
+            bytes += weight;
+
+            Iterator<Map.Entry<String, Entry>> eldest = map.entrySet().iterator();
+            while ((map.size() > maxEntries || bytes > maxBytes) && eldest.hasNext()) {
+                Entry evicted = eldest.next().getValue();
+                eldest.remove();
+                bytes -= evicted.weight;
+                evictions.increment();
+            }
+        }
+
+        synchronized void clear() {
+            map.clear();
+            bytes = 0;
+        }
+
+        synchronized int size() {
+            return map.size();
+        }
+
+        synchronized long bytes() {
+            return bytes;
+        }
+    }
+}
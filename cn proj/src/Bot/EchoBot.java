@@ -0,0 +1,11 @@
+package Bot;
+
+import java.util.function.Function;
+
+// The bot every server runs: acknowledges the message by echoing it back.
+public class EchoBot implements Function<String, String> {
+    @Override
+    public String apply(String message) {
+        return "Bot: I received '" + message + "'";
+    }
+}
@@ -0,0 +1,105 @@
+package Bot;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+// Answers from an intent rules file (format in IntentIndex). The file is compiled
+// once into an immutable index; reloading builds a new index on the side and swaps
+// the reference, so messages being answered during a reload see either the old
+// rules or the new ones, never a mix. A file that fails to parse is reported and
+// the old rules stay in place.
+public class IntentBot implements Function<String, String> {
+    private final Path rulesFile;
+    private final Function<String, String> fallback = new EchoBot();
+    private volatile IntentIndex index;
+    private volatile FileTime loadedVersion;
+    private ScheduledExecutorService watcher;
+    private volatile Runnable onReload;
+
+    public IntentBot(Path rulesFile) throws IOException {
+        this.rulesFile = rulesFile;
+        this.index = load();
+    }
+
+    @Override
+    public String apply(String message) {
+        String reply = index.reply(message);
+        return reply != null ? reply : fallback.apply(message);
+    }
+
+    // Name of the intent the message matches, or null.
+    public String classify(String message) {
+        IntentIndex current = index;
+        int rule = current.match(message);
+        return rule < 0 ? null : current.getIntent(rule);
+    }
+
+    public int getRuleCount() {
+        return index.getRuleCount();
+    }
+
+    // Runs after each successful reload, e.g. to clear a cache of old replies.
+    public void setOnReload(Runnable onReload) {
+        this.onReload = onReload;
+    }
+
+    public synchronized void reload() throws IOException {
+        index = load();
+        Runnable listener = onReload;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    // Polls the file's modification time and reloads when it changes.
+    public synchronized void watch(long intervalMillis) {
+        if (watcher != null) {
+            return;
+        }
+        watcher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "intent-rules-watcher");
+            t.setDaemon(true);
+            return t;
+        });
+        watcher.scheduleWithFixedDelay(this::reloadIfChanged, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stopWatching() {
+        if (watcher != null) {
+            watcher.shutdownNow();
+            watcher = null;
+        }
+    }
+
+    private void reloadIfChanged() {
+        try {
+            if (!Files.getLastModifiedTime(rulesFile).equals(loadedVersion)) {
+                reload();
+                System.out.println("Reloaded " + getRuleCount() + " intent rules from " + rulesFile);
+            }
+        } catch (IOException e) {
+            System.err.println("Keeping previous intent rules: " + e.getMessage());
+        }
+    }
+
+    private IntentIndex load() throws IOException {
+        FileTime version = Files.getLastModifiedTime(rulesFile);
+        IntentIndex loaded;
+        try (BufferedReader in = Files.newBufferedReader(rulesFile, StandardCharsets.UTF_8)) {
+            loaded = IntentIndex.parse(in);
+        } catch (IOException e) {
+            loadedVersion = version; // Don't retry a broken file until it changes again
+            throw new IOException(rulesFile + ": " + e.getMessage(), e);
+        }
+        loadedVersion = version;
+        return loaded;
+    }
+}
@@ -0,0 +1,271 @@
+package Bot;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+// An intent rule set compiled into an Aho-Corasick automaton over all keywords, so
+// one pass over the message finds every keyword of every rule; the cost depends on
+// the message length and the number of hits, not on how many rules there are.
+// Immutable once built, so any number of threads can match against it.
+//
+// Rules file, one rule per line:
+//   intent: keyword, another keyword => reply
+//   * => reply when nothing matches
+// Lines starting with '#' are comments. "{message}" in a reply is replaced by the
+// message. Keywords match whole words, case-insensitively; the rule with the most
+// distinct keywords present wins, and ties go to the rule listed first.
+final class IntentIndex {
+    static final String MESSAGE_PLACEHOLDER = "{message}";
+
+    private final String[] intents;
+    private final String[] replies;
+    private final String fallbackReply;
+
+    // Automaton: for each state, its outgoing characters (sorted) and target states.
+    private final char[][] edgeChars;
+    private final int[][] edgeTargets;
+    private final int[] fail;
+    // Keywords recognised on reaching a state, including those of its suffix states.
+    private final int[][] outputs;
+    private final int[] keywordLengths;
+    private final int[][] keywordRules;
+
+    private IntentIndex(List<String> intents, List<String> replies, List<List<String>> keywords,
+            String fallbackReply) {
+        this.intents = intents.toArray(new String[0]);
+        this.replies = replies.toArray(new String[0]);
+        this.fallbackReply = fallbackReply;
+
+        Map<String, List<Integer>> rulesByKeyword = new LinkedHashMap<>();
+        for (int rule = 0; rule < keywords.size(); rule++) {
+            for (String keyword : keywords.get(rule)) {
+                List<Integer> rules = rulesByKeyword.computeIfAbsent(keyword, k -> new ArrayList<>());
+                if (!rules.contains(rule)) {
+                    rules.add(rule);
+                }
+            }
+        }
+
+        // Trie of every keyword.
+        List<TreeMap<Character, Integer>> trie = new ArrayList<>();
+        List<List<Integer>> ends = new ArrayList<>();
+        trie.add(new TreeMap<>());
+        ends.add(new ArrayList<>());
+        keywordLengths = new int[rulesByKeyword.size()];
+        keywordRules = new int[rulesByKeyword.size()][];
+        int id = 0;
+        for (Map.Entry<String, List<Integer>> entry : rulesByKeyword.entrySet()) {
+            String keyword = entry.getKey();
+            int state = 0;
+            for (int i = 0; i < keyword.length(); i++) {
+                Integer next = trie.get(state).get(keyword.charAt(i));
+                if (next == null) {
+                    next = trie.size();
+                    trie.add(new TreeMap<>());
+                    ends.add(new ArrayList<>());
+                    trie.get(state).put(keyword.charAt(i), next);
+                }
+                state = next;
+            }
+            ends.get(state).add(id);
+            keywordLengths[id] = keyword.length();
+            keywordRules[id] = entry.getValue().stream().mapToInt(Integer::intValue).toArray();
+            id++;
+        }
+
+        int states = trie.size();
+        edgeChars = new char[states][];
+        edgeTargets = new int[states][];
+        for (int s = 0; s < states; s++) {
+            TreeMap<Character, Integer> edges = trie.get(s);
+            edgeChars[s] = new char[edges.size()];
+            edgeTargets[s] = new int[edges.size()];
+            int i = 0;
+            for (Map.Entry<Character, Integer> edge : edges.entrySet()) {
+                edgeChars[s][i] = edge.getKey();
+                edgeTargets[s][i] = edge.getValue();
+                i++;
+            }
+        }
+
+        // Failure links in breadth-first order, so a state's suffix is done before it.
+        fail = new int[states];
+        outputs = new int[states][];
+        outputs[0] = new int[0];
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (int child : edgeTargets[0]) {
+            fail[child] = 0;
+            outputs[child] = ends.get(child).stream().mapToInt(Integer::intValue).toArray();
+            queue.add(child);
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            for (int i = 0; i < edgeChars[state].length; i++) {
+                char c = edgeChars[state][i];
+                int child = edgeTargets[state][i];
+                int f = fail[state];
+                while (f != 0 && step(f, c) < 0) {
+                    f = fail[f];
+                }
+                int target = step(f, c);
+                fail[child] = target < 0 ? 0 : target;
+
+                int[] own = ends.get(child).stream().mapToInt(Integer::intValue).toArray();
+                int[] inherited = outputs[fail[child]];
+                int[] merged = Arrays.copyOf(own, own.length + inherited.length);
+                System.arraycopy(inherited, 0, merged, own.length, inherited.length);
+                outputs[child] = merged;
+                queue.add(child);
+            }
+        }
+    }
+
+    static IntentIndex parse(BufferedReader in) throws IOException {
+        List<String> intents = new ArrayList<>();
+        List<String> replies = new ArrayList<>();
+        List<List<String>> keywords = new ArrayList<>();
+        String fallback = null;
+
+        String line;
+        int lineNumber = 0;
+        while ((line = in.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            int arrow = line.indexOf("=>");
+            if (arrow < 0) {
+                throw new IOException("Line " + lineNumber + ": expected 'intent: keywords => reply'");
+            }
+            String head = line.substring(0, arrow).trim();
+            String reply = line.substring(arrow + 2).trim();
+            if (head.equals("*")) {
+                fallback = reply;
+                continue;
+            }
+            int colon = head.indexOf(':');
+            if (colon <= 0) {
+                throw new IOException("Line " + lineNumber + ": missing intent name before ':'");
+            }
+            List<String> ruleKeywords = new ArrayList<>();
+            for (String keyword : head.substring(colon + 1).split(",")) {
+                String normalized = normalize(keyword);
+                if (!normalized.isEmpty()) {
+                    ruleKeywords.add(normalized);
+                }
+            }
+            if (ruleKeywords.isEmpty()) {
+                throw new IOException("Line " + lineNumber + ": rule has no keywords");
+            }
+            intents.add(head.substring(0, colon).trim());
+            replies.add(reply);
+            keywords.add(ruleKeywords);
+        }
+        return new IntentIndex(intents, replies, keywords, fallback);
+    }
+
+    int getRuleCount() {
+        return intents.length;
+    }
+
+    // Index of the best matching rule, or -1.
+    int match(String message) {
+        String text = normalize(message);
+        // Sized by the hits in this message, never by the size of the rule set.
+        Map<Integer, Integer> scores = null;
+        Set<Integer> seen = null;
+
+        int state = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            int next;
+            while ((next = step(state, c)) < 0 && state != 0) {
+                state = fail[state];
+            }
+            state = next < 0 ? 0 : next;
+
+            for (int keyword : outputs[state]) {
+                int start = i - keywordLengths[keyword] + 1;
+                if (!isWordBoundary(text, start - 1) || !isWordBoundary(text, i + 1)) {
+                    continue;
+                }
+                if (seen == null) {
+                    seen = new HashSet<>();
+                    scores = new HashMap<>();
+                }
+                if (!seen.add(keyword)) {
+                    continue;
+                }
+                for (int rule : keywordRules[keyword]) {
+                    scores.merge(rule, 1, Integer::sum);
+                }
+            }
+        }
+
+        int best = -1;
+        int bestScore = 0;
+        if (scores != null) {
+            for (Map.Entry<Integer, Integer> score : scores.entrySet()) {
+                int rule = score.getKey();
+                if (score.getValue() > bestScore || (score.getValue() == bestScore && rule < best)) {
+                    best = rule;
+                    bestScore = score.getValue();
+                }
+            }
+        }
+        return best;
+    }
+
+    String getIntent(int rule) {
+        return intents[rule];
+    }
+
+    // Null when no rule matched and the file has no '*' rule.
+    String reply(String message) {
+        int rule = match(message);
+        String template = rule < 0 ? fallbackReply : replies[rule];
+        if (template == null) {
+            return null;
+        }
+        return template.replace(MESSAGE_PLACEHOLDER, message);
+    }
+
+    private int step(int state, char c) {
+        int i = Arrays.binarySearch(edgeChars[state], c);
+        return i < 0 ? -1 : edgeTargets[state][i];
+    }
+
+    private static boolean isWordBoundary(String text, int index) {
+        return index < 0 || index >= text.length() || !Character.isLetterOrDigit(text.charAt(index));
+    }
+
+    // Lower case with runs of whitespace collapsed to one space.
+    static String normalize(String text) {
+        StringBuilder normalized = new StringBuilder(text.length());
+        boolean space = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = normalized.length() > 0;
+                continue;
+            }
+            if (space) {
+                normalized.append(' ');
+                space = false;
+            }
+            normalized.append(Character.toLowerCase(c));
+        }
+        return normalized.toString();
+    }
+}
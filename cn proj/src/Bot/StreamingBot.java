@@ -0,0 +1,21 @@
+package Bot;
+
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+// A bot that hands its reply over in pieces as it produces them, so a server can put
+// the start of a long answer on the wire while the rest is still being worked out.
+// Binary clients that ask for it with a "stream" HELLO get the pieces as they come;
+// everyone else gets the whole reply from apply(), as from any other bot.
+public interface StreamingBot extends Function<String, String> {
+    // Calls onChunk with each piece of the reply, in order, on the calling thread, and
+    // returns once the reply is complete. The pieces joined are the whole reply.
+    void stream(String message, Consumer<String> onChunk);
+
+    @Override
+    default String apply(String message) {
+        StringBuilder reply = new StringBuilder();
+        stream(message, reply::append);
+        return reply.toString();
+    }
+}
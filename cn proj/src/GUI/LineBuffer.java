@@ -0,0 +1,150 @@
+package GUI;
+
+import javax.swing.AbstractListModel;
+import javax.swing.BorderFactory;
+import javax.swing.DefaultListCellRenderer;
+import javax.swing.JList;
+import javax.swing.JScrollBar;
+import javax.swing.JScrollPane;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import java.awt.Component;
+import java.awt.Font;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// A scrolling log that stays cheap however fast lines arrive. Any thread may append;
+// lines wait in a queue and are moved onto the EDT at most once per frame, with one
+// model event per batch. Only the newest 'capacity' lines are kept, in a ring, and
+// the list has a fixed row height, so Swing only lays out and paints the rows that
+// are on screen.
+public class LineBuffer extends AbstractListModel<String> {
+    private static final long serialVersionUID = 1L;
+    private static final int FRAME_MILLIS = 33;
+
+    private final String[] lines;
+    private int head; // EDT only, like size
+    private int size;
+
+    private final Queue<String> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final Timer flushTimer;
+    private JList<String> view;
+
+    public LineBuffer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.lines = new String[capacity];
+        flushTimer = new Timer(FRAME_MILLIS, e -> flush());
+        flushTimer.setRepeats(false);
+    }
+
+    // Safe from any thread. Embedded newlines start new lines.
+    public void append(String text) {
+        int start = 0;
+        int newline;
+        while ((newline = text.indexOf('\n', start)) >= 0) {
+            enqueue(text.substring(start, newline));
+            start = newline + 1;
+        }
+        if (start < text.length()) {
+            enqueue(text.substring(start));
+        }
+        if (flushScheduled.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(flushTimer::restart);
+        }
+    }
+
+    private void enqueue(String line) {
+        pending.add(line);
+        // Lines that would be pushed out of the ring before they are ever shown can go now.
+        if (pendingCount.incrementAndGet() > lines.length && pending.poll() != null) {
+            pendingCount.decrementAndGet();
+        }
+    }
+
+    private void flush() {
+        flushScheduled.set(false);
+        boolean follow = isScrolledToEnd();
+        int oldSize = size;
+        int removed = 0;
+        int added = 0;
+        String line;
+        while ((line = pending.poll()) != null) {
+            pendingCount.decrementAndGet();
+            if (size < lines.length) {
+                lines[(head + size++) % lines.length] = line;
+            } else {
+                lines[head] = line;
+                head = (head + 1) % lines.length;
+                removed++;
+            }
+            added++;
+        }
+        if (added == 0) {
+            return;
+        }
+        // Lines that were added and pushed out within the same batch were never shown,
+        // so only count what was on screen before and what is there now.
+        removed = Math.min(removed, oldSize);
+        added = size - (oldSize - removed);
+        if (removed > 0) {
+            fireIntervalRemoved(this, 0, removed - 1);
+        }
+        fireIntervalAdded(this, size - added, size - 1);
+        if (follow && view != null) {
+            view.ensureIndexIsVisible(size - 1);
+        }
+    }
+
+    // Keeps following new lines unless the user has scrolled up to read.
+    private boolean isScrolledToEnd() {
+        JScrollPane scrollPane = view == null ? null
+                : (JScrollPane) SwingUtilities.getAncestorOfClass(JScrollPane.class, view);
+        if (scrollPane == null) {
+            return true;
+        }
+        JScrollBar bar = scrollPane.getVerticalScrollBar();
+        return bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum() - view.getFixedCellHeight();
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public String getElementAt(int index) {
+        return lines[(head + index) % lines.length];
+    }
+
+    public int getCapacity() {
+        return lines.length;
+    }
+
+    // A list showing this buffer. Rows are one line high and as wide as the view;
+    // longer lines are cut short, with the whole line in the tooltip.
+    public JScrollPane createView(String title, Font font) {
+        JList<String> list = new JList<>(this);
+        list.setFont(font);
+        list.setFixedCellHeight(list.getFontMetrics(font).getHeight() + 2);
+        list.setFixedCellWidth(1); // Never measure every row; the viewport sets the width
+        list.setBorder(BorderFactory.createTitledBorder(title));
+        list.setCellRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> l, Object value, int index, boolean selected,
+                    boolean focused) {
+                super.getListCellRendererComponent(l, value, index, selected, focused);
+                String text = (String) value;
+                setToolTipText(text.isEmpty() ? null : text);
+                return this;
+            }
+        });
+        view = list;
+        return new JScrollPane(list);
+    }
+}
@@ -1,28 +1,38 @@
 package GUI;
 
+import Bot.EchoBot;
 import Networking.*;
+import Server.ChatServer;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.util.Random;
+import java.util.function.Function;
 
 public class MainFrame extends JFrame {
+    private static final int CHAT_LINES = 5000;
+    private static final int LOG_LINES = 10000;
 
-    private JTextArea clientChatArea; // New Client Chat Area
-    private JTextArea serverLog;
+    // Both keep only their newest lines and take appends from any thread.
+    private final LineBuffer clientChatArea = new LineBuffer(CHAT_LINES); // New Client Chat Area
+    private final LineBuffer serverLog = new LineBuffer(LOG_LINES);
     private JTextField clientInput;
     private JButton sendButton;
     private JButton connectButton;
     private JButton disconnectButton; // New Disconnect Button
     private JCheckBox packetLossCheckBox; // New Packet Loss Checkbox
     private JTextArea packetInfoPanel; // New Packet Info Panel
+    private String packetInfo = "";
     private JLabel appInfoLabel; // New Application Info Label
     private JComboBox<String> protocolSelector;
     private JPanel animationPanel;
 
     private NetworkManager networkManager;
-    private final int PORT = 12345;
-    private final String HOST = "localhost";
+    private final int port;
+    private final String host;
+    // False when the GUI is only a client of a server running elsewhere.
+    private final boolean embeddedServer;
+    private final Function<String, String> bot;
 
     // Animation state
     private Timer animationTimer;
@@ -44,6 +54,24 @@ public class MainFrame extends JFrame {
     private int clientSequenceNumber = 0; // New Sequence Number State
 
     public MainFrame() {
+        this(new EchoBot());
+    }
+
+    // Runs its own server answering with the given bot.
+    public MainFrame(Function<String, String> bot) {
+        this("localhost", ChatServer.DEFAULT_PORT, bot);
+    }
+
+    // Client of an external (e.g. headless) server; only the client side is created.
+    public MainFrame(String host, int port) {
+        this(host, port, null);
+    }
+
+    private MainFrame(String host, int port, Function<String, String> bot) {
+        this.host = host;
+        this.port = port;
+        this.embeddedServer = bot != null;
+        this.bot = bot;
         setTitle("Chat Bot Over TCP/UDP - Advanced Concepts");
         setSize(1200, 850); // Increased height for App Info
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
@@ -54,7 +82,7 @@ public class MainFrame extends JFrame {
 
         JPanel controlsPanel = new JPanel();
         controlsPanel.add(new JLabel("Select Protocol:"));
-        protocolSelector = new JComboBox<>(new String[] { "TCP", "UDP" });
+        protocolSelector = new JComboBox<>(new String[] { "TCP", "TCP (NIO)", "UDP" });
         protocolSelector.addActionListener(e -> switchProtocol((String) protocolSelector.getSelectedItem()));
         controlsPanel.add(protocolSelector);
 
@@ -111,7 +139,7 @@ public class MainFrame extends JFrame {
                 g.drawString("Server", getWidth() - 95, getHeight() / 2 + 40);
 
                 // Draw Connection Line for TCP (Only if connected)
-                if ("TCP".equals(currentProtocol) && isConnected) {
+                if (isTcp(currentProtocol) && isConnected) {
                     g.setColor(Color.GREEN);
                     g.drawLine(100, getHeight() / 2, getWidth() - 100, getHeight() / 2);
                     g.drawString("TCP Connection Established", getWidth() / 2 - 80, getHeight() / 2 - 10);
@@ -163,21 +191,15 @@ public class MainFrame extends JFrame {
         JSplitPane contentSplit = new JSplitPane(JSplitPane.HORIZONTAL_SPLIT);
 
         // Client Chat Area
-        clientChatArea = new JTextArea();
-        clientChatArea.setEditable(false);
-        clientChatArea.setBorder(BorderFactory.createTitledBorder("Client Chat (User View)"));
-        clientChatArea.setFont(new Font("SansSerif", Font.PLAIN, 14));
-        contentSplit.setLeftComponent(new JScrollPane(clientChatArea));
+        contentSplit.setLeftComponent(clientChatArea.createView("Client Chat (User View)",
+                new Font("SansSerif", Font.PLAIN, 14)));
 
         // Technical Logs Split: Server Log (Top) vs Packet Info (Bottom)
         JSplitPane techSplit = new JSplitPane(JSplitPane.VERTICAL_SPLIT);
 
         // Server Log
-        serverLog = new JTextArea();
-        serverLog.setEditable(false);
-        serverLog.setBorder(BorderFactory.createTitledBorder("Server Log (Technical View)"));
-        serverLog.setFont(new Font("Monospaced", Font.PLAIN, 12));
-        techSplit.setTopComponent(new JScrollPane(serverLog));
+        techSplit.setTopComponent(serverLog.createView("Server Log (Technical View)",
+                new Font("Monospaced", Font.PLAIN, 12)));
 
         // Packet Info Panel
         packetInfoPanel = new JTextArea();
@@ -214,6 +236,11 @@ public class MainFrame extends JFrame {
     }
 
     private void updateAnimation() {
+        // Nothing is moving, so there is nothing to repaint.
+        if (!isAnimating) {
+            animationTimer.stop();
+            return;
+        }
         int clientX = 100;
         int serverX = getWidth() - 120;
 
@@ -222,7 +249,7 @@ public class MainFrame extends JFrame {
             if (packetX > getWidth() / 2 && random.nextInt(100) < 2) { // 2% chance per frame ~ high loss
                 packetLost = true;
 
-                if ("TCP".equals(currentProtocol)) {
+                if (isTcp(currentProtocol)) {
                     serverLog.append("Network: TCP Packet Lost! Retransmitting...\n");
                     updatePacketInfo("TCP", "LOST", "N/A", "N/A", "None");
 
@@ -385,12 +412,16 @@ public class MainFrame extends JFrame {
                 Flags: %s
                 """,
                 protocol, type,
-                (isReturnTrip || handshakeStep == 2 || handshakeStep == 6 || handshakeStep == 7) ? "12345 (Server)"
+                (isReturnTrip || handshakeStep == 2 || handshakeStep == 6 || handshakeStep == 7) ? port + " (Server)"
                         : "54321 (Client)",
                 (isReturnTrip || handshakeStep == 2 || handshakeStep == 6 || handshakeStep == 7) ? "54321 (Client)"
-                        : "12345 (Server)",
+                        : port + " (Server)",
                 seq, ack, flags);
-        packetInfoPanel.setText(info);
+        // Called on every animation frame, mostly with the same headers.
+        if (!info.equals(packetInfo)) {
+            packetInfo = info;
+            packetInfoPanel.setText(info);
+        }
     }
 
     private void switchProtocol(String protocol) {
@@ -399,7 +430,11 @@ public class MainFrame extends JFrame {
         }
 
         currentProtocol = protocol;
-        serverLog.append("\nSwitching to " + protocol + "...\n");
+        if (embeddedServer) {
+            serverLog.append("\nSwitching to " + protocol + "...\n");
+        } else {
+            serverLog.append("\nSwitching to " + protocol + " client (server at " + host + ":" + port + ")...\n");
+        }
         clientChatArea.append("\n--- Switched to " + protocol + " ---\n");
 
         // Reset State
@@ -414,8 +449,8 @@ public class MainFrame extends JFrame {
         clientSequenceNumber = 0; // Reset Sequence Number
         updatePacketInfo(protocol, "Idle", "-", "-", "-");
 
-        if ("TCP".equals(protocol)) {
-            networkManager = new TCPHandler();
+        if (isTcp(protocol)) {
+            networkManager = "TCP (NIO)".equals(protocol) ? new NioTcpHandler() : new TCPHandler();
             connectButton.setVisible(true);
             connectButton.setEnabled(true);
             disconnectButton.setVisible(true);
@@ -435,17 +470,27 @@ public class MainFrame extends JFrame {
             networkManager.setSimulatePacketLoss(packetLossCheckBox.isSelected());
         }
 
+        // Pushes from rooms joined with /join arrive apart from the replies.
+        networkManager.setRoomListener((room, text) -> clientChatArea.append("[" + room + "] " + text + "\n"));
+
         // Start Server with Bot Logic
-        networkManager.startServer(PORT, msg -> {
-            SwingUtilities.invokeLater(() -> serverLog.append("Server Received: " + msg + "\n"));
-            return "Bot: I received '" + msg + "'";
-        });
+        if (embeddedServer) {
+            networkManager.startServer(port, msg -> {
+                serverLog.append("Server Received: " + msg + "\n");
+                return bot.apply(msg);
+            });
+        }
 
         animationPanel.repaint();
     }
 
+    // Both TCP transports share the handshake/teardown visualisation.
+    private static boolean isTcp(String protocol) {
+        return protocol.startsWith("TCP");
+    }
+
     private void initiateHandshake(ActionEvent e) {
-        if ("TCP".equals(currentProtocol)) {
+        if (isTcp(currentProtocol)) {
             serverLog.append("Client: Initiating 3-Way Handshake (SYN)....\n");
             handshakeStep = 1; // Start SYN
             packetX = 100;
@@ -456,7 +501,7 @@ public class MainFrame extends JFrame {
     }
 
     private void initiateTeardown(ActionEvent e) {
-        if ("TCP".equals(currentProtocol) && isConnected) {
+        if (isTcp(currentProtocol) && isConnected) {
             serverLog.append("Client: Initiating Teardown (FIN)...\n");
             handshakeStep = 5; // Start FIN
             packetX = 100;
@@ -480,21 +525,19 @@ public class MainFrame extends JFrame {
                 clientSequenceNumber++;
             }
 
-            networkManager.sendMessage(HOST, PORT, finalMsg, response -> {
+            networkManager.sendMessage(host, port, finalMsg, response -> {
                 if (!packetLost) {
-                    SwingUtilities.invokeLater(() -> {
-                        if (response.startsWith("NACK:")) {
-                            String missingSeq = response.split(":")[1];
-                            clientChatArea
-                                    .append("Server Notification: I have not received message with Sequence Number "
-                                            + missingSeq + "\n");
-                            serverLog.append("Network: Server sent NACK for SEQ " + missingSeq + "\n");
-                        } else {
-                            clientChatArea.append(response + "\n"); // Update Chat UI with Bot Response
-                        }
-                        // serverLog.append("Client Received: " + response + "\n"); // Optional: Keep
-                        // technical log clean
-                    });
+                    if (response.startsWith("NACK:")) {
+                        String missingSeq = response.split(":")[1];
+                        clientChatArea
+                                .append("Server Notification: I have not received message(s) with Sequence Number "
+                                        + missingSeq + "\n");
+                        serverLog.append("Network: Server sent NACK for SEQ " + missingSeq + "\n");
+                    } else {
+                        clientChatArea.append(response + "\n"); // Update Chat UI with Bot Response
+                    }
+                    // serverLog.append("Client Received: " + response + "\n"); // Optional: Keep
+                    // technical log clean
                 }
             });
             clientInput.setText("");
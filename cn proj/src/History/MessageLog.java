@@ -0,0 +1,542 @@
+package History;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32C;
+
+// Append-only history of every message the server answers, kept in memory-mapped
+// segment files in one directory. Callers only enqueue (append never blocks; a full
+// queue drops the record); one writer thread copies records into the active
+// segment, rolls to a new one when it is full and deletes the oldest past the
+// retention limits. How often mapped pages are forced to disk is the sync policy:
+// after every batch the writer drains (group commit), on an interval, or never.
+//
+// Each record is
+//   length (4) | crc32c of the rest (4) | timestamp (8) | key length (2) | message length (4)
+//   | key | message | reply
+// with UTF-8 strings. A zero length marks the end of a segment; a bad checksum
+// (a record torn by a crash) does too.
+//
+// The key is who the exchange belongs to, a client address or "room:<name>". An
+// in-memory index keeps the positions of the last few records per key, so the
+// latest messages of a client or room are read straight from the mapped files;
+// clients ask for theirs with "/history".
+public class MessageLog implements Closeable {
+    public enum SyncPolicy {
+        NONE, BATCH, INTERVAL
+    }
+
+    private static final String SUFFIX = ".log";
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 2 + 4;
+    private static final int MAX_BATCH = 1024;
+    private static final int HISTORY_COUNT = 10;
+    private static final String HISTORY_USAGE = "Usage: /history [count]";
+
+    private final Path directory;
+    private int segmentBytes = 64 * 1024 * 1024;
+    private int maxSegments = 8;
+    private long maxAgeMillis;
+    private SyncPolicy syncPolicy = SyncPolicy.BATCH;
+    private long syncIntervalMillis = 1000;
+    private int queueCapacity = 64 * 1024;
+    private int indexDepth = 100;
+
+    private BlockingQueue<Record> queue;
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    private final Map<String, Recent> index = new ConcurrentHashMap<>();
+    private Segment active;
+    private long nextSeq;
+    private Thread writer;
+    private volatile boolean running;
+    private final CRC32C crc = new CRC32C();
+
+    private final LongAdder appended = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    private final LongAdder syncs = new LongAdder();
+
+    public MessageLog(Path directory) {
+        this.directory = directory;
+    }
+
+    // Size each segment file is mapped at.
+    public void setSegmentBytes(int segmentBytes) {
+        if (segmentBytes < 4096) {
+            throw new IllegalArgumentException("segmentBytes must be at least 4096");
+        }
+        this.segmentBytes = segmentBytes;
+    }
+
+    // Oldest segments are deleted once there are more than maxSegments, or once their
+    // newest record is older than maxAgeMillis (0 keeps them regardless of age).
+    public void setRetention(int maxSegments, long maxAgeMillis) {
+        if (maxSegments <= 0) {
+            throw new IllegalArgumentException("maxSegments must be positive");
+        }
+        this.maxSegments = maxSegments;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    // intervalMillis only applies to INTERVAL.
+    public void setSyncPolicy(SyncPolicy syncPolicy, long intervalMillis) {
+        this.syncPolicy = syncPolicy;
+        this.syncIntervalMillis = Math.max(1, intervalMillis);
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    // How many recent records per key the index remembers. Each key's ring starts small
+    // and grows to this as records arrive.
+    public void setIndexDepth(int indexDepth) {
+        this.indexDepth = indexDepth;
+    }
+
+    // Maps the existing segments, rebuilding the index from them, and starts the writer.
+    public synchronized void open() throws IOException {
+        if (running) {
+            return;
+        }
+        Files.createDirectories(directory);
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        Collections.sort(files); // Names are zero-padded base sequence numbers
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            long base = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+            Segment segment = map(base, file, Math.max(Files.size(file), segmentBytes));
+            recover(segment);
+            segments.put(base, segment);
+        }
+        if (segments.isEmpty()) {
+            active = newSegment(0);
+        } else {
+            active = segments.lastEntry().getValue();
+            nextSeq = active.base + active.count;
+        }
+        applyRetention();
+
+        running = true;
+        writer = new Thread(this::writeLoop, "message-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Never blocks. Returns false if the record was dropped because the writer is
+    // behind (or the log is closed). An empty reply is fine, e.g. for room posts.
+    public boolean append(String key, String message, String reply) {
+        BlockingQueue<Record> queue = this.queue;
+        if (!running || !queue.offer(new Record(System.currentTimeMillis(), key, message, reply))) {
+            dropped.increment();
+            return false;
+        }
+        appended.increment();
+        return true;
+    }
+
+    // Up to n of the key's most recent records, oldest first, as far as the index and
+    // retention still cover them.
+    public List<Entry> last(String key, int n) {
+        Recent recent = index.get(key);
+        if (recent == null) {
+            return Collections.emptyList();
+        }
+        long[] locations = recent.snapshot(n);
+        List<Entry> entries = new ArrayList<>(locations.length);
+        for (long location : locations) {
+            Segment segment = segments.get(location >>> 32);
+            if (segment != null) {
+                entries.add(read(segment, (int) location));
+            }
+        }
+        return entries;
+    }
+
+    // Cheap enough to call on every message, like RoomRegistry.isCommand.
+    public static boolean isCommand(String line) {
+        return line.startsWith("/history") && (line.length() == 8 || line.charAt(8) == ' ');
+    }
+
+    // Returns the reply to "/history [count]": the key's last exchanges, oldest first,
+    // on one line.
+    public String handleCommand(String key, String line) {
+        int count = HISTORY_COUNT;
+        String argument = line.substring(8).trim();
+        if (!argument.isEmpty()) {
+            try {
+                count = Integer.parseInt(argument);
+            } catch (NumberFormatException e) {
+                return HISTORY_USAGE;
+            }
+            if (count <= 0) {
+                return HISTORY_USAGE;
+            }
+        }
+        List<Entry> entries = last(key, Math.min(count, indexDepth));
+        if (entries.isEmpty()) {
+            return "No history";
+        }
+        StringBuilder reply = new StringBuilder();
+        for (Entry entry : entries) {
+            if (reply.length() > 0) {
+                reply.append(" | ");
+            }
+            reply.append(entry.getMessage()).append(" -> ").append(entry.getReply());
+        }
+        // Binary messages may hold line breaks; a text reply must stay one line.
+        return reply.toString().replace('\r', ' ').replace('\n', ' ');
+    }
+
+    private void writeLoop() {
+        List<Record> batch = new ArrayList<>(MAX_BATCH);
+        long lastSync = System.nanoTime();
+        // Short polls, so close() and the sync interval are noticed without an interrupt;
+        // interrupting would close the file channels mid-roll.
+        long pollMillis = Math.min(100, syncIntervalMillis);
+        while (running || !queue.isEmpty()) {
+            try {
+                Record first = queue.poll(pollMillis, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                    for (Record record : batch) {
+                        write(record);
+                    }
+                    written.add(batch.size());
+                    batch.clear();
+                } else if (maxAgeMillis > 0) {
+                    applyRetention(); // Age out segments while idle, too
+                }
+                if (syncPolicy == SyncPolicy.BATCH && first != null
+                        || syncPolicy == SyncPolicy.INTERVAL
+                        && System.nanoTime() - lastSync >= TimeUnit.MILLISECONDS.toNanos(syncIntervalMillis)) {
+                    sync();
+                    lastSync = System.nanoTime();
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException | UncheckedIOException e) {
+                e.printStackTrace();
+                batch.clear();
+            }
+        }
+    }
+
+    private void write(Record record) throws IOException {
+        byte[] key = record.key.getBytes(StandardCharsets.UTF_8);
+        byte[] message = record.message.getBytes(StandardCharsets.UTF_8);
+        byte[] reply = record.reply.getBytes(StandardCharsets.UTF_8);
+        int length = HEADER_SIZE + key.length + message.length + reply.length;
+        if (key.length > Short.MAX_VALUE || length > segmentBytes - 4) {
+            dropped.increment();
+            return;
+        }
+        // Leave room for the zero length that ends the segment.
+        if (active.end + length + 4 > active.buffer.capacity()) {
+            roll();
+        }
+
+        MappedByteBuffer buffer = active.buffer;
+        int position = active.end;
+        buffer.putLong(position + 8, record.timestamp);
+        buffer.putShort(position + 16, (short) key.length);
+        buffer.putInt(position + 18, message.length);
+        buffer.put(position + HEADER_SIZE, key);
+        buffer.put(position + HEADER_SIZE + key.length, message);
+        buffer.put(position + HEADER_SIZE + key.length + message.length, reply);
+        crc.reset();
+        crc.update(buffer.slice(position + 8, length - 8));
+        buffer.putInt(position + 4, (int) crc.getValue());
+        buffer.putInt(position, length);
+
+        active.end = position + length;
+        active.count++;
+        active.lastTimestamp = record.timestamp;
+        nextSeq++;
+        index.computeIfAbsent(record.key, k -> new Recent(indexDepth)).add(active.base, position);
+    }
+
+    private void roll() throws IOException {
+        if (syncPolicy != SyncPolicy.NONE) {
+            sync();
+        }
+        active = newSegment(nextSeq);
+        applyRetention();
+    }
+
+    private void sync() {
+        active.buffer.force();
+        syncs.increment();
+    }
+
+    private Segment newSegment(long base) throws IOException {
+        Path file = directory.resolve(String.format("%020d%s", base, SUFFIX));
+        Segment segment = map(base, file, segmentBytes);
+        segments.put(base, segment);
+        return segment;
+    }
+
+    private static Segment map(long base, Path file, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            // The mapping stays valid after the channel is closed.
+            return new Segment(base, file, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        }
+    }
+
+    // Walks the segment's records up to the first empty or damaged one, indexing them.
+    private void recover(Segment segment) {
+        ByteBuffer buffer = segment.buffer;
+        int position = 0;
+        while (position + HEADER_SIZE <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length < HEADER_SIZE || position + length > buffer.capacity()) {
+                break;
+            }
+            crc.reset();
+            crc.update(buffer.slice(position + 8, length - 8));
+            if (buffer.getInt(position + 4) != (int) crc.getValue()) {
+                break;
+            }
+            Entry entry = read(segment, position);
+            index.computeIfAbsent(entry.getKey(), k -> new Recent(indexDepth)).add(segment.base, position);
+            segment.lastTimestamp = entry.getTimestamp();
+            segment.count++;
+            position += length;
+        }
+        segment.end = position;
+    }
+
+    private void applyRetention() throws IOException {
+        long cutoff = System.currentTimeMillis() - maxAgeMillis;
+        boolean deleted = false;
+        while (segments.size() > 1) {
+            Segment oldest = segments.firstEntry().getValue();
+            if (segments.size() <= maxSegments && (maxAgeMillis <= 0 || oldest.lastTimestamp >= cutoff)) {
+                break;
+            }
+            segments.remove(oldest.base);
+            Files.deleteIfExists(oldest.file);
+            deleted = true;
+        }
+        if (deleted) {
+            // Forget index entries that point at deleted segments, and keys left with none.
+            long oldestBase = segments.firstKey();
+            index.values().removeIf(recent -> recent.dropBefore(oldestBase));
+        }
+    }
+
+    private static Entry read(Segment segment, int position) {
+        ByteBuffer buffer = segment.buffer;
+        int length = buffer.getInt(position);
+        long timestamp = buffer.getLong(position + 8);
+        int keyLength = buffer.getShort(position + 16);
+        int messageLength = buffer.getInt(position + 18);
+        int replyLength = length - HEADER_SIZE - keyLength - messageLength;
+        int offset = position + HEADER_SIZE;
+        return new Entry(timestamp, string(buffer, offset, keyLength),
+                string(buffer, offset + keyLength, messageLength),
+                string(buffer, offset + keyLength + messageLength, replyLength));
+    }
+
+    private static String string(ByteBuffer buffer, int offset, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(offset, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Writes out everything already appended, forces it to disk and stops the writer.
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (syncPolicy != SyncPolicy.NONE) {
+            sync();
+        }
+    }
+
+    public long getAppendedCount() {
+        return appended.sum();
+    }
+
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    public long getWrittenCount() {
+        return written.sum();
+    }
+
+    public long getSyncCount() {
+        return syncs.sum();
+    }
+
+    public int getQueueDepth() {
+        BlockingQueue<Record> queue = this.queue;
+        return queue == null ? 0 : queue.size();
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    @Override
+    public String toString() {
+        return "MessageLog[" + directory + ", segments=" + getSegmentCount() + ", appended=" + getAppendedCount()
+                + ", written=" + getWrittenCount() + ", dropped=" + getDroppedCount() + ", queue=" + getQueueDepth()
+                + ", syncs=" + getSyncCount() + "]";
+    }
+
+    public static final class Entry {
+        private final long timestamp;
+        private final String key;
+        private final String message;
+        private final String reply;
+
+        Entry(long timestamp, String key, String message, String reply) {
+            this.timestamp = timestamp;
+            this.key = key;
+            this.message = message;
+            this.reply = reply;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        public String getReply() {
+            return reply;
+        }
+
+        @Override
+        public String toString() {
+            return timestamp + " " + key + " " + message + " => " + reply;
+        }
+    }
+
+    private static final class Record {
+        private final long timestamp;
+        private final String key;
+        private final String message;
+        private final String reply;
+
+        Record(long timestamp, String key, String message, String reply) {
+            this.timestamp = timestamp;
+            this.key = key;
+            this.message = message;
+            this.reply = reply == null ? "" : reply;
+        }
+    }
+
+    private static final class Segment {
+        private final long base;
+        private final Path file;
+        private final MappedByteBuffer buffer;
+        // Writer thread only
+        private int end;
+        private int count;
+        private long lastTimestamp;
+
+        Segment(long base, Path file, MappedByteBuffer buffer) {
+            this.base = base;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    // Ring of the latest record locations for one key: segment base in the high 32
+    // bits, position in the low 32.
+    // Keys are clients as well as rooms, and most clients only ever send a few messages,
+    // so a ring starts at a few slots and doubles up to the index depth.
+    private static final class Recent {
+        private static final int INITIAL_SLOTS = 4;
+
+        private final int depth;
+        private long[] locations;
+        private int next;
+        private int size;
+
+        Recent(int depth) {
+            this.depth = Math.max(1, depth);
+            this.locations = new long[Math.min(INITIAL_SLOTS, this.depth)];
+        }
+
+        synchronized void add(long base, int position) {
+            if (size == locations.length && size < depth) {
+                long[] grown = new long[Math.min(size * 2, depth)];
+                System.arraycopy(snapshot(size), 0, grown, 0, size);
+                locations = grown;
+                next = size;
+            }
+            locations[next] = base << 32 | position;
+            next = (next + 1) % locations.length;
+            size = Math.min(size + 1, locations.length);
+        }
+
+        // Oldest first.
+        synchronized long[] snapshot(int n) {
+            int count = Math.min(n, size);
+            long[] out = new long[count];
+            for (int i = 0; i < count; i++) {
+                out[i] = locations[Math.floorMod(next - count + i, locations.length)];
+            }
+            return out;
+        }
+
+        // Returns true if nothing is left.
+        synchronized boolean dropBefore(long base) {
+            long[] kept = snapshot(size);
+            int keep = 0;
+            for (long location : kept) {
+                if (location >>> 32 >= base) {
+                    locations[keep++] = location;
+                }
+            }
+            size = keep;
+            next = keep % locations.length;
+            return size == 0;
+        }
+    }
+}
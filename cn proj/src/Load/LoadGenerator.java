@@ -0,0 +1,646 @@
+package Load;
+
+import Networking.BotPipeline;
+import Networking.FragmentReassembler;
+import Networking.FrameCodec;
+import Networking.RateLimiter;
+import Networking.RoomRegistry;
+import Networking.WireFormat;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+// Open-loop load for a chat server, over the same wire protocols as the clients:
+// lines or FrameCodec frames over TCP, "SEQ:n|" datagrams or sequenced frames over
+// UDP. Requests go out on a fixed schedule, at a constant rate or one that ramps
+// linearly from one rate to another, whether or not earlier replies are back. A
+// client that waits for each reply before sending the next slows down along with
+// the server and never sees the queueing a capacity test is looking for.
+//
+// Each simulated user has its own connection or UDP socket, so the server sees them
+// as separate peers, and requests are dealt to users in turn. One thread sends and
+// one reads, whatever the number of users. Latency runs from the time a request was
+// due, not the time it was written, so a stall in the generator or a full socket
+// buffer is charged to the reply instead of quietly thinning out the samples
+// (coordinated omission); the send lag in the report shows how far behind schedule
+// the generator itself fell.
+public class LoadGenerator {
+    private static final long HOUSEKEEPING_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+    // A request NACKed again within this long of its last resend is not sent again.
+    private static final long RESEND_GAP_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final InetSocketAddress server;
+    private String protocol = "tcp";
+    private WireFormat wireFormat = WireFormat.TEXT;
+    private int users = 100;
+    private double rate = 100;
+    private double rampTo = -1;
+    private long durationMillis = 10000;
+    private long timeoutMillis = 5000;
+    private int connectTimeoutMillis = 5000;
+    private String message = "hello";
+    private long progressMillis;
+    private Consumer<String> progress = System.out::println;
+
+    private LoadReport report;
+    private long timeoutNanos;
+    // Receiver thread only
+    private final FragmentReassembler reassembler = new FragmentReassembler(10000, 256);
+
+    public LoadGenerator(InetSocketAddress server) {
+        this.server = server;
+    }
+
+    // "tcp" or "udp"; "nio" is TCP on the wire.
+    public void setProtocol(String protocol) {
+        switch (protocol) {
+            case "tcp":
+            case "nio":
+            case "udp":
+                this.protocol = protocol;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown protocol: " + protocol);
+        }
+    }
+
+    public void setWireFormat(WireFormat wireFormat) {
+        this.wireFormat = wireFormat;
+    }
+
+    public void setUsers(int users) {
+        if (users <= 0) {
+            throw new IllegalArgumentException("users must be positive");
+        }
+        this.users = users;
+    }
+
+    // Messages a second across all users, at the start of the run.
+    public void setRate(double rate) {
+        if (rate < 0) {
+            throw new IllegalArgumentException("rate must not be negative");
+        }
+        this.rate = rate;
+    }
+
+    // Ramps the rate linearly to this by the end of the run. Negative (the default)
+    // keeps it constant.
+    public void setRampTo(double rampTo) {
+        this.rampTo = rampTo;
+    }
+
+    public void setDurationMillis(long durationMillis) {
+        if (durationMillis <= 0) {
+            throw new IllegalArgumentException("duration must be positive");
+        }
+        this.durationMillis = durationMillis;
+    }
+
+    // A request with no reply this long after it was due counts as a timeout.
+    public void setTimeoutMillis(long timeoutMillis) {
+        if (timeoutMillis <= 0) {
+            throw new IllegalArgumentException("timeout must be positive");
+        }
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public void setConnectTimeoutMillis(int connectTimeoutMillis) {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+    }
+
+    public void setMessage(String message) {
+        if (message.isEmpty() || (wireFormat == WireFormat.TEXT && message.indexOf('\n') >= 0)) {
+            throw new IllegalArgumentException("message must be a non-empty single line");
+        }
+        this.message = message;
+    }
+
+    // Prints a line with the counts and recent latency this often; 0 (the default) never does.
+    public void setProgress(long progressMillis, Consumer<String> progress) {
+        this.progressMillis = progressMillis;
+        this.progress = progress;
+    }
+
+    // Connects every user, sends for the configured duration, then waits up to the
+    // timeout for the last replies.
+    public LoadReport run() throws IOException {
+        if (rampTo < 0 ? rate <= 0 : rate <= 0 && rampTo <= 0) {
+            throw new IllegalArgumentException("rate must be positive");
+        }
+        if (protocol.equals("nio") && wireFormat == WireFormat.BINARY) {
+            throw new IllegalArgumentException("The nio server only speaks the text format");
+        }
+        report = new LoadReport(describe());
+        timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        User[] all = new User[users];
+        try (Selector selector = Selector.open()) {
+            try {
+                for (int i = 0; i < users; i++) {
+                    all[i] = connect(selector);
+                }
+                // Registration is done, so the receiver never has to be woken for it.
+                Thread receiver = new Thread(() -> receiveLoop(selector), "load-receiver");
+                receiver.setDaemon(true);
+                receiver.start();
+                sendAll(all);
+            } finally {
+                for (User user : all) {
+                    if (user != null) {
+                        user.close();
+                    }
+                }
+            }
+        }
+        return report;
+    }
+
+    private String describe() {
+        String schedule = rampTo >= 0 ? String.format("ramp %.0f -> %.0f msg/s", rate, rampTo)
+                : String.format("%.0f msg/s", rate);
+        return protocol + "/" + wireFormat.name().toLowerCase() + " to " + server.getHostString() + ":"
+                + server.getPort() + ", " + users + " users, " + schedule + " for " + durationMillis / 1000.0 + "s";
+    }
+
+    private User connect(Selector selector) {
+        try {
+            return protocol.equals("udp") ? new UdpUser(selector) : new TcpUser(selector);
+        } catch (IOException e) {
+            report.connectFailed();
+            return null; // Its requests count as errors
+        }
+    }
+
+    // Seconds into the run at which request i is due. With the rate climbing linearly
+    // from r0 by 'slope' a second, r0*t + slope*t*t/2 requests are due by time t.
+    private double dueSeconds(long i) {
+        double durationSeconds = durationMillis / 1000.0;
+        double slope = rampTo >= 0 ? (rampTo - rate) / durationSeconds : 0;
+        if (Math.abs(slope) < 1e-9) {
+            return i / rate;
+        }
+        double discriminant = rate * rate + 2 * slope * i;
+        return discriminant < 0 ? Double.POSITIVE_INFINITY : (Math.sqrt(discriminant) - rate) / slope;
+    }
+
+    private void sendAll(User[] all) {
+        long start = System.nanoTime();
+        long end = start + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        report.started(start);
+        Ticker ticker = new Ticker(all, start);
+        for (long i = 0; ; i++) {
+            double due = dueSeconds(i) * 1e9;
+            if (due >= end - start) {
+                break;
+            }
+            long dueNanos = start + (long) due;
+            long now = ticker.waitUntil(dueNanos);
+            User user = all[(int) (i % all.length)];
+            report.sent(now - dueNanos);
+            if (user == null || user.failed.get()) {
+                report.error();
+            } else {
+                user.send(dueNanos, now);
+            }
+        }
+        ticker.waitUntil(end);
+        report.stopped(end);
+        // Whatever is still out times out by end + timeout at the latest.
+        long deadline = end + timeoutNanos + HOUSEKEEPING_NANOS;
+        while (report.getOutstanding() > 0 && ticker.waitUntil(Math.min(deadline,
+                System.nanoTime() + HOUSEKEEPING_NANOS)) < deadline) {
+            // Waiting for the last replies
+        }
+        // Anything left, e.g. sent just as its user failed, is overdue by now.
+        for (User user : all) {
+            if (user != null) {
+                user.housekeeping(deadline + timeoutNanos);
+            }
+        }
+    }
+
+    // Runs the periodic work while the sender waits for the next request's due time.
+    private final class Ticker {
+        private final User[] all;
+        private long nextHousekeeping;
+        private long nextProgress;
+
+        Ticker(User[] all, long start) {
+            this.all = all;
+            this.nextHousekeeping = start + HOUSEKEEPING_NANOS;
+            this.nextProgress = progressMillis > 0 ? start + TimeUnit.MILLISECONDS.toNanos(progressMillis)
+                    : Long.MAX_VALUE;
+        }
+
+        // Returns the time it got to, no earlier than 'due'.
+        long waitUntil(long due) {
+            while (true) {
+                long now = System.nanoTime();
+                if (now - nextHousekeeping >= 0) {
+                    for (User user : all) {
+                        if (user != null && !user.failed.get()) {
+                            user.housekeeping(now);
+                        }
+                    }
+                    nextHousekeeping = now + HOUSEKEEPING_NANOS;
+                }
+                if (now - nextProgress >= 0) {
+                    progress.accept(report.progress(now));
+                    nextProgress += TimeUnit.MILLISECONDS.toNanos(progressMillis);
+                }
+                if (now - due >= 0) {
+                    return now;
+                }
+                LockSupport.parkNanos(Math.min(due, nextHousekeeping) - now);
+            }
+        }
+    }
+
+    private void receiveLoop(Selector selector) {
+        try {
+            while (true) {
+                selector.select();
+                for (SelectionKey key : selector.selectedKeys()) {
+                    User user = (User) key.attachment();
+                    try {
+                        user.read();
+                    } catch (IOException e) {
+                        key.cancel();
+                        user.fail();
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (ClosedSelectorException e) {
+            // Run finished
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static final class Request {
+        private final long due;
+        private final int seq;
+        // UDP only, kept for resends
+        private final ByteBuffer[] datagrams;
+        private volatile long lastSent;
+        private final AtomicBoolean finished = new AtomicBoolean();
+
+        Request(long due, int seq, ByteBuffer[] datagrams) {
+            this.due = due;
+            this.seq = seq;
+            this.datagrams = datagrams;
+        }
+
+        // Only the first of reply, timeout and error counts.
+        boolean finish() {
+            return finished.compareAndSet(false, true);
+        }
+    }
+
+    private abstract class User {
+        final AtomicBoolean failed = new AtomicBoolean();
+        final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+        // Sender thread
+        abstract void send(long due, long now);
+
+        // Sender thread, every HOUSEKEEPING_NANOS: times out overdue requests.
+        abstract void housekeeping(long now);
+
+        // Receiver thread
+        abstract void read() throws IOException;
+
+        // Any thread; everything still outstanding becomes an error.
+        abstract void fail();
+
+        abstract void close();
+
+        // A null reply is a rejection that came as its own frame type.
+        void complete(Request request, String reply) {
+            if (!request.finish()) {
+                return; // Already counted as a timeout
+            }
+            if (reply == null || reply.equals(RateLimiter.SLOW_DOWN_REPLY) || reply.equals(BotPipeline.BUSY_REPLY)) {
+                report.rejected();
+            } else {
+                report.replied(System.nanoTime() - request.due);
+            }
+        }
+    }
+
+    // Replies come back in request order, so outstanding requests are a FIFO queue.
+    // Requests that time out stay in it until their late reply arrives.
+    private final class TcpUser extends User {
+        private final SocketChannel channel;
+        private final ByteBuffer encoded;
+        private final Queue<Request> outstanding = new ConcurrentLinkedQueue<>();
+        // Sender thread only: what the socket buffer had no room for yet
+        private final ArrayDeque<ByteBuffer> backlog = new ArrayDeque<>();
+
+        TcpUser(Selector selector) throws IOException {
+            channel = SocketChannel.open();
+            try {
+                channel.socket().connect(server, connectTimeoutMillis);
+                channel.socket().setTcpNoDelay(true);
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_READ, this);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            encoded = wireFormat == WireFormat.BINARY
+                    ? FrameCodec.encode(FrameCodec.TYPE_MESSAGE, FrameCodec.NO_SEQUENCE, message)
+                    : ByteBuffer.wrap((message + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        void send(long due, long now) {
+            outstanding.add(new Request(due, FrameCodec.NO_SEQUENCE, null));
+            backlog.add(encoded.duplicate());
+            flush();
+        }
+
+        private void flush() {
+            try {
+                ByteBuffer next;
+                while ((next = backlog.peek()) != null) {
+                    channel.write(next);
+                    if (next.hasRemaining()) {
+                        return; // Socket buffer is full; the server is not keeping up
+                    }
+                    backlog.poll();
+                }
+            } catch (IOException e) {
+                fail();
+            }
+        }
+
+        @Override
+        void housekeeping(long now) {
+            flush();
+            long cutoff = now - timeoutNanos;
+            for (Request request : outstanding) {
+                if (request.due - cutoff > 0) {
+                    break; // Due times only go up
+                }
+                if (request.finish()) {
+                    report.timedOut();
+                }
+            }
+        }
+
+        @Override
+        void read() throws IOException {
+            if (channel.read(readBuffer) < 0) {
+                throw new EOFException("Server closed the connection");
+            }
+            readBuffer.flip();
+            if (wireFormat == WireFormat.BINARY) {
+                FrameCodec.Frame frame;
+                while ((frame = FrameCodec.decode(readBuffer)) != null) {
+                    if (frame.type == FrameCodec.TYPE_REPLY) {
+                        reply(frame.text());
+                    } else if (frame.type == FrameCodec.TYPE_SLOW_DOWN) {
+                        reply(null);
+                    }
+                }
+            } else {
+                int lineStart = readBuffer.position();
+                for (int i = lineStart; i < readBuffer.limit(); i++) {
+                    if (readBuffer.get(i) == '\n') {
+                        int end = i > lineStart && readBuffer.get(i - 1) == '\r' ? i - 1 : i;
+                        String line = new String(readBuffer.array(), lineStart, end - lineStart,
+                                StandardCharsets.UTF_8);
+                        if (!RoomRegistry.isPush(line)) {
+                            reply(line); // A room push is not the reply to anything
+                        }
+                        lineStart = i + 1;
+                    }
+                }
+                readBuffer.position(lineStart);
+            }
+            readBuffer.compact();
+            if (!readBuffer.hasRemaining()) {
+                throw new ProtocolException("Reply longer than " + READ_BUFFER_SIZE + " bytes");
+            }
+        }
+
+        private void reply(String text) {
+            Request request = outstanding.poll();
+            if (request != null) {
+                complete(request, text);
+            }
+        }
+
+        @Override
+        void fail() {
+            failed.set(true);
+            close();
+            Request request;
+            while ((request = outstanding.poll()) != null) {
+                if (request.finish()) {
+                    report.error();
+                }
+            }
+        }
+
+        @Override
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+    }
+
+    // Replies are matched on sequence number. The server holds a message back until
+    // the ones before it have arrived and NACKs the gap, so a NACKed request is sent
+    // again; requests that have timed out are still kept for that, since the server
+    // waits for them whether or not anyone still wants the reply.
+    private final class UdpUser extends User {
+        private final DatagramChannel channel;
+        private final Map<Integer, Request> outstanding = new ConcurrentHashMap<>();
+        private final Map<Integer, Request> late = new ConcurrentHashMap<>();
+        private final byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+        private int nextSeq; // Sender thread only
+
+        UdpUser(Selector selector) throws IOException {
+            channel = DatagramChannel.open();
+            try {
+                channel.connect(server);
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_READ, this);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        @Override
+        void send(long due, long now) {
+            int seq = nextSeq++;
+            ByteBuffer[] datagrams = wireFormat == WireFormat.BINARY
+                    ? FrameCodec.encodeDatagrams(FrameCodec.TYPE_MESSAGE, seq, seq, payload).toArray(new ByteBuffer[0])
+                    : new ByteBuffer[] { ByteBuffer.wrap(("SEQ:" + seq + "|" + message)
+                            .getBytes(StandardCharsets.UTF_8)) };
+            Request request = new Request(due, seq, datagrams);
+            outstanding.put(seq, request);
+            transmit(request, now);
+        }
+
+        // Called from both threads; a connected DatagramChannel takes concurrent writes.
+        private void transmit(Request request, long now) {
+            request.lastSent = now;
+            try {
+                for (ByteBuffer datagram : request.datagrams) {
+                    channel.write(datagram.duplicate());
+                }
+            } catch (IOException e) {
+                fail();
+            }
+        }
+
+        @Override
+        void housekeeping(long now) {
+            long cutoff = now - timeoutNanos;
+            outstanding.values().removeIf(request -> {
+                if (request.due - cutoff > 0) {
+                    return false;
+                }
+                late.put(request.seq, request);
+                if (request.finish()) {
+                    report.timedOut();
+                }
+                return true;
+            });
+        }
+
+        @Override
+        void read() throws IOException {
+            while (true) {
+                readBuffer.clear();
+                if (channel.read(readBuffer) <= 0) {
+                    return;
+                }
+                readBuffer.flip();
+                if (FrameCodec.isBinary(readBuffer)) {
+                    readFrame();
+                } else {
+                    readText(StandardCharsets.UTF_8.decode(readBuffer).toString());
+                }
+            }
+        }
+
+        private void readFrame() throws ProtocolException {
+            FrameCodec.Frame frame = FrameCodec.decode(readBuffer);
+            if (frame != null && frame.type == FrameCodec.TYPE_FRAGMENT) {
+                frame = reassembler.add(server, frame);
+            }
+            if (frame == null) {
+                return;
+            }
+            if (frame.type == FrameCodec.TYPE_REPLY) {
+                ack(frame.seq, frame.text());
+            } else if (frame.type == FrameCodec.TYPE_SLOW_DOWN) {
+                ack(frame.seq, null);
+            } else if (frame.type == FrameCodec.TYPE_NACK) {
+                nack(frame.text());
+            }
+        }
+
+        // "ACK:n|<reply>" or "NACK:<missing>|n", as UDPClient reads them.
+        private void readText(String datagram) {
+            if (datagram.startsWith("ACK:")) {
+                int split = datagram.indexOf('|');
+                if (split > 0) {
+                    ack(parseInt(datagram, 4, split), datagram.substring(split + 1));
+                }
+            } else if (datagram.startsWith("NACK:")) {
+                int split = datagram.lastIndexOf('|');
+                if (split > 0) {
+                    nack(datagram.substring(5, split));
+                }
+            }
+        }
+
+        private void ack(int seq, String reply) {
+            Request request = outstanding.remove(seq);
+            if (request == null) {
+                late.remove(seq);
+                return;
+            }
+            complete(request, reply);
+        }
+
+        // 'missing' looks like "3-5,8". Several NACKs can name the same gap, and one
+        // resend per gap is enough.
+        private void nack(String missing) {
+            report.nacked();
+            long now = System.nanoTime();
+            for (String range : missing.split(",")) {
+                int dash = range.indexOf('-');
+                int from = parseInt(range, 0, dash < 0 ? range.length() : dash);
+                int to = dash < 0 ? from : parseInt(range, dash + 1, range.length());
+                for (int seq = from; seq >= 0 && seq <= to; seq++) {
+                    Request request = outstanding.get(seq);
+                    if (request == null) {
+                        request = late.get(seq);
+                    }
+                    if (request != null && now - request.lastSent > RESEND_GAP_NANOS) {
+                        report.resent();
+                        transmit(request, now);
+                    }
+                }
+            }
+        }
+
+        @Override
+        void fail() {
+            failed.set(true);
+            close();
+            for (Request request : outstanding.values()) {
+                if (request.finish()) {
+                    report.error();
+                }
+            }
+            outstanding.clear();
+            late.clear();
+        }
+
+        @Override
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+    }
+
+    private static int parseInt(String s, int from, int to) {
+        try {
+            return Integer.parseInt(s, from, to, 10);
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package Load;
+
+import Metrics.LatencyHistogram;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// What a LoadGenerator run saw. Every request ends up exactly once as replied,
+// rejected (the server answered, but with a busy or slow-down reply), an error (its
+// user's connection failed) or a timeout. Latency is only recorded for replies, and
+// runs from the time the request was due to go out.
+public class LoadReport {
+    private final String description;
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder replied = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder nacks = new LongAdder();
+    private final LongAdder resent = new LongAdder();
+    private final LongAdder connectFailures = new LongAdder();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LatencyHistogram sendLag = new LatencyHistogram();
+    // Since the last progress line; reset by progress()
+    private final LatencyHistogram recentLatency = new LatencyHistogram();
+    private long lastProgressNanos;
+    private long lastProgressReplied;
+
+    private volatile long startNanos;
+    private volatile long endNanos;
+
+    LoadReport(String description) {
+        this.description = description;
+    }
+
+    void started(long nanos) {
+        startNanos = nanos;
+        lastProgressNanos = nanos;
+    }
+
+    // The end of the sending window; replies still arriving after it count, but
+    // throughput is over the window only.
+    void stopped(long nanos) {
+        endNanos = nanos;
+    }
+
+    // lagNanos is how long after its due time the request went out.
+    void sent(long lagNanos) {
+        sent.increment();
+        sendLag.record(lagNanos);
+    }
+
+    void replied(long latencyNanos) {
+        replied.increment();
+        latency.record(latencyNanos);
+        recentLatency.record(latencyNanos);
+    }
+
+    void rejected() {
+        rejected.increment();
+    }
+
+    void error() {
+        errors.increment();
+    }
+
+    void timedOut() {
+        timeouts.increment();
+    }
+
+    void nacked() {
+        nacks.increment();
+    }
+
+    void resent() {
+        resent.increment();
+    }
+
+    void connectFailed() {
+        connectFailures.increment();
+    }
+
+    long getOutstanding() {
+        return sent.sum() - replied.sum() - rejected.sum() - errors.sum() - timeouts.sum();
+    }
+
+    public long getSentCount() {
+        return sent.sum();
+    }
+
+    public long getRepliedCount() {
+        return replied.sum();
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    public long getErrorCount() {
+        return errors.sum();
+    }
+
+    public long getTimeoutCount() {
+        return timeouts.sum();
+    }
+
+    public long getNackCount() {
+        return nacks.sum();
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    public LatencyHistogram getSendLag() {
+        return sendLag;
+    }
+
+    // Replies a second over the sending window.
+    public double getThroughput() {
+        double seconds = (endNanos - startNanos) / 1e9;
+        return seconds > 0 ? replied.sum() / seconds : 0;
+    }
+
+    // One line for the run so far; only the sending thread calls it.
+    String progress(long now) {
+        long repliedNow = replied.sum();
+        double seconds = (now - lastProgressNanos) / 1e9;
+        String line = String.format("t=%.0fs sent=%d replied=%d (%.0f/s) rejected=%d errors=%d timeouts=%d nacks=%d"
+                + " p50=%sms p99=%sms", (now - startNanos) / 1e9, sent.sum(), repliedNow,
+                seconds > 0 ? (repliedNow - lastProgressReplied) / seconds : 0, rejected.sum(), errors.sum(),
+                timeouts.sum(), nacks.sum(), millis(recentLatency.getQuantileNanos(0.5)),
+                millis(recentLatency.getQuantileNanos(0.99)));
+        recentLatency.reset();
+        lastProgressNanos = now;
+        lastProgressReplied = repliedNow;
+        return line;
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.2f", nanos / (double) TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    @Override
+    public String toString() {
+        String lines = description + System.lineSeparator()
+                + String.format("sent %d in %.1fs, replied %d (%.1f/s), rejected %d, errors %d, timeouts %d,"
+                        + " nacks %d (%d resent)", sent.sum(), (endNanos - startNanos) / 1e9, replied.sum(),
+                        getThroughput(), rejected.sum(), errors.sum(), timeouts.sum(), nacks.sum(), resent.sum())
+                + System.lineSeparator()
+                + "latency from due time: p50=" + millis(latency.getQuantileNanos(0.5))
+                + "ms p90=" + millis(latency.getQuantileNanos(0.9))
+                + "ms p99=" + millis(latency.getQuantileNanos(0.99))
+                + "ms p99.9=" + millis(latency.getQuantileNanos(0.999))
+                + "ms max=" + millis(latency.getMaxNanos()) + "ms" + System.lineSeparator()
+                + "send lag: p99=" + millis(sendLag.getQuantileNanos(0.99)) + "ms max="
+                + millis(sendLag.getMaxNanos()) + "ms";
+        long failed = connectFailures.sum();
+        return failed > 0 ? lines + System.lineSeparator() + failed + " users could not connect" : lines;
+    }
+}
@@ -1,11 +1,478 @@
+import Bot.CachingBot;
+import Bot.EchoBot;
+import Bot.IntentBot;
 import GUI.MainFrame;
+import History.MessageLog;
+import Load.LoadGenerator;
+import Networking.BotPipeline;
+import Networking.MulticastAnnouncer;
+import Networking.MulticastListener;
+import Networking.PayloadCompression;
+import Networking.RateLimiter;
+import Networking.RoomRegistry;
+import Networking.Tls;
+import Networking.WireFormat;
+import Server.ChatServer;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.function.Function;
 import javax.swing.SwingUtilities;
 
 public class Main {
     public static void main(String[] args) {
+        boolean headless = false;
+        String protocol = "tcp";
+        int port = ChatServer.DEFAULT_PORT;
+        int threads = 0;
+        int maxConnections = 0;
+        int workers = -1;
+        int queueCapacity = 0;
+        String overload = null;
+        int statsSeconds = 0;
+        int cacheEntries = 0;
+        long cacheMegabytes = 64;
+        long cacheTtlSeconds = 0;
+        String rules = null;
+        String connect = null;
+        int metricsPort = -1;
+        boolean rooms = false;
+        String history = null;
+        String historySync = "batch";
+        int historySegments = 8;
+        String multicast = null;
+        String listen = null;
+        String interfaceName = null;
+        int compressThreshold = PayloadCompression.DEFAULT_THRESHOLD;
+        String tls = null;
+        String tlsPassword = null;
+        double rateLimit = 0;
+        int burst = 0;
+        double globalRateLimit = 0;
+        String overLimit = "slow-down";
+        String load = null;
+        int users = 100;
+        double rate = 100;
+        double rampTo = -1;
+        long durationSeconds = 10;
+        long timeoutMillis = 5000;
+        String message = "hello";
+        String format = "text";
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--headless":
+                        headless = true;
+                        break;
+                    case "--protocol":
+                        protocol = args[++i];
+                        break;
+                    case "--port":
+                        port = Integer.parseInt(args[++i]);
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(args[++i]);
+                        break;
+                    case "--max-connections":
+                        maxConnections = Integer.parseInt(args[++i]);
+                        break;
+                    case "--workers":
+                        workers = Integer.parseInt(args[++i]);
+                        break;
+                    case "--queue":
+                        queueCapacity = Integer.parseInt(args[++i]);
+                        break;
+                    case "--overload":
+                        overload = args[++i];
+                        break;
+                    case "--stats":
+                        statsSeconds = Integer.parseInt(args[++i]);
+                        break;
+                    case "--cache":
+                        cacheEntries = Integer.parseInt(args[++i]);
+                        break;
+                    case "--cache-mb":
+                        cacheMegabytes = Long.parseLong(args[++i]);
+                        break;
+                    case "--cache-ttl":
+                        cacheTtlSeconds = Long.parseLong(args[++i]);
+                        break;
+                    case "--rules":
+                        rules = args[++i];
+                        break;
+                    case "--metrics-port":
+                        metricsPort = Integer.parseInt(args[++i]);
+                        break;
+                    case "--rooms":
+                        rooms = true;
+                        break;
+                    case "--history":
+                        history = args[++i];
+                        break;
+                    case "--history-sync":
+                        historySync = args[++i];
+                        break;
+                    case "--history-segments":
+                        historySegments = Integer.parseInt(args[++i]);
+                        break;
+                    case "--multicast":
+                        multicast = args[++i];
+                        break;
+                    case "--listen":
+                        listen = args[++i];
+                        break;
+                    case "--interface":
+                        interfaceName = args[++i];
+                        break;
+                    case "--compress-threshold":
+                        compressThreshold = Integer.parseInt(args[++i]);
+                        break;
+                    case "--tls":
+                        tls = args[++i];
+                        break;
+                    case "--tls-password":
+                        tlsPassword = args[++i];
+                        break;
+                    case "--rate-limit":
+                        rateLimit = Double.parseDouble(args[++i]);
+                        break;
+                    case "--burst":
+                        burst = Integer.parseInt(args[++i]);
+                        break;
+                    case "--global-rate-limit":
+                        globalRateLimit = Double.parseDouble(args[++i]);
+                        break;
+                    case "--over-limit":
+                        overLimit = args[++i];
+                        break;
+                    case "--load":
+                        load = args[++i];
+                        break;
+                    case "--users":
+                        users = Integer.parseInt(args[++i]);
+                        break;
+                    case "--rate":
+                        rate = Double.parseDouble(args[++i]);
+                        break;
+                    case "--ramp-to":
+                        rampTo = Double.parseDouble(args[++i]);
+                        break;
+                    case "--duration":
+                        durationSeconds = Long.parseLong(args[++i]);
+                        break;
+                    case "--timeout":
+                        timeoutMillis = Long.parseLong(args[++i]);
+                        break;
+                    case "--message":
+                        message = args[++i];
+                        break;
+                    case "--format":
+                        format = args[++i];
+                        break;
+                    case "--connect":
+                        connect = args[++i];
+                        break;
+                    case "--help":
+                        printUsage();
+                        return;
+                    default:
+                        throw new IllegalArgumentException("Unknown option: " + args[i]);
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            usageError("Missing value for " + args[args.length - 1]);
+        } catch (IllegalArgumentException e) {
+            usageError(e.getMessage());
+        }
+
+        NetworkInterface networkInterface = null;
+        if (interfaceName != null) {
+            try {
+                networkInterface = NetworkInterface.getByName(interfaceName);
+            } catch (SocketException e) {
+                e.printStackTrace();
+            }
+            if (networkInterface == null) {
+                usageError("No such network interface: " + interfaceName);
+            }
+        }
+        if (tls != null && !headless) {
+            usageError("--tls is for --headless servers; the GUI does not speak TLS");
+        }
+        if (tls != null && tlsPassword == null) {
+            usageError("--tls needs --tls-password");
+        }
+        if (listen != null) {
+            listen(resolve(parseAddress("--listen", listen, ChatServer.DEFAULT_PORT)), networkInterface);
+            return;
+        }
+        if (load != null) {
+            System.setProperty("java.awt.headless", "true");
+            LoadGenerator generator = new LoadGenerator(resolve(parseAddress("--load", load,
+                    ChatServer.DEFAULT_PORT)));
+            try {
+                generator.setProtocol(protocol);
+                generator.setWireFormat(WireFormat.valueOf(format.toUpperCase()));
+                generator.setUsers(users);
+                generator.setRate(rate);
+                generator.setRampTo(rampTo);
+                generator.setDurationMillis(durationSeconds * 1000);
+                generator.setTimeoutMillis(timeoutMillis);
+                generator.setMessage(message);
+                generator.setProgress(statsSeconds * 1000L, System.out::println);
+                System.out.println(generator.run());
+            } catch (IllegalArgumentException e) {
+                usageError(e.getMessage());
+            } catch (IOException e) {
+                System.err.println("Load run failed: " + e.getMessage());
+                System.exit(1);
+            }
+            return;
+        }
+
+        Function<String, String> bot = new EchoBot();
+        if (rules != null) {
+            try {
+                IntentBot intentBot = new IntentBot(Path.of(rules));
+                intentBot.watch(1000); // Picks up edits without a restart
+                bot = intentBot;
+            } catch (IOException e) {
+                System.err.println("Cannot load intent rules: " + e.getMessage());
+                System.exit(1);
+            }
+        }
+
+        if (headless) {
+            // Keep AWT out of the process entirely.
+            System.setProperty("java.awt.headless", "true");
+            ChatServer server = null;
+            MessageLog log = null;
+            try {
+                server = new ChatServer(protocol, port);
+                server.setBot(bot);
+                server.setRooms(rooms);
+                if (threads > 0) {
+                    server.setThreads(threads);
+                }
+                if (maxConnections > 0) {
+                    server.setMaxConnections(maxConnections);
+                }
+                if (workers >= 0) {
+                    server.setWorkers(workers);
+                }
+                if (queueCapacity > 0) {
+                    server.setQueueCapacity(queueCapacity);
+                }
+                if (cacheEntries > 0) {
+                    server.setResponseCache(cacheEntries, cacheMegabytes * 1024 * 1024, cacheTtlSeconds * 1000);
+                }
+                if (metricsPort >= 0) {
+                    server.setMetricsPort(metricsPort);
+                }
+                if (overload != null) {
+                    server.setOverloadPolicy(BotPipeline.OverloadPolicy.valueOf(overload.toUpperCase()));
+                }
+                server.setCompressionThreshold(compressThreshold);
+                if (multicast != null) {
+                    server.setMulticast(resolve(parseAddress("--multicast", multicast, ChatServer.DEFAULT_PORT)),
+                            networkInterface);
+                }
+                if (rateLimit > 0) {
+                    // A second's worth of messages unless told otherwise.
+                    server.setRateLimit(rateLimit, burst > 0 ? burst : (int) Math.ceil(rateLimit));
+                    server.setGlobalRateLimit(globalRateLimit, (int) Math.max(1, Math.ceil(globalRateLimit)));
+                    server.setLimitPolicy(RateLimiter.LimitPolicy.valueOf(overLimit.toUpperCase().replace('-', '_')));
+                } else if (globalRateLimit > 0) {
+                    throw new IllegalArgumentException("--global-rate-limit needs --rate-limit");
+                }
+                if (tls != null) {
+                    try {
+                        server.setSslContext(Tls.serverContext(Path.of(tls), tlsPassword.toCharArray()));
+                    } catch (IOException e) {
+                        System.err.println(e.getMessage());
+                        System.exit(1);
+                    }
+                }
+                if (history != null) {
+                    log = new MessageLog(Path.of(history));
+                    log.setSyncPolicy(MessageLog.SyncPolicy.valueOf(historySync.toUpperCase()), 1000);
+                    log.setRetention(historySegments, 0);
+                    log.open();
+                    server.setMessageLog(log);
+                }
+            } catch (IllegalArgumentException e) {
+                usageError(e.getMessage());
+            } catch (IOException e) {
+                System.err.println("Cannot open history log: " + e.getMessage());
+                System.exit(1);
+            }
+            ChatServer running = server;
+            MessageLog openLog = log;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                running.stop();
+                if (openLog != null) {
+                    openLog.close(); // After the server, so the last replies are written too
+                }
+            }, "chat-server-shutdown"));
+            System.out.println("Starting " + server.getProtocol() + " chat server on port " + port);
+            server.start();
+            if (server.getMetricsServer() != null) {
+                System.out.println("Metrics on http://localhost:" + server.getMetricsServer().getPort() + "/metrics");
+            }
+            if (statsSeconds > 0) {
+                printStats(server, statsSeconds);
+            }
+            if (server.getAnnouncer() != null) {
+                System.out.println("Announcing each line of input to " + multicast);
+                announceInput(server);
+            }
+            return;
+        }
+
+        String host = null;
+        int serverPort = port;
+        if (connect != null) {
+            InetSocketAddress address = parseAddress("--connect", connect, port);
+            host = address.getHostString();
+            serverPort = address.getPort();
+        }
+        launchGui(host, serverPort, bot);
+    }
+
+    // host[:port], without resolving the host.
+    private static InetSocketAddress parseAddress(String flag, String value, int defaultPort) {
+        int colon = value.lastIndexOf(':');
+        String host = colon < 0 ? value : value.substring(0, colon);
+        int port = defaultPort;
+        if (colon >= 0) {
+            try {
+                port = Integer.parseInt(value.substring(colon + 1));
+            } catch (NumberFormatException e) {
+                usageError("Bad port in " + flag + " " + value);
+            }
+        }
+        return InetSocketAddress.createUnresolved(host, port);
+    }
+
+    private static InetSocketAddress resolve(InetSocketAddress address) {
+        InetSocketAddress resolved = new InetSocketAddress(address.getHostString(), address.getPort());
+        if (resolved.isUnresolved()) {
+            usageError("Unknown host: " + address.getHostString());
+        }
+        return resolved;
+    }
+
+    private static void announceInput(ChatServer server) {
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    server.announce(line);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Prints announcements from the group until killed.
+    private static void listen(InetSocketAddress group, NetworkInterface networkInterface) {
+        try {
+            MulticastListener listener = new MulticastListener(group, networkInterface, System.out::println);
+            listener.open();
+            System.out.println("Listening for announcements on " + group.getHostString() + ":" + group.getPort());
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                listener.close();
+                System.err.println(listener);
+            }, "multicast-listener-shutdown"));
+            Thread.currentThread().join();
+        } catch (IllegalArgumentException e) {
+            usageError(e.getMessage());
+        } catch (IOException e) {
+            System.err.println("Cannot join multicast group: " + e.getMessage());
+            System.exit(1);
+        } catch (InterruptedException e) {
+            // Exit quietly
+        }
+    }
+
+    // Without a host the GUI runs its own server in-process, as it always has.
+    private static void launchGui(String host, int port, Function<String, String> bot) {
         SwingUtilities.invokeLater(() -> {
-            MainFrame frame = new MainFrame();
+            MainFrame frame = host == null ? new MainFrame(bot) : new MainFrame(host, port);
             frame.setVisible(true);
         });
     }
+
+    // Traffic counters and latency percentiles, queue depth and per-stage latency for
+    // tuning the worker count, and cache hit rate.
+    private static void printStats(ChatServer server, int seconds) {
+        Thread stats = new Thread(() -> {
+            try {
+                while (true) {
+                    Thread.sleep(seconds * 1000L);
+                    System.out.println(server.getMetrics());
+                    BotPipeline pipeline = server.getPipeline();
+                    if (pipeline != null) {
+                        System.out.println(pipeline);
+                    }
+                    CachingBot cache = server.getCache();
+                    if (cache != null) {
+                        System.out.println(cache);
+                    }
+                    RoomRegistry rooms = server.getRooms();
+                    if (rooms != null) {
+                        System.out.println(rooms);
+                    }
+                    MessageLog log = server.getMessageLog();
+                    if (log != null) {
+                        System.out.println(log);
+                    }
+                    MulticastAnnouncer announcer = server.getAnnouncer();
+                    if (announcer != null) {
+                        System.out.println(announcer);
+                    }
+                    RateLimiter limiter = server.getRateLimiter();
+                    if (limiter != null) {
+                        System.out.println(limiter);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Exit quietly
+            }
+        }, "chat-server-stats");
+        stats.setDaemon(true);
+        stats.start();
+    }
+
+    private static void usageError(String message) {
+        System.err.println(message);
+        printUsage();
+        System.exit(2);
+    }
+
+    private static void printUsage() {
+        System.err.println("Usage: java Main [--connect host:port | --rules file]");
+        System.err.println("       java Main --listen group:port [--interface name]");
+        System.err.println("       java Main --load host:port [--protocol tcp|udp] [--format text|binary] [--users n]");
+        System.err.println("           [--rate per-second] [--ramp-to per-second] [--duration seconds]"
+                + " [--timeout ms]");
+        System.err.println("           [--message text] [--stats seconds]");
+        System.err.println("       java Main --headless [--protocol tcp|nio|udp] [--port n] [--threads n]"
+                + " [--max-connections n]");
+        System.err.println("           [--workers n] [--queue n] [--overload block|shed] [--stats seconds]");
+        System.err.println("           [--cache entries] [--cache-mb n] [--cache-ttl seconds] [--rules file]");
+        System.err.println("           [--metrics-port n] [--rooms]");
+        System.err.println("           [--history dir] [--history-sync batch|interval|none] [--history-segments n]");
+        System.err.println("           [--multicast group:port] [--interface name] [--compress-threshold bytes]");
+        System.err.println("           [--tls keystore.p12 --tls-password password]");
+        System.err.println("           [--rate-limit per-second] [--burst n] [--global-rate-limit per-second]"
+                + " [--over-limit slow-down|shed]");
+    }
 }
@@ -0,0 +1,273 @@
+package Metrics;
+
+import Bot.StreamingBot;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+// Counters and latency histograms for one server. Every handler owns one (or shares
+// one handed to it) and records into it on the hot path: LongAdder counters and
+// LatencyHistogram buckets, so recording never takes a lock.
+//
+// Reply latency runs from the moment a message has been read off the network to
+// the moment its reply is handed back to the socket; bot latency is the bot call on
+// its own.
+public class ServerMetrics implements ServerMetricsMBean {
+    private final LongAdder connectionsAccepted = new LongAdder();
+    private final LongAdder activeConnections = new LongAdder();
+    private final LongAdder messagesIn = new LongAdder();
+    private final LongAdder messagesOut = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder drops = new LongAdder();
+    private final LongAdder nacks = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LatencyHistogram replyLatency = new LatencyHistogram();
+    private final LatencyHistogram botLatency = new LatencyHistogram();
+    private ObjectName registeredName;
+
+    public void connectionOpened() {
+        connectionsAccepted.increment();
+        activeConnections.increment();
+    }
+
+    public void connectionClosed() {
+        activeConnections.decrement();
+    }
+
+    public void messageIn() {
+        messagesIn.increment();
+    }
+
+    public void bytesIn(int bytes) {
+        bytesIn.add(bytes);
+    }
+
+    public void bytesOut(int bytes) {
+        bytesOut.add(bytes);
+    }
+
+    // receivedNanos is the System.nanoTime() at which the request was read.
+    public void replied(long receivedNanos) {
+        messagesOut.increment();
+        replyLatency.record(System.nanoTime() - receivedNanos);
+    }
+
+    public void dropped() {
+        drops.increment();
+    }
+
+    public void nacked() {
+        nacks.increment();
+    }
+
+    public void timedOut() {
+        timeouts.increment();
+    }
+
+    // Wraps a bot so every call lands in the bot latency histogram.
+    // A streaming bot stays one, timed from the call to its last piece.
+    public Function<String, String> instrument(Function<String, String> bot) {
+        if (bot instanceof StreamingBot) {
+            StreamingBot streaming = (StreamingBot) bot;
+            return (StreamingBot) (message, onChunk) -> {
+                long start = System.nanoTime();
+                try {
+                    streaming.stream(message, onChunk);
+                } finally {
+                    botLatency.record(System.nanoTime() - start);
+                }
+            };
+        }
+        return message -> {
+            long start = System.nanoTime();
+            try {
+                return bot.apply(message);
+            } finally {
+                botLatency.record(System.nanoTime() - start);
+            }
+        };
+    }
+
+    // Registers under chatbot:type=ServerMetrics,name=<name>. Returns false if JMX
+    // refused, e.g. because the name is taken.
+    public synchronized boolean registerMBean(String name) {
+        try {
+            ObjectName objectName = new ObjectName("chatbot:type=ServerMetrics,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            registeredName = objectName;
+            return true;
+        } catch (JMException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    public synchronized void unregisterMBean() {
+        if (registeredName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+        registeredName = null;
+    }
+
+    public LatencyHistogram getReplyLatency() {
+        return replyLatency;
+    }
+
+    public LatencyHistogram getBotLatency() {
+        return botLatency;
+    }
+
+    @Override
+    public long getConnectionsAccepted() {
+        return connectionsAccepted.sum();
+    }
+
+    @Override
+    public long getActiveConnections() {
+        return activeConnections.sum();
+    }
+
+    @Override
+    public long getMessagesIn() {
+        return messagesIn.sum();
+    }
+
+    @Override
+    public long getMessagesOut() {
+        return messagesOut.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getDrops() {
+        return drops.sum();
+    }
+
+    @Override
+    public long getNacks() {
+        return nacks.sum();
+    }
+
+    @Override
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    @Override
+    public double getReplyLatencyP50Micros() {
+        return replyLatency.getQuantileNanos(0.5) / 1000.0;
+    }
+
+    @Override
+    public double getReplyLatencyP99Micros() {
+        return replyLatency.getQuantileNanos(0.99) / 1000.0;
+    }
+
+    @Override
+    public double getReplyLatencyMaxMicros() {
+        return replyLatency.getMaxNanos() / 1000.0;
+    }
+
+    @Override
+    public double getBotLatencyP50Micros() {
+        return botLatency.getQuantileNanos(0.5) / 1000.0;
+    }
+
+    @Override
+    public double getBotLatencyP99Micros() {
+        return botLatency.getQuantileNanos(0.99) / 1000.0;
+    }
+
+    @Override
+    public double getBotLatencyMaxMicros() {
+        return botLatency.getMaxNanos() / 1000.0;
+    }
+
+    // Active connections are a gauge and are left alone.
+    @Override
+    public void reset() {
+        connectionsAccepted.reset();
+        messagesIn.reset();
+        messagesOut.reset();
+        bytesIn.reset();
+        bytesOut.reset();
+        drops.reset();
+        nacks.reset();
+        timeouts.reset();
+        replyLatency.reset();
+        botLatency.reset();
+    }
+
+    // Prometheus text exposition format; histograms are exported as summaries.
+    public String toPrometheusText(String prefix) {
+        StringBuilder out = new StringBuilder(2048);
+        appendCounter(out, prefix, "connections_accepted_total", "TCP connections accepted", getConnectionsAccepted());
+        appendGauge(out, prefix, "connections_active", "TCP connections currently open", getActiveConnections());
+        appendCounter(out, prefix, "messages_in_total", "Chat messages received", getMessagesIn());
+        appendCounter(out, prefix, "messages_out_total", "Replies sent", getMessagesOut());
+        appendCounter(out, prefix, "bytes_in_total", "Bytes received", getBytesIn());
+        appendCounter(out, prefix, "bytes_out_total", "Bytes sent", getBytesOut());
+        appendCounter(out, prefix, "drops_total", "Messages dropped or shed", getDrops());
+        appendCounter(out, prefix, "nacks_total", "NACKs sent for sequence gaps", getNacks());
+        appendCounter(out, prefix, "timeouts_total", "Client requests that timed out", getTimeouts());
+        appendSummary(out, prefix, "reply_latency_seconds", "Time from request read to reply handed to the socket",
+                replyLatency);
+        appendSummary(out, prefix, "bot_latency_seconds", "Time spent in the bot", botLatency);
+        return out.toString();
+    }
+
+    public static void appendCounter(StringBuilder out, String prefix, String name, String help, long value) {
+        out.append("# HELP ").append(prefix).append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(prefix).append(name).append(" counter\n");
+        out.append(prefix).append(name).append(' ').append(value).append('\n');
+    }
+
+    public static void appendGauge(StringBuilder out, String prefix, String name, String help, double value) {
+        out.append("# HELP ").append(prefix).append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(prefix).append(name).append(" gauge\n");
+        out.append(prefix).append(name).append(' ');
+        if (value == Math.rint(value) && !Double.isInfinite(value)) {
+            out.append((long) value);
+        } else {
+            out.append(value);
+        }
+        out.append('\n');
+    }
+
+    public static void appendSummary(StringBuilder out, String prefix, String name, String help,
+            LatencyHistogram histogram) {
+        out.append("# HELP ").append(prefix).append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(prefix).append(name).append(" summary\n");
+        for (double quantile : new double[] { 0.5, 0.9, 0.99, 0.999 }) {
+            out.append(prefix).append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                    .append(histogram.getQuantileNanos(quantile) / 1e9).append('\n');
+        }
+        out.append(prefix).append(name).append("_sum ").append(histogram.getSumNanos() / 1e9).append('\n');
+        out.append(prefix).append(name).append("_count ").append(histogram.getCount()).append('\n');
+    }
+
+    @Override
+    public String toString() {
+        return "ServerMetrics[connections=" + getActiveConnections() + "/" + getConnectionsAccepted()
+                + ", in=" + getMessagesIn() + " msgs/" + getBytesIn() + " B, out=" + getMessagesOut() + " msgs/"
+                + getBytesOut() + " B, drops=" + getDrops() + ", nacks=" + getNacks() + ", timeouts="
+                + getTimeouts() + ", reply " + replyLatency + ", bot " + botLatency + "]";
+    }
+}
@@ -0,0 +1,36 @@
+package Metrics;
+
+// What ServerMetrics shows over JMX (e.g. in JConsole under "chatbot").
+public interface ServerMetricsMBean {
+    long getConnectionsAccepted();
+
+    long getActiveConnections();
+
+    long getMessagesIn();
+
+    long getMessagesOut();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getDrops();
+
+    long getNacks();
+
+    long getTimeouts();
+
+    double getReplyLatencyP50Micros();
+
+    double getReplyLatencyP99Micros();
+
+    double getReplyLatencyMaxMicros();
+
+    double getBotLatencyP50Micros();
+
+    double getBotLatencyP99Micros();
+
+    double getBotLatencyMaxMicros();
+
+    void reset();
+}
@@ -0,0 +1,240 @@
+package Networking;
+
+import Bot.StreamingBot;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+// Runs the bot off the network threads. I/O threads decode a message and queue it
+// here; a fixed pool of workers calls the bot and hands the reply back through the
+// callback, which puts it on the wire. The queue is bounded: when it is full the
+// caller either waits (and so stops reading from the network) or the message is
+// answered straight away with BUSY_REPLY, depending on the overload policy.
+public class BotPipeline {
+    public enum OverloadPolicy {
+        BLOCK, SHED
+    }
+
+    public static final String BUSY_REPLY = "Server busy, please try again later";
+
+    private final Function<String, String> bot;
+    private final BlockingQueue<Task> queue;
+    private final int queueCapacity;
+    private final OverloadPolicy overloadPolicy;
+    private final Thread[] workers;
+    private volatile boolean running = true;
+
+    private final LongAdder shed = new LongAdder();
+    // Time spent waiting in the queue, inside the bot, and handing the reply back.
+    private final Stage queueStage = new Stage("queue");
+    private final Stage botStage = new Stage("bot");
+    private final Stage replyStage = new Stage("reply");
+
+    public BotPipeline(Function<String, String> bot, int workerCount, int queueCapacity,
+            OverloadPolicy overloadPolicy) {
+        if (workerCount <= 0 || queueCapacity <= 0) {
+            throw new IllegalArgumentException("workerCount and queueCapacity must be positive");
+        }
+        this.bot = bot;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.queueCapacity = queueCapacity;
+        this.overloadPolicy = overloadPolicy;
+        this.workers = new Thread[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new Thread(this::work, "bot-worker-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    // onReply runs on a worker thread, or on the caller if the message is shed.
+    // Returns false if the message was shed.
+    public boolean submit(String message, Consumer<String> onReply) throws InterruptedException {
+        return submit(message, null, onReply);
+    }
+
+    // With a StreamingBot, onChunk gets each piece of the reply on the worker as the bot
+    // produces it, and onReply the whole reply after the last one. Other bots, and a
+    // shed message, never call onChunk.
+    public boolean submit(String message, Consumer<String> onChunk, Consumer<String> onReply)
+            throws InterruptedException {
+        Task task = new Task(message, onChunk, onReply);
+        if (overloadPolicy == OverloadPolicy.BLOCK) {
+            queue.put(task);
+        } else if (!queue.offer(task)) {
+            shed(onReply);
+            return false;
+        }
+        return queuedWhileRunning(task);
+    }
+
+    // Never blocks, whatever the policy; for callers that must not stall, like an
+    // event loop. Returns false if the message was shed.
+    public boolean trySubmit(String message, Consumer<String> onReply) {
+        Task task = new Task(message, null, onReply);
+        if (queue.offer(task)) {
+            return queuedWhileRunning(task);
+        }
+        shed(onReply);
+        return false;
+    }
+
+    // A task queued as the pipeline shut down may have missed its drain; no worker is
+    // left to take it, so it is answered here instead.
+    private boolean queuedWhileRunning(Task task) {
+        if (!running && queue.remove(task)) {
+            shed(task.onReply);
+            return false;
+        }
+        return true;
+    }
+
+    private void shed(Consumer<String> onReply) {
+        shed.increment();
+        onReply.accept(BUSY_REPLY);
+    }
+
+    private void work() {
+        while (running) {
+            Task task;
+            try {
+                task = queue.take();
+            } catch (InterruptedException e) {
+                return; // shutdown
+            }
+            long started = System.nanoTime();
+            queueStage.record(started - task.enqueued);
+
+            String reply;
+            StringBuilder whole = new StringBuilder();
+            try {
+                if (task.onChunk != null && bot instanceof StreamingBot) {
+                    ((StreamingBot) bot).stream(task.message, chunk -> {
+                        whole.append(chunk);
+                        task.onChunk.accept(chunk);
+                    });
+                    reply = whole.toString();
+                } else {
+                    reply = bot.apply(task.message);
+                }
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                // Chunks already sent stay the start of the reply.
+                reply = whole + (whole.length() > 0 ? "\n" : "") + "Error: Bot failed to answer";
+            }
+            long answered = System.nanoTime();
+            botStage.record(answered - started);
+
+            try {
+                task.onReply.accept(reply);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+            replyStage.record(System.nanoTime() - answered);
+        }
+    }
+
+    // Messages still waiting in the queue are answered with BUSY_REPLY rather than
+    // dropped, so connections waiting on them in order still get their later replies.
+    public void shutdown() {
+        running = false;
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+        Task task;
+        while ((task = queue.poll()) != null) {
+            try {
+                shed(task.onReply);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public int getWorkerCount() {
+        return workers.length;
+    }
+
+    public long getShedCount() {
+        return shed.sum();
+    }
+
+    public Stage getQueueStage() {
+        return queueStage;
+    }
+
+    public Stage getBotStage() {
+        return botStage;
+    }
+
+    public Stage getReplyStage() {
+        return replyStage;
+    }
+
+    @Override
+    public String toString() {
+        return "BotPipeline[workers=" + workers.length + ", queue=" + getQueueDepth() + "/" + queueCapacity
+                + ", shed=" + getShedCount() + ", " + queueStage + ", " + botStage + ", " + replyStage + "]";
+    }
+
+    private static final class Task {
+        private final String message;
+        private final Consumer<String> onChunk;
+        private final Consumer<String> onReply;
+        private final long enqueued = System.nanoTime();
+
+        Task(String message, Consumer<String> onChunk, Consumer<String> onReply) {
+            this.message = message;
+            this.onChunk = onChunk;
+            this.onReply = onReply;
+        }
+    }
+
+    // Latency of one stage, cheap enough to record on every message.
+    public static final class Stage {
+        private final String name;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+        Stage(String name) {
+            this.name = name;
+        }
+
+        void record(long nanos) {
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public double getMeanMicros() {
+            long n = count.sum();
+            return n == 0 ? 0 : totalNanos.sum() / 1000.0 / n;
+        }
+
+        public double getMaxMicros() {
+            return maxNanos.get() / 1000.0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s mean=%.1fus max=%.1fus", name, getMeanMicros(), getMaxMicros());
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package Networking;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// Runs the blocking half of client requests for every handler. With virtual threads
+// (JDK 21+) each request gets its own; otherwise a fixed number of platform threads
+// share the work and further requests queue up, so issuing thousands of requests
+// never means thousands of threads.
+final class ClientExecutor {
+    static final int MAX_PLATFORM_THREADS = 256;
+
+    private static final ExecutorService EXECUTOR = create();
+
+    private ClientExecutor() {
+    }
+
+    static ExecutorService get() {
+        return EXECUTOR;
+    }
+
+    // Null when the runtime has no virtual threads.
+    static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static ExecutorService create() {
+        ExecutorService virtual = newVirtualThreadPerTaskExecutor();
+        if (virtual != null) {
+            return virtual;
+        }
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(MAX_PLATFORM_THREADS, MAX_PLATFORM_THREADS,
+                30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+                    Thread t = new Thread(r, "network-client");
+                    t.setDaemon(true);
+                    return t;
+                });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+}
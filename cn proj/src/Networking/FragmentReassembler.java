@@ -0,0 +1,99 @@
+package Networking;
+
+import java.io.ByteArrayOutputStream;
+import java.net.ProtocolException;
+import java.net.SocketAddress;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// Puts fragmented UDP messages back together. Incomplete messages are dropped after
+// a timeout, and only a bounded number can be in progress at once.
+public class FragmentReassembler {
+    private final Map<Key, Partial> partials = new ConcurrentHashMap<>();
+    private final long timeoutNanos;
+    private final int maxPartials;
+
+    public FragmentReassembler(long timeoutMillis, int maxPartials) {
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.maxPartials = maxPartials;
+    }
+
+    // Returns the whole message once its last fragment arrives, otherwise null. Throws
+    // if the whole message was deflated and does not inflate.
+    public FrameCodec.Frame add(SocketAddress sender, FrameCodec.Frame fragment) throws ProtocolException {
+        Key key = new Key(sender, fragment.messageId);
+        Partial partial = partials.get(key);
+        if (partial == null) {
+            if (partials.size() >= maxPartials) {
+                evictExpired();
+                if (partials.size() >= maxPartials) {
+                    return null; // Shed rather than grow without bound
+                }
+            }
+            partial = partials.computeIfAbsent(key, k -> new Partial(fragment.count));
+        }
+
+        byte[] payload;
+        synchronized (partial) {
+            if (partial.parts.length != fragment.count || partial.parts[fragment.index] != null) {
+                return null; // Duplicate or inconsistent fragment
+            }
+            partial.parts[fragment.index] = fragment.payload;
+            if (++partial.received < partial.parts.length) {
+                return null;
+            }
+            ByteArrayOutputStream whole = new ByteArrayOutputStream();
+            for (byte[] part : partial.parts) {
+                whole.writeBytes(part);
+            }
+            payload = whole.toByteArray();
+        }
+        partials.remove(key);
+        return FrameCodec.whole(fragment.innerType, fragment.seq, payload);
+    }
+
+    public void evictExpired() {
+        long cutoff = System.nanoTime() - timeoutNanos;
+        partials.values().removeIf(partial -> partial.created - cutoff < 0);
+    }
+
+    public int getPendingCount() {
+        return partials.size();
+    }
+
+    private static final class Partial {
+        private final byte[][] parts;
+        private final long created = System.nanoTime();
+        private int received;
+
+        Partial(int count) {
+            this.parts = new byte[count][];
+        }
+    }
+
+    private static final class Key {
+        private final SocketAddress sender;
+        private final int messageId;
+
+        Key(SocketAddress sender, int messageId) {
+            this.sender = sender;
+            this.messageId = messageId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return messageId == other.messageId && sender.equals(other.sender);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(sender, messageId);
+        }
+    }
+}
@@ -0,0 +1,364 @@
+package Networking;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Binary wire format shared by the TCP and UDP handlers:
+//
+//   magic (2) | version (1) | type (1) | seq (varint) | length (varint) | payload
+//
+// Fragments of a UDP message too large for one datagram carry, after the type,
+//   inner type (1) | seq (varint) | message id (varint) | index (varint) | count (varint)
+// followed by length and their slice of the payload. Payloads are UTF-8 text.
+// FLAG_DEFLATED on a type (the inner type, for fragments) means the payload is
+// compressed with PayloadCompression; decoding inflates it, so callers only ever see
+// plain types and text. Peers only send deflated frames once a TYPE_HELLO exchange
+// has shown the other side understands them.
+// The first magic byte is not valid ASCII, so servers can tell binary peers from
+// text ones by looking at the first byte.
+public final class FrameCodec {
+    public static final byte MAGIC_0 = (byte) 0xCB;
+    public static final byte MAGIC_1 = (byte) 0x55;
+    public static final byte VERSION = 1;
+
+    public static final byte TYPE_MESSAGE = 1;
+    public static final byte TYPE_REPLY = 2;
+    public static final byte TYPE_NACK = 3;
+    public static final byte TYPE_FRAGMENT = 4;
+    // Unsolicited push of a room post; see RoomRegistry.
+    public static final byte TYPE_ROOM = 5;
+    // Sent once after connecting, with the options the sender can use, e.g. "deflate";
+    // the answer is a TYPE_HELLO with the ones the receiver agrees to.
+    public static final byte TYPE_HELLO = 6;
+    // Instead of a TYPE_REPLY when the sender is over its rate limit; see RateLimiter.
+    public static final byte TYPE_SLOW_DOWN = 7;
+    // One piece of a streamed reply: varint offset (in chars) | UTF-8 text. Sent only to
+    // peers that offered OPTION_STREAM, and always ends with a TYPE_REPLY for the same
+    // seq. Over TCP that reply carries just the text no chunk did; over UDP, where a
+    // chunk can be lost, it carries the whole reply.
+    public static final byte TYPE_CHUNK = 8;
+    // Client to UDP server: sequence numbers, as NACK-style ranges, that will never be
+    // sent again, so the server stops holding later messages back for them.
+    public static final byte TYPE_SKIP = 9;
+
+    public static final String OPTION_STREAM = "stream";
+
+    public static final byte FLAG_DEFLATED = 0x40;
+
+    public static final int NO_SEQUENCE = -1;
+    public static final int MAX_PAYLOAD_SIZE = 16 * 1024 * 1024;
+    // Keeps every datagram under a typical Ethernet MTU.
+    public static final int MAX_DATAGRAM_SIZE = 1400;
+    public static final int MAX_FRAGMENTS = 1024;
+
+    private static final int MAX_VARINT_SIZE = 5;
+    private static final int HEADER_SIZE = 4 + 2 * MAX_VARINT_SIZE;
+    private static final int FRAGMENT_HEADER_SIZE = 5 + 5 * MAX_VARINT_SIZE;
+
+    private FrameCodec() {
+    }
+
+    public static final class Frame {
+        public final byte type;
+        public final int seq;
+        public final byte[] payload;
+        // Only set on fragments
+        public final byte innerType;
+        public final int messageId;
+        public final int index;
+        public final int count;
+
+        Frame(byte type, int seq, byte[] payload, byte innerType, int messageId, int index, int count) {
+            this.type = type;
+            this.seq = seq;
+            this.payload = payload;
+            this.innerType = innerType;
+            this.messageId = messageId;
+            this.index = index;
+            this.count = count;
+        }
+
+        public String text() {
+            return new String(payload, StandardCharsets.UTF_8);
+        }
+    }
+
+    public static boolean isBinary(ByteBuffer data) {
+        return data.remaining() > 0 && data.get(data.position()) == MAGIC_0;
+    }
+
+    public static int maxEncodedSize(int payloadLength) {
+        return HEADER_SIZE + payloadLength;
+    }
+
+    public static void encode(byte type, int seq, byte[] payload, ByteBuffer out) {
+        out.put(MAGIC_0).put(MAGIC_1).put(VERSION).put(type);
+        putVarint(out, seq + 1); // 0 means "no sequence number"
+        putVarint(out, payload.length);
+        out.put(payload);
+    }
+
+    public static ByteBuffer encode(byte type, int seq, String payload) {
+        return encode(type, seq, payload, -1);
+    }
+
+    // compressThreshold is the smallest payload worth deflating; negative never deflates.
+    public static ByteBuffer encode(byte type, int seq, String payload, int compressThreshold) {
+        byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+        byte[] deflated = deflate(bytes, compressThreshold);
+        if (deflated != null) {
+            type |= FLAG_DEFLATED;
+            bytes = deflated;
+        }
+        ByteBuffer out = ByteBuffer.allocate(maxEncodedSize(bytes.length));
+        encode(type, seq, bytes, out);
+        out.flip();
+        return out;
+    }
+
+    public static void encode(byte type, int seq, byte[] payload, int compressThreshold, ByteBuffer out) {
+        byte[] deflated = deflate(payload, compressThreshold);
+        if (deflated != null) {
+            encode((byte) (type | FLAG_DEFLATED), seq, deflated, out);
+        } else {
+            encode(type, seq, payload, out);
+        }
+    }
+
+    // Null unless the payload is big enough to try and deflating shrinks it.
+    private static byte[] deflate(byte[] payload, int compressThreshold) {
+        return compressThreshold >= 0 && payload.length >= compressThreshold
+                ? PayloadCompression.compress(payload) : null;
+    }
+
+    public static List<ByteBuffer> encodeDatagrams(byte type, int seq, int messageId, byte[] payload,
+            int compressThreshold) {
+        byte[] deflated = deflate(payload, compressThreshold);
+        if (deflated != null) {
+            return encodeDatagrams((byte) (type | FLAG_DEFLATED), seq, messageId, deflated);
+        }
+        return encodeDatagrams(type, seq, messageId, payload);
+    }
+
+    // Splits a message into datagrams of at most MAX_DATAGRAM_SIZE bytes. A message that
+    // fits is sent as a single plain frame.
+    public static List<ByteBuffer> encodeDatagrams(byte type, int seq, int messageId, byte[] payload) {
+        List<ByteBuffer> datagrams = new ArrayList<>();
+        if (maxEncodedSize(payload.length) <= MAX_DATAGRAM_SIZE) {
+            ByteBuffer out = ByteBuffer.allocate(maxEncodedSize(payload.length));
+            encode(type, seq, payload, out);
+            out.flip();
+            datagrams.add(out);
+            return datagrams;
+        }
+
+        int chunk = MAX_DATAGRAM_SIZE - FRAGMENT_HEADER_SIZE;
+        int count = (payload.length + chunk - 1) / chunk;
+        if (count > MAX_FRAGMENTS) {
+            throw new IllegalArgumentException("Message of " + payload.length + " bytes needs too many fragments");
+        }
+        for (int index = 0; index < count; index++) {
+            int from = index * chunk;
+            int length = Math.min(chunk, payload.length - from);
+            ByteBuffer out = ByteBuffer.allocate(FRAGMENT_HEADER_SIZE + length);
+            out.put(MAGIC_0).put(MAGIC_1).put(VERSION).put(TYPE_FRAGMENT).put(type);
+            putVarint(out, seq + 1);
+            putVarint(out, messageId);
+            putVarint(out, index);
+            putVarint(out, count);
+            putVarint(out, length);
+            out.put(payload, from, length);
+            out.flip();
+            datagrams.add(out);
+        }
+        return datagrams;
+    }
+
+    // Decodes one frame. Returns null, with the buffer position unchanged, if the buffer
+    // does not yet hold a whole frame.
+    public static Frame decode(ByteBuffer in) throws ProtocolException {
+        int start = in.position();
+        try {
+            if (in.get() != MAGIC_0 || in.get() != MAGIC_1) {
+                throw new ProtocolException("Bad frame magic");
+            }
+            byte version = in.get();
+            if (version != VERSION) {
+                throw new ProtocolException("Unsupported frame version " + version);
+            }
+            byte type = in.get();
+            byte innerType = 0;
+            int messageId = 0;
+            int index = 0;
+            int count = 1;
+            if (type == TYPE_FRAGMENT) {
+                innerType = in.get();
+            }
+            int seq = getVarint(in) - 1;
+            if (type == TYPE_FRAGMENT) {
+                messageId = getVarint(in);
+                index = getVarint(in);
+                count = getVarint(in);
+                if (count <= 0 || count > MAX_FRAGMENTS || index >= count) {
+                    throw new ProtocolException("Bad fragment " + index + "/" + count);
+                }
+            }
+            int length = getVarint(in);
+            if (length > MAX_PAYLOAD_SIZE) {
+                throw new ProtocolException("Frame payload of " + length + " bytes is too large");
+            }
+            if (in.remaining() < length) {
+                in.position(start);
+                return null;
+            }
+            byte[] payload = new byte[length];
+            in.get(payload);
+            if (type == TYPE_FRAGMENT) {
+                return new Frame(type, seq, payload, innerType, messageId, index, count);
+            }
+            return whole(type, seq, payload);
+        } catch (BufferUnderflowException e) {
+            in.position(start);
+            return null;
+        }
+    }
+
+    // A chunk of 'text' starting 'offset' chars into the reply. Never deflated: chunks
+    // are small, and the point is to get them out fast.
+    public static ByteBuffer encodeChunk(int seq, int offset, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(MAX_VARINT_SIZE + bytes.length);
+        putVarint(payload, offset);
+        payload.put(bytes);
+        ByteBuffer out = ByteBuffer.allocate(maxEncodedSize(payload.position()));
+        encode(TYPE_CHUNK, seq, Arrays.copyOf(payload.array(), payload.position()), out);
+        out.flip();
+        return out;
+    }
+
+    public static int chunkOffset(Frame chunk) throws ProtocolException {
+        try {
+            return getVarint(ByteBuffer.wrap(chunk.payload));
+        } catch (BufferUnderflowException e) {
+            throw new ProtocolException("Truncated chunk");
+        }
+    }
+
+    public static String chunkText(Frame chunk) throws ProtocolException {
+        ByteBuffer payload = ByteBuffer.wrap(chunk.payload);
+        try {
+            getVarint(payload);
+        } catch (BufferUnderflowException e) {
+            throw new ProtocolException("Truncated chunk");
+        }
+        return new String(chunk.payload, payload.position(), payload.remaining(), StandardCharsets.UTF_8);
+    }
+
+    // Whether a HELLO payload, a comma-separated list of options, offers 'option'.
+    public static boolean offers(String hello, String option) {
+        for (String offered : hello.split(",")) {
+            if (offered.trim().equals(option)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Stream variants used over TCP.
+    public static void write(OutputStream out, byte type, int seq, String payload) throws IOException {
+        write(out, type, seq, payload, -1);
+    }
+
+    public static void write(OutputStream out, byte type, int seq, String payload, int compressThreshold)
+            throws IOException {
+        ByteBuffer frame = encode(type, seq, payload, compressThreshold);
+        out.write(frame.array(), frame.arrayOffset(), frame.limit());
+    }
+
+    // Returns null on a clean end of stream between frames.
+    public static Frame read(InputStream in) throws IOException {
+        int first = in.read();
+        if (first < 0) {
+            return null;
+        }
+        if ((byte) first != MAGIC_0 || (byte) readByte(in) != MAGIC_1) {
+            throw new ProtocolException("Bad frame magic");
+        }
+        byte version = (byte) readByte(in);
+        if (version != VERSION) {
+            throw new ProtocolException("Unsupported frame version " + version);
+        }
+        byte type = (byte) readByte(in);
+        if (type == TYPE_FRAGMENT) {
+            throw new ProtocolException("Fragments are only used over UDP");
+        }
+        int seq = readVarint(in) - 1;
+        int length = readVarint(in);
+        if (length > MAX_PAYLOAD_SIZE) {
+            throw new ProtocolException("Frame payload of " + length + " bytes is too large");
+        }
+        byte[] payload = in.readNBytes(length);
+        if (payload.length < length) {
+            throw new EOFException("Stream ended inside a frame");
+        }
+        return whole(type, seq, payload);
+    }
+
+    // A complete, unfragmented message, inflated if it was sent deflated.
+    static Frame whole(byte type, int seq, byte[] payload) throws ProtocolException {
+        if ((type & FLAG_DEFLATED) != 0) {
+            type &= ~FLAG_DEFLATED;
+            payload = PayloadCompression.decompress(payload);
+        }
+        return new Frame(type, seq, payload, (byte) 0, 0, 0, 1);
+    }
+
+    public static void putVarint(ByteBuffer out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    public static int getVarint(ByteBuffer in) throws ProtocolException {
+        int value = 0;
+        for (int shift = 0; shift < 7 * MAX_VARINT_SIZE; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new ProtocolException("Varint too long");
+    }
+
+    private static int readVarint(InputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 7 * MAX_VARINT_SIZE; shift += 7) {
+            int b = readByte(in);
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new ProtocolException("Varint too long");
+    }
+
+    private static int readByte(InputStream in) throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException("Stream ended inside a frame");
+        }
+        return b;
+    }
+}
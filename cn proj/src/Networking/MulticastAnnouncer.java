@@ -0,0 +1,244 @@
+package Networking;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Sends announcements to every listener on a multicast group with one datagram each,
+// however many listeners there are. Announcements carry the same "SEQ:n|" header as
+// unicast UDP, numbered per announcer. A listener that sees a gap sends
+// "NACK:<ranges>|n" straight back to the announcer, which sends the missing
+// announcements to the group again from a ring of recent ones. While nothing is being
+// announced, a heartbeat "HB:n" names the last sequence number so listeners can
+// still notice that the tail of a burst was lost.
+public class MulticastAnnouncer implements Closeable {
+    public static final int DEFAULT_HISTORY = 1024;
+
+    private final InetSocketAddress group;
+    private NetworkInterface networkInterface;
+    private int timeToLive = 1;
+    private boolean loopback = true;
+    private int historySize = DEFAULT_HISTORY;
+    private long heartbeatMillis = 1000;
+    // Several listeners usually miss the same datagram; one resend covers them all.
+    private long resendHoldoffNanos = TimeUnit.MILLISECONDS.toNanos(20);
+
+    private DatagramChannel channel;
+    private Thread nackReceiver;
+    private ScheduledExecutorService heartbeat;
+    private Sent[] history;
+    private int nextSeq; // guarded by this
+    private volatile long lastAnnounced;
+
+    private final LongAdder announced = new LongAdder();
+    private final LongAdder nacks = new LongAdder();
+    private final LongAdder resent = new LongAdder();
+
+    public MulticastAnnouncer(InetSocketAddress group) {
+        if (!group.getAddress().isMulticastAddress()) {
+            throw new IllegalArgumentException("Not a multicast address: " + group.getAddress().getHostAddress());
+        }
+        this.group = group;
+    }
+
+    // Defaults to the interface the operating system picks for the group.
+    public void setNetworkInterface(NetworkInterface networkInterface) {
+        this.networkInterface = networkInterface;
+    }
+
+    // 1 (the default) keeps announcements on the local network.
+    public void setTimeToLive(int timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    // Whether listeners on this host hear the announcements too. On by default.
+    public void setLoopback(boolean loopback) {
+        this.loopback = loopback;
+    }
+
+    // How many recent announcements can still be resent after a NACK.
+    public void setHistorySize(int historySize) {
+        if (historySize <= 0) {
+            throw new IllegalArgumentException("historySize must be positive");
+        }
+        this.historySize = historySize;
+    }
+
+    // 0 turns the heartbeat off.
+    public void setHeartbeatMillis(long heartbeatMillis) {
+        this.heartbeatMillis = heartbeatMillis;
+    }
+
+    public synchronized void open() throws IOException {
+        StandardProtocolFamily family = group.getAddress() instanceof Inet6Address
+                ? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET;
+        channel = DatagramChannel.open(family);
+        channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, timeToLive);
+        channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, loopback);
+        if (networkInterface != null) {
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+        }
+        // An ephemeral port of our own: listeners send their NACKs here.
+        channel.bind(new InetSocketAddress(0));
+        history = new Sent[historySize];
+
+        nackReceiver = new Thread(this::receiveNacks, "multicast-nacks");
+        nackReceiver.setDaemon(true);
+        nackReceiver.start();
+        if (heartbeatMillis > 0) {
+            heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "multicast-heartbeat");
+                t.setDaemon(true);
+                return t;
+            });
+            heartbeat.scheduleAtFixedRate(this::sendHeartbeat, heartbeatMillis, heartbeatMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Returns the announcement's sequence number.
+    public synchronized int announce(String text) throws IOException {
+        if (channel == null) {
+            throw new IllegalStateException("Announcer is not open");
+        }
+        int seq = nextSeq++;
+        byte[] datagram = ("SEQ:" + seq + "|" + text).getBytes(StandardCharsets.UTF_8);
+        Sent sent = new Sent(seq, datagram);
+        history[seq % history.length] = sent;
+        channel.send(ByteBuffer.wrap(datagram), group);
+        sent.lastSent = System.nanoTime();
+        lastAnnounced = sent.lastSent;
+        announced.increment();
+        return seq;
+    }
+
+    private void receiveNacks() {
+        ByteBuffer buffer = ByteBuffer.allocate(2048);
+        while (true) {
+            SocketAddress sender;
+            buffer.clear();
+            try {
+                sender = channel.receive(buffer);
+            } catch (ClosedChannelException e) {
+                return; // closed
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+            buffer.flip();
+            String text = StandardCharsets.UTF_8.decode(buffer).toString();
+            if (sender == null || !text.startsWith("NACK:")) {
+                continue;
+            }
+            nacks.increment();
+            int bar = text.indexOf('|');
+            try {
+                resend(text.substring(5, bar < 0 ? text.length() : bar));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private synchronized void resend(String ranges) throws IOException {
+        long now = System.nanoTime();
+        for (String range : ranges.split(",")) {
+            int dash = range.indexOf('-');
+            int from = parseInt(range, 0, dash < 0 ? range.length() : dash);
+            int to = dash < 0 ? from : parseInt(range, dash + 1, range.length());
+            // Bounded by the history, so a bogus range cannot keep us busy.
+            for (int seq = Math.max(from, nextSeq - history.length); seq >= 0 && seq <= to && seq < nextSeq; seq++) {
+                Sent sent = history[seq % history.length];
+                if (sent != null && sent.seq == seq && now - sent.lastSent > resendHoldoffNanos) {
+                    channel.send(ByteBuffer.wrap(sent.datagram), group);
+                    sent.lastSent = now;
+                    resent.increment();
+                }
+            }
+        }
+    }
+
+    private void sendHeartbeat() {
+        int last;
+        synchronized (this) {
+            last = nextSeq - 1;
+        }
+        if (last < 0 || System.nanoTime() - lastAnnounced < TimeUnit.MILLISECONDS.toNanos(heartbeatMillis)) {
+            return;
+        }
+        try {
+            channel.send(ByteBuffer.wrap(("HB:" + last).getBytes(StandardCharsets.UTF_8)), group);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static int parseInt(String s, int from, int to) {
+        try {
+            return Integer.parseInt(s, from, to, 10);
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            return -1;
+        }
+    }
+
+    public InetSocketAddress getGroup() {
+        return group;
+    }
+
+    public long getAnnouncedCount() {
+        return announced.sum();
+    }
+
+    public long getNackCount() {
+        return nacks.sum();
+    }
+
+    public long getResentCount() {
+        return resent.sum();
+    }
+
+    @Override
+    public void close() {
+        if (heartbeat != null) {
+            heartbeat.shutdownNow();
+        }
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MulticastAnnouncer[group=" + group.getAddress().getHostAddress() + ":" + group.getPort()
+                + ", announced=" + getAnnouncedCount() + ", nacks=" + getNackCount()
+                + ", resent=" + getResentCount() + "]";
+    }
+
+    private static final class Sent {
+        private final int seq;
+        private final byte[] datagram;
+        private long lastSent; // guarded by the announcer
+
+        Sent(int seq, byte[] datagram) {
+            this.seq = seq;
+            this.datagram = datagram;
+        }
+    }
+}
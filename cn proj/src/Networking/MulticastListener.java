@@ -0,0 +1,212 @@
+package Networking;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+// Receives announcements from a MulticastAnnouncer. Each announcer gets its own
+// UDPSession, starting at the first sequence number heard, so announcements are
+// handed over in order and a gap is NACKed back to the announcer in the same
+// "NACK:<ranges>|n" form the UDP server uses. Anything more than a window ahead is
+// given up on: the listener skips forward and counts what it lost.
+public class MulticastListener implements Closeable {
+    private final InetSocketAddress group;
+    private final NetworkInterface networkInterface;
+    private final Consumer<String> onAnnouncement;
+    // Only touched by the receive thread.
+    private final Map<SocketAddress, UDPSession> sessions = new HashMap<>();
+
+    private DatagramChannel channel;
+    private Thread receiver;
+
+    private final LongAdder received = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder nacks = new LongAdder();
+    private final LongAdder lost = new LongAdder();
+
+    // onAnnouncement runs on the receive thread, one announcement at a time.
+    public MulticastListener(InetSocketAddress group, NetworkInterface networkInterface,
+            Consumer<String> onAnnouncement) throws SocketException {
+        if (!group.getAddress().isMulticastAddress()) {
+            throw new IllegalArgumentException("Not a multicast address: " + group.getAddress().getHostAddress());
+        }
+        this.group = group;
+        this.networkInterface = networkInterface != null ? networkInterface : defaultInterface();
+        this.onAnnouncement = onAnnouncement;
+    }
+
+    // Joining needs an interface: the first one that is up and does multicast,
+    // falling back to loopback for a host with no network.
+    public static NetworkInterface defaultInterface() throws SocketException {
+        NetworkInterface loopback = null;
+        Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+        while (interfaces.hasMoreElements()) {
+            NetworkInterface candidate = interfaces.nextElement();
+            if (!candidate.isUp()) {
+                continue;
+            }
+            if (candidate.isLoopback()) {
+                loopback = candidate;
+            } else if (candidate.supportsMulticast()) {
+                return candidate;
+            }
+        }
+        if (loopback == null) {
+            throw new SocketException("No network interface to join a multicast group on");
+        }
+        return loopback;
+    }
+
+    public synchronized void open() throws IOException {
+        StandardProtocolFamily family = group.getAddress() instanceof Inet6Address
+                ? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET;
+        channel = DatagramChannel.open(family);
+        // Several listeners on one host share the group port.
+        channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        channel.bind(new InetSocketAddress(group.getPort()));
+        channel.join(group.getAddress(), networkInterface);
+
+        receiver = new Thread(this::receive, "multicast-listener");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    private void receive() {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        while (true) {
+            SocketAddress sender;
+            buffer.clear();
+            try {
+                sender = channel.receive(buffer);
+            } catch (ClosedChannelException e) {
+                return; // closed
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+            buffer.flip();
+            try {
+                int seq = UDPHandler.parseSequenceHeader(buffer);
+                if (seq >= 0) {
+                    onAnnouncement(sender, seq, StandardCharsets.UTF_8.decode(buffer).toString());
+                } else {
+                    String text = StandardCharsets.UTF_8.decode(buffer).toString();
+                    if (text.startsWith("HB:")) {
+                        onHeartbeat(sender, Integer.parseInt(text, 3, text.length(), 10));
+                    }
+                }
+            } catch (NumberFormatException e) {
+                // Not from an announcer; ignore it
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void onAnnouncement(SocketAddress sender, int seq, String text) throws IOException {
+        received.increment();
+        UDPSession session = sessions.get(sender);
+        if (session == null) {
+            session = new UDPSession(seq);
+            sessions.put(sender, session);
+        }
+        int expected = session.getExpected();
+        if (seq < expected) {
+            // Resent for another listener, or an old datagram
+            duplicates.increment();
+            return;
+        }
+        if (seq - expected >= UDPSession.WINDOW_SIZE) {
+            lost.add(seq - expected);
+            session = new UDPSession(seq);
+            sessions.put(sender, session);
+        }
+        List<UDPSession.Delivery> deliveries = session.receive(seq, text);
+        if (deliveries.isEmpty()) {
+            nack(sender, session.missingRanges(seq), seq);
+            return;
+        }
+        for (UDPSession.Delivery delivery : deliveries) {
+            delivered.increment();
+            try {
+                onAnnouncement.accept(delivery.content);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // A heartbeat from an announcer we have not heard yet only tells us where to start.
+    private void onHeartbeat(SocketAddress sender, int last) throws IOException {
+        UDPSession session = sessions.get(sender);
+        if (session == null) {
+            sessions.put(sender, new UDPSession(last + 1));
+        } else if (last >= session.getExpected()) {
+            nack(sender, session.missingRanges(last + 1), last);
+        }
+    }
+
+    private void nack(SocketAddress announcer, String ranges, int seq) throws IOException {
+        if (ranges.isEmpty()) {
+            return;
+        }
+        channel.send(ByteBuffer.wrap(("NACK:" + ranges + "|" + seq).getBytes(StandardCharsets.UTF_8)), announcer);
+        nacks.increment();
+    }
+
+    public long getReceivedCount() {
+        return received.sum();
+    }
+
+    public long getDeliveredCount() {
+        return delivered.sum();
+    }
+
+    public long getDuplicateCount() {
+        return duplicates.sum();
+    }
+
+    public long getNackCount() {
+        return nacks.sum();
+    }
+
+    public long getLostCount() {
+        return lost.sum();
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MulticastListener[group=" + group.getAddress().getHostAddress() + ":" + group.getPort()
+                + ", received=" + getReceivedCount() + ", delivered=" + getDeliveredCount()
+                + ", duplicates=" + getDuplicateCount() + ", nacks=" + getNackCount()
+                + ", lost=" + getLostCount() + "]";
+    }
+}
@@ -0,0 +1,320 @@
+package Networking;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+// Simulated WAN conditions for local testing. Handlers pass traffic through it:
+// datagrams can be lost (uniformly or in Gilbert-Elliott bursts), delayed with
+// jitter, queued behind a bandwidth cap, reordered and duplicated; streams only see
+// the delay, with loss turned into retransmission stalls. Every random decision
+// comes from one seeded Random, so a run can be reproduced.
+public class NetworkImpairment {
+    // Where a real stack would give up on the connection (Linux tcp_retries2); a stream
+    // that loses every segment stalls this many times and then goes through anyway.
+    private static final int MAX_STREAM_RETRANSMISSIONS = 15;
+
+    private final Random random;
+    private final ScheduledExecutorService scheduler;
+
+    private double lossRate;
+    // Gilbert-Elliott burst loss: two-state Markov chain, enabled by setBurstLoss.
+    private boolean burstLoss;
+    private double goodToBad;
+    private double badToGood;
+    private double lossInGood;
+    private double lossInBad;
+    private boolean inBadState;
+
+    private long latencyMillis;
+    private long jitterMillis;
+    private long bandwidthBytesPerSecond;
+    private double reorderRate;
+    private long reorderDelayMillis = 20;
+    private double duplicateRate;
+    private long retransmissionDelayMillis = 200;
+    private long linkFreeAtNanos;
+
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong duplicated = new AtomicLong();
+    private final AtomicLong reordered = new AtomicLong();
+
+    public NetworkImpairment(long seed) {
+        this.random = new Random(seed);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "network-impairment");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    // What setSimulatePacketLoss(true) has always meant: drop half the datagrams.
+    public static NetworkImpairment packetLoss(double lossRate) {
+        NetworkImpairment impairment = new NetworkImpairment(System.nanoTime());
+        impairment.setLossRate(lossRate);
+        return impairment;
+    }
+
+    public synchronized void setLossRate(double lossRate) {
+        this.lossRate = lossRate;
+        this.burstLoss = false;
+    }
+
+    public synchronized void setBurstLoss(double goodToBad, double badToGood, double lossInGood, double lossInBad) {
+        this.burstLoss = true;
+        this.goodToBad = goodToBad;
+        this.badToGood = badToGood;
+        this.lossInGood = lossInGood;
+        this.lossInBad = lossInBad;
+        this.inBadState = false;
+    }
+
+    public synchronized void setLatency(long latencyMillis, long jitterMillis) {
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+    }
+
+    // 0 means unlimited.
+    public synchronized void setBandwidth(long bytesPerSecond) {
+        this.bandwidthBytesPerSecond = bytesPerSecond;
+    }
+
+    // A reordered datagram is held back by delayMillis so later ones overtake it.
+    public synchronized void setReordering(double reorderRate, long delayMillis) {
+        this.reorderRate = reorderRate;
+        this.reorderDelayMillis = delayMillis;
+    }
+
+    public synchronized void setDuplicateRate(double duplicateRate) {
+        this.duplicateRate = duplicateRate;
+    }
+
+    // Stall a stream pays for each lost segment.
+    public synchronized void setRetransmissionDelayMillis(long retransmissionDelayMillis) {
+        this.retransmissionDelayMillis = retransmissionDelayMillis;
+    }
+
+    // Datagram semantics. Returns how many copies will be delivered: 0 if it was
+    // dropped, 2 if it was duplicated. 'deliver' runs on the impairment thread when
+    // a delay applies, so callers must hand over a copy of any reused buffer.
+    public int transmit(int bytes, Runnable deliver) {
+        long delayMillis;
+        boolean duplicate;
+        long duplicateDelayMillis = 0;
+        synchronized (this) {
+            if (isLost()) {
+                dropped.incrementAndGet();
+                return 0;
+            }
+            delayMillis = serializationDelayMillis(bytes) + latencyWithJitter();
+            if (reorderRate > 0 && random.nextDouble() < reorderRate) {
+                delayMillis += reorderDelayMillis;
+                reordered.incrementAndGet();
+            }
+            duplicate = duplicateRate > 0 && random.nextDouble() < duplicateRate;
+            if (duplicate) {
+                duplicateDelayMillis = delayMillis + latencyWithJitter();
+            }
+        }
+
+        schedule(deliver, delayMillis);
+        delivered.incrementAndGet();
+        if (duplicate) {
+            schedule(deliver, duplicateDelayMillis);
+            duplicated.incrementAndGet();
+            return 2;
+        }
+        return 1;
+    }
+
+    // Stream semantics (TCP): nothing is dropped or reordered, so the caller just waits
+    // this long before handing the bytes on. Each loss costs a retransmission timeout.
+    public synchronized long streamDelayMillis(int bytes) {
+        long delay = serializationDelayMillis(bytes) + latencyWithJitter();
+        for (int lost = 0; lost < MAX_STREAM_RETRANSMISSIONS && isLost(); lost++) {
+            dropped.incrementAndGet();
+            delay += retransmissionDelayMillis;
+        }
+        delivered.incrementAndGet();
+        return delay;
+    }
+
+    private boolean isLost() {
+        if (burstLoss) {
+            if (inBadState) {
+                inBadState = random.nextDouble() >= badToGood;
+            } else {
+                inBadState = random.nextDouble() < goodToBad;
+            }
+            return random.nextDouble() < (inBadState ? lossInBad : lossInGood);
+        }
+        return lossRate > 0 && random.nextDouble() < lossRate;
+    }
+
+    private long latencyWithJitter() {
+        if (jitterMillis <= 0) {
+            return latencyMillis;
+        }
+        return Math.max(0, latencyMillis + (long) (random.nextGaussian() * jitterMillis));
+    }
+
+    // Bytes queue behind each other on the simulated link, like a router buffer.
+    private long serializationDelayMillis(int bytes) {
+        if (bandwidthBytesPerSecond <= 0) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        long start = Math.max(now, linkFreeAtNanos);
+        linkFreeAtNanos = start + bytes * 1_000_000_000L / bandwidthBytesPerSecond;
+        return TimeUnit.NANOSECONDS.toMillis(linkFreeAtNanos - now);
+    }
+
+    private void schedule(Runnable deliver, long delayMillis) {
+        if (delayMillis <= 0) {
+            deliver.run();
+        } else {
+            scheduler.schedule(deliver, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Stream semantics for everything read from 'in', with whichever impairment
+    // 'impairment' returns at the time (none while it returns null). A reader thread
+    // takes bytes off 'in' as soon as they come in and the returned stream hands them
+    // on once they would have arrived, so each read is delayed from when it was sent,
+    // not from when the bytes in front of it were handed on, and order is kept.
+    public static InputStream delay(InputStream in, Supplier<NetworkImpairment> impairment, String name) {
+        DelayedInputStream delayed = new DelayedInputStream(in);
+        Thread reader = new Thread(() -> delayed.pump(impairment), "network-impairment-" + name);
+        reader.setDaemon(true);
+        reader.start();
+        return delayed;
+    }
+
+    private static final class DelayedInputStream extends InputStream {
+        // 'data' is null at the end of the stream, and 'error' set if reading failed.
+        private static final class Arrival {
+            final byte[] data;
+            final long atNanos;
+            final IOException error;
+
+            Arrival(byte[] data, long atNanos, IOException error) {
+                this.data = data;
+                this.atNanos = atNanos;
+                this.error = error;
+            }
+        }
+
+        private final InputStream in;
+        private final BlockingQueue<Arrival> arrivals = new LinkedBlockingQueue<>();
+        private Arrival current;
+        private int position;
+
+        DelayedInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        void pump(Supplier<NetworkImpairment> impairment) {
+            byte[] buffer = new byte[8192];
+            long lastArrival = System.nanoTime();
+            try {
+                int n;
+                while ((n = in.read(buffer)) >= 0) {
+                    long now = System.nanoTime();
+                    NetworkImpairment link = impairment.get();
+                    long delay = link != null ? TimeUnit.MILLISECONDS.toNanos(link.streamDelayMillis(n)) : 0;
+                    // A stream delivers in order: nothing overtakes the bytes in front of it.
+                    lastArrival = Math.max(lastArrival, now + delay);
+                    byte[] data = new byte[n];
+                    System.arraycopy(buffer, 0, data, 0, n);
+                    arrivals.add(new Arrival(data, lastArrival, null));
+                }
+                arrivals.add(new Arrival(null, lastArrival, null));
+            } catch (IOException e) {
+                arrivals.add(new Arrival(null, lastArrival, e));
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (current == null || (current.data != null && position == current.data.length)) {
+                try {
+                    current = arrivals.take();
+                    position = 0;
+                    long wait = current.atNanos - System.nanoTime();
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            if (current.error != null) {
+                throw current.error;
+            }
+            if (current.data == null) {
+                return -1;
+            }
+            int n = Math.min(len, current.data.length - position);
+            System.arraycopy(current.data, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        // Only what has already arrived, so "nothing more to read" still means a flush.
+        @Override
+        public int available() {
+            int buffered = current != null && current.data != null ? current.data.length - position : 0;
+            if (buffered == 0) {
+                Arrival next = arrivals.peek();
+                if (next != null && next.data != null && next.atNanos - System.nanoTime() <= 0) {
+                    return next.data.length;
+                }
+            }
+            return buffered;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    public long getDeliveredCount() {
+        return delivered.get();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public long getDuplicatedCount() {
+        return duplicated.get();
+    }
+
+    public long getReorderedCount() {
+        return reordered.get();
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+}
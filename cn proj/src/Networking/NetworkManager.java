@@ -1,5 +1,7 @@
 package Networking;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
@@ -8,6 +10,27 @@ public interface NetworkManager {
 
     void sendMessage(String host, int port, String message, Consumer<String> onResponseReceived);
 
+    // Completes with the reply, or exceptionally with the I/O error, or a
+    // TimeoutException once timeoutMillis pass (0 for no deadline). Cancelling the
+    // future abandons the request.
+    CompletableFuture<String> sendMessageAsync(String host, int port, String message, long timeoutMillis);
+
+    // Like sendMessageAsync, but onChunk also gets the reply piece by piece as it
+    // arrives, when the transport and the server's bot can stream it, and otherwise as
+    // one piece. Joined, the pieces are the whole reply the future completes with.
+    default CompletableFuture<String> sendMessageStreaming(String host, int port, String message, long timeoutMillis,
+            Consumer<String> onChunk) {
+        return sendMessageAsync(host, port, message, timeoutMillis).thenApply(reply -> {
+            onChunk.accept(reply);
+            return reply;
+        });
+    }
+
+    // Gets room pushes (room, text) that arrive on the client side; they are never
+    // taken for replies. Without a listener they are dropped.
+    default void setRoomListener(BiConsumer<String, String> listener) {
+    }
+
     void stopServer();
 
     void setSimulatePacketLoss(boolean simulate);
@@ -0,0 +1,593 @@
+package Networking;
+
+import History.MessageLog;
+import Metrics.ServerMetrics;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+// Non-blocking TCP server. Speaks the same newline-delimited protocol as TCPHandler,
+// but holds all connections on a few selector loops instead of one thread each.
+// With an SSLContext set, every connection runs TLS through a TlsChannel.
+public class NioTcpHandler implements NetworkManager {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_LINE_LENGTH = 1024 * 1024;
+    // A connection with more reply bytes than this waiting to be written is not read
+    // until half of them have gone, so a client that sends without reading cannot
+    // grow the heap; the kernel's buffers then push back on the client itself.
+    private static final int MAX_PENDING_BYTES = 1024 * 1024;
+    // Shared by every limited message; each one queues its own duplicate.
+    private static final ByteBuffer SLOW_DOWN_LINE = ByteBuffer.wrap(
+            (RateLimiter.SLOW_DOWN_REPLY + "\n").getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+
+    private ServerSocketChannel serverChannel;
+    private EventLoop[] loops;
+    private volatile boolean isRunning;
+    private int eventLoopCount = 1;
+    // When set, the loops only move bytes and the bot runs on the pipeline's workers.
+    private volatile BotPipeline botPipeline;
+    private volatile ServerMetrics metrics = new ServerMetrics();
+    private volatile RoomRegistry rooms;
+    private volatile MessageLog messageLog;
+    private volatile SSLContext sslContext;
+    private volatile RateLimiter rateLimiter;
+
+    // The client side is unchanged, so reuse the blocking client.
+    private final TCPHandler client = new TCPHandler();
+
+    public void setEventLoopCount(int eventLoopCount) {
+        if (eventLoopCount <= 0) {
+            throw new IllegalArgumentException("eventLoopCount must be positive");
+        }
+        this.eventLoopCount = eventLoopCount;
+    }
+
+    // A loop never blocks, so a full pipeline queue always sheds here, whatever the
+    // pipeline's overload policy.
+    public void setBotPipeline(BotPipeline botPipeline) {
+        this.botPipeline = botPipeline;
+    }
+
+    public void setMetrics(ServerMetrics metrics) {
+        this.metrics = metrics;
+        client.setMetrics(metrics);
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void setRoomRegistry(RoomRegistry rooms) {
+        this.rooms = rooms;
+    }
+
+    // Keyed by "tcp:<client host>" and answers "/history", like TCPHandler.
+    public void setMessageLog(MessageLog messageLog) {
+        this.messageLog = messageLog;
+    }
+
+    // Set before startServer; connections accepted after that use it. See Tls.
+    public void setSslContext(SSLContext sslContext) {
+        this.sslContext = sslContext;
+    }
+
+    // Checked for every message before it reaches the bot, keyed by client address.
+    public void setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    private Connection newConnection() throws IOException {
+        Connection connection = new Connection();
+        SSLContext context = sslContext;
+        if (context != null) {
+            SSLEngine engine = context.createSSLEngine();
+            engine.setUseClientMode(false);
+            connection.tls = new TlsChannel(engine);
+        }
+        return connection;
+    }
+
+    @Override
+    public void startServer(int port, Function<String, String> onMessageReceived) {
+        try {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+
+            loops = new EventLoop[eventLoopCount];
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new EventLoop(onMessageReceived);
+            }
+            // Loop 0 also owns the listening socket and hands new channels out round-robin.
+            serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+            isRunning = true;
+            for (int i = 0; i < loops.length; i++) {
+                new Thread(loops[i], "nio-loop-" + port + "-" + i).start();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void sendMessage(String host, int port, String message, Consumer<String> onResponseReceived) {
+        client.sendMessage(host, port, message, onResponseReceived);
+    }
+
+    @Override
+    public CompletableFuture<String> sendMessageAsync(String host, int port, String message, long timeoutMillis) {
+        return client.sendMessageAsync(host, port, message, timeoutMillis);
+    }
+
+    @Override
+    public void stopServer() {
+        isRunning = false;
+        try {
+            if (serverChannel != null && serverChannel.isOpen()) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (loops != null) {
+            for (EventLoop loop : loops) {
+                loop.selector.wakeup();
+            }
+        }
+    }
+
+    @Override
+    public void setRoomListener(BiConsumer<String, String> listener) {
+        client.setRoomListener(listener);
+    }
+
+    @Override
+    public void setSimulatePacketLoss(boolean simulate) {
+        // Same as TCPHandler: TCP recovers from loss below this layer.
+    }
+
+    // Per-connection state. Bytes of a line that has not been terminated yet are kept
+    // in 'partial'; replies that did not fit in the socket send buffer wait in 'pending'.
+    private static final class Connection {
+        private byte[] partial = new byte[0];
+        private int partialLength;
+        private final Queue<ByteBuffer> pending = new ArrayDeque<>();
+        // Bytes in 'pending' not yet written, and whether reading is paused on them.
+        private long pendingBytes;
+        private boolean readPaused;
+        private ReplySequencer replies;
+        private LoopRoomMember member;
+        private String peer;
+        private InetAddress address;
+        private TlsChannel tls;
+        private boolean closed;
+
+        private void queue(ByteBuffer reply) {
+            pending.add(reply);
+            pendingBytes += reply.remaining();
+        }
+
+        private void appendPartial(ByteBuffer src, int from, int to) {
+            int length = to - from;
+            if (partialLength + length > MAX_LINE_LENGTH) {
+                throw new IllegalStateException("Line exceeds " + MAX_LINE_LENGTH + " bytes");
+            }
+            if (partialLength + length > partial.length) {
+                byte[] grown = new byte[Math.max(partialLength + length, partial.length * 2)];
+                System.arraycopy(partial, 0, grown, 0, partialLength);
+                partial = grown;
+            }
+            for (int i = from; i < to; i++) {
+                partial[partialLength++] = src.get(i);
+            }
+        }
+    }
+
+    private static final class CompletedReply {
+        private final SelectionKey key;
+        private final ByteBuffer bytes;
+        // Set for room pushes, which count against the member's queue.
+        private final LoopRoomMember member;
+
+        CompletedReply(SelectionKey key, ByteBuffer bytes, LoopRoomMember member) {
+            this.key = key;
+            this.bytes = bytes;
+            this.member = member;
+        }
+    }
+
+    // Room pushes go through the loop's completed-reply queue like pipeline replies.
+    // 'queued' bounds how many are on their way to the loop; once there, a push is
+    // dropped instead if the connection already has that many writes backed up.
+    private static final class LoopRoomMember extends RoomMember {
+        private final RoomRegistry rooms;
+        private final EventLoop loop;
+        private final SelectionKey key;
+        private final int capacity;
+        private final AtomicInteger queued = new AtomicInteger();
+
+        LoopRoomMember(RoomRegistry rooms, EventLoop loop, SelectionKey key) {
+            this.rooms = rooms;
+            this.loop = loop;
+            this.key = key;
+            this.capacity = rooms.getMemberQueueCapacity();
+        }
+
+        @Override
+        protected boolean deliver(RoomRegistry.Message message) {
+            if (!key.isValid() || queued.incrementAndGet() > capacity) {
+                queued.decrementAndGet();
+                return false;
+            }
+            loop.completedReplies.add(new CompletedReply(key, message.line(), this));
+            loop.selector.wakeup();
+            return true;
+        }
+    }
+
+    private final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Function<String, String> onMessageReceived;
+        private final Queue<SocketChannel> newChannels = new ConcurrentLinkedQueue<>();
+        // Replies finished by pipeline workers, waiting for the loop to write them.
+        private final Queue<CompletedReply> completedReplies = new ConcurrentLinkedQueue<>();
+        private final Set<SelectionKey> keysToFlush = new HashSet<>();
+        // Shared by every connection on this loop; only the loop thread touches them.
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+        private int nextLoop;
+
+        EventLoop(Function<String, String> onMessageReceived) throws IOException {
+            this.selector = Selector.open();
+            this.onMessageReceived = onMessageReceived;
+        }
+
+        void adopt(SocketChannel channel) {
+            newChannels.add(channel);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (isRunning) {
+                    selector.select();
+                    registerNewChannels();
+                    queueCompletedReplies();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        try {
+                            if (key.isAcceptable()) {
+                                accept();
+                            } else {
+                                if (key.isReadable()) {
+                                    read(key);
+                                }
+                                if (key.isValid() && key.isWritable()) {
+                                    flush(key);
+                                }
+                            }
+                        } catch (IOException | RuntimeException e) {
+                            close(key);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    close(key);
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void registerNewChannels() {
+            SocketChannel channel;
+            while ((channel = newChannels.poll()) != null) {
+                register(channel);
+            }
+        }
+
+        private void register(SocketChannel channel) {
+            try {
+                channel.register(selector, SelectionKey.OP_READ, newConnection());
+            } catch (IOException e) {
+                // Client went away before we got to it, or TLS could not start
+                metrics.connectionClosed();
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // Already gone
+                }
+            }
+        }
+
+        private void queueCompletedReplies() {
+            CompletedReply reply;
+            while ((reply = completedReplies.poll()) != null) {
+                if (reply.member != null) {
+                    reply.member.queued.decrementAndGet();
+                }
+                if (!reply.key.isValid()) {
+                    continue;
+                }
+                Connection connection = (Connection) reply.key.attachment();
+                if (reply.member != null && connection.pending.size() >= reply.member.capacity) {
+                    // Slow consumer: drop the push rather than grow its backlog
+                    reply.member.rooms.recordDropped();
+                    continue;
+                }
+                connection.queue(reply.bytes);
+                keysToFlush.add(reply.key);
+            }
+            for (SelectionKey key : keysToFlush) {
+                try {
+                    flush(key);
+                } catch (IOException | RuntimeException e) {
+                    close(key);
+                }
+            }
+            keysToFlush.clear();
+        }
+
+        private ReplySequencer newReplySequencer(SelectionKey key) {
+            return new ReplySequencer(new ReplySequencer.Output() {
+                @Override
+                public void write(ByteBuffer reply) {
+                    completedReplies.add(new CompletedReply(key, reply, null));
+                }
+
+                @Override
+                public void flush() {
+                    selector.wakeup();
+                }
+            });
+        }
+
+        private void accept() throws IOException {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                metrics.connectionOpened();
+                EventLoop target = loops[nextLoop];
+                nextLoop = (nextLoop + 1) % loops.length;
+                if (target == this) {
+                    register(channel);
+                } else {
+                    target.adopt(channel);
+                }
+            }
+        }
+
+        private void read(SelectionKey key) throws IOException {
+            SocketChannel channel = (SocketChannel) key.channel();
+            Connection connection = (Connection) key.attachment();
+
+            ByteBuffer data;
+            int read;
+            if (connection.tls != null) {
+                read = connection.tls.read(channel);
+                data = connection.tls.plaintext();
+            } else {
+                readBuffer.clear();
+                read = channel.read(readBuffer);
+                readBuffer.flip();
+                data = readBuffer;
+            }
+            if (read < 0) {
+                close(key);
+                return;
+            }
+            BotPipeline pipeline = botPipeline;
+            ServerMetrics metrics = NioTcpHandler.this.metrics;
+            RoomRegistry rooms = NioTcpHandler.this.rooms;
+            MessageLog log = messageLog;
+            RateLimiter limiter = rateLimiter;
+            if ((log != null || limiter != null) && connection.address == null) {
+                connection.address = ((InetSocketAddress) channel.getRemoteAddress()).getAddress();
+            }
+            if (log != null && connection.peer == null) {
+                connection.peer = "tcp:" + connection.address.getHostAddress();
+            }
+            String peer = connection.peer;
+            metrics.bytesIn(read);
+
+            // Split on '\n'; each complete line is one chat message.
+            int lineStart = data.position();
+            int limit = data.limit();
+            for (int i = data.position(); i < limit; i++) {
+                if (data.get(i) == '\n') {
+                    connection.appendPartial(data, lineStart, i);
+                    String line = decodeLine(connection);
+                    connection.partialLength = 0;
+                    long received = System.nanoTime();
+                    metrics.messageIn();
+                    if (pipeline != null && connection.replies == null) {
+                        connection.replies = newReplySequencer(key);
+                    }
+                    if (limiter != null && !limiter.tryAcquire(connection.address)) {
+                        metrics.dropped();
+                        if (connection.replies != null) {
+                            connection.replies.nextSlot().accept(SLOW_DOWN_LINE.duplicate());
+                        } else {
+                            connection.queue(SLOW_DOWN_LINE.duplicate());
+                        }
+                    } else if (log != null && MessageLog.isCommand(line)) {
+                        String history = log.handleCommand(peer, line);
+                        if (connection.replies != null) {
+                            connection.replies.nextSlot().accept(encodeLine(history));
+                        } else {
+                            connection.queue(encodeLine(history));
+                        }
+                        metrics.replied(received);
+                    } else if (rooms != null && RoomRegistry.isCommand(line)) {
+                        if (connection.member == null) {
+                            connection.member = new LoopRoomMember(rooms, this, key);
+                        }
+                        String roomReply = rooms.handleCommand(connection.member, line);
+                        if (connection.replies != null) {
+                            connection.replies.nextSlot().accept(encodeLine(roomReply));
+                        } else {
+                            connection.queue(encodeLine(roomReply));
+                        }
+                        record(log, peer, line, roomReply);
+                        metrics.replied(received);
+                    } else if (pipeline != null) {
+                        Consumer<ByteBuffer> slot = connection.replies.nextSlot();
+                        boolean queued = pipeline.trySubmit(line, reply -> {
+                            slot.accept(encodeLine(reply));
+                            record(log, peer, line, reply);
+                            metrics.replied(received);
+                        });
+                        if (!queued) {
+                            metrics.dropped();
+                        }
+                    } else {
+                        String reply = onMessageReceived.apply(line);
+                        connection.queue(encodeLine(reply));
+                        record(log, peer, line, reply);
+                        metrics.replied(received);
+                    }
+                    lineStart = i + 1;
+                }
+            }
+            if (lineStart < limit) {
+                connection.appendPartial(data, lineStart, limit);
+            }
+
+            // A TLS read can also leave handshake messages to send.
+            if (!connection.pending.isEmpty() || connection.tls != null) {
+                flush(key);
+            }
+        }
+
+        private void record(MessageLog log, String peer, String message, String reply) {
+            if (log != null) {
+                log.append(peer, message, reply);
+            }
+        }
+
+        private ByteBuffer encodeLine(String reply) {
+            return ByteBuffer.wrap((RoomRegistry.escapeReply(reply) + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        private String decodeLine(Connection connection) {
+            int length = connection.partialLength;
+            if (length > 0 && connection.partial[length - 1] == '\r') {
+                length--;
+            }
+            return new String(connection.partial, 0, length, StandardCharsets.UTF_8);
+        }
+
+        // Coalesces queued replies into the direct write buffer so each syscall carries
+        // as many of them as fit. Leftovers stay queued and OP_WRITE is armed.
+        private void flush(SelectionKey key) throws IOException {
+            SocketChannel channel = (SocketChannel) key.channel();
+            Connection connection = (Connection) key.attachment();
+            Queue<ByteBuffer> pending = connection.pending;
+            if (connection.tls != null) {
+                // The engine gathers the queued replies into records itself.
+                long consumed = connection.tls.getPlaintextConsumed();
+                metrics.bytesOut(connection.tls.write(channel, pending));
+                connection.pendingBytes -= connection.tls.getPlaintextConsumed() - consumed;
+                setInterest(key, connection, connection.tls.hasOutput(pending));
+                return;
+            }
+
+            while (!pending.isEmpty()) {
+                writeBuffer.clear();
+                for (ByteBuffer next : pending) {
+                    int n = Math.min(next.remaining(), writeBuffer.remaining());
+                    ByteBuffer slice = next.duplicate();
+                    slice.limit(slice.position() + n);
+                    writeBuffer.put(slice);
+                    if (!writeBuffer.hasRemaining()) {
+                        break;
+                    }
+                }
+                writeBuffer.flip();
+                int written = channel.write(writeBuffer);
+                metrics.bytesOut(written);
+                connection.pendingBytes -= written;
+
+                // Drop what was written from the head of the queue.
+                while (written > 0) {
+                    ByteBuffer head = pending.peek();
+                    int n = Math.min(written, head.remaining());
+                    head.position(head.position() + n);
+                    written -= n;
+                    if (!head.hasRemaining()) {
+                        pending.poll();
+                    }
+                }
+                if (writeBuffer.hasRemaining()) {
+                    break; // Socket buffer is full
+                }
+            }
+
+            setInterest(key, connection, !pending.isEmpty());
+        }
+
+        // Reading stops above MAX_PENDING_BYTES and resumes at half of it. A key that has
+        // nothing to write keeps reading, so it is never left waiting on neither.
+        private void setInterest(SelectionKey key, Connection connection, boolean writing) {
+            if (connection.pendingBytes > MAX_PENDING_BYTES) {
+                connection.readPaused = true;
+            } else if (connection.pendingBytes <= MAX_PENDING_BYTES / 2) {
+                connection.readPaused = false;
+            }
+            boolean reading = !connection.readPaused || !writing;
+            key.interestOps((reading ? SelectionKey.OP_READ : 0) | (writing ? SelectionKey.OP_WRITE : 0));
+        }
+
+        private void close(SelectionKey key) {
+            Object attachment = key.attachment();
+            if (attachment instanceof Connection && !((Connection) attachment).closed) {
+                Connection connection = (Connection) attachment;
+                connection.closed = true;
+                metrics.connectionClosed();
+                if (connection.member != null) {
+                    connection.member.rooms.leaveAll(connection.member);
+                }
+                if (connection.tls != null && key.channel().isOpen()) {
+                    connection.tls.close((SocketChannel) key.channel());
+                }
+            }
+            key.cancel();
+            try {
+                key.channel().close();
+            } catch (IOException e) {
+                // Ignore, connection is going away anyway
+            }
+        }
+    }
+}
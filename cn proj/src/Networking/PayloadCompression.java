@@ -0,0 +1,144 @@
+package Networking;
+
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Deflate for frame payloads, primed with a preset dictionary of everyday chat text.
+// Without one, deflate has nothing to refer back to at the start of a message, and a
+// chat message is all start. A deflated payload is
+//
+//   original length (varint) | raw deflate data
+//
+// Deflaters and inflaters hold native zlib state and are slow to create, so each
+// thread keeps one of each and resets it between messages. Peers agree to use this
+// with a TYPE_HELLO frame when they connect; see FrameCodec.
+public final class PayloadCompression {
+    public static final String NAME = "deflate";
+    // Deflating costs about 10us even for a tiny message, so small ones are not worth it.
+    public static final int DEFAULT_THRESHOLD = 256;
+
+    // zlib looks for matches at the end of the dictionary first, so the most common
+    // text goes last. Changing it breaks compatibility with running peers.
+    private static final byte[] DICTIONARY = (
+            "please could you would should about because really something anything nothing everyone "
+            + "morning evening tonight tomorrow yesterday today weekend meeting message question answer "
+            + "problem issue error working server client connection network protocol packet datagram "
+            + "handshake reliable retransmission timeout latency delivery order lost again try "
+            + "TCP is connection-oriented and reliable: it sets up a connection with a 3-way handshake "
+            + "and retransmits lost segments. UDP is connectionless: datagrams may be lost or arrive "
+            + "out of order, but there is no handshake delay. Ask me about TCP, UDP, handshakes or "
+            + "packet loss. Server busy, please try again later. Goodbye, have a nice day! "
+            + "You're welcome! Hello! How can I help you today? "
+            + "I don't know, I think that's a good idea. Can you help me with this? "
+            + "Yes, no, maybe, okay, thanks, thank you, sorry, what do you mean? "
+            + "/join /leave /say ROOM: the and that this with have for not you are was but what "
+            + "when where which there their they will just like know want need time Bot: I received '")
+            .getBytes(StandardCharsets.US_ASCII);
+
+    // Reused buffers above this size would pin too much memory per thread.
+    private static final int MAX_SCRATCH_SIZE = 64 * 1024;
+
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(
+            () -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(() -> new Inflater(true));
+    private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[1024]);
+
+    private PayloadCompression() {
+    }
+
+    // Returns the deflated payload, or null if deflating would not make it smaller.
+    public static byte[] compress(byte[] payload) {
+        // The output only has to hold something smaller than the input.
+        int limit = payload.length - 1;
+        int headerSize = varintSize(payload.length);
+        if (limit <= headerSize) {
+            return null;
+        }
+        byte[] out = scratch(limit);
+        ByteBuffer header = ByteBuffer.wrap(out);
+        FrameCodec.putVarint(header, payload.length);
+
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(payload);
+        deflater.finish();
+        int length = headerSize;
+        while (!deflater.finished() && length < limit) {
+            length += deflater.deflate(out, length, limit - length);
+        }
+        if (!deflater.finished()) {
+            return null;
+        }
+        return Arrays.copyOf(out, length);
+    }
+
+    public static byte[] decompress(byte[] data) throws ProtocolException {
+        ByteBuffer in = ByteBuffer.wrap(data);
+        int length;
+        try {
+            length = FrameCodec.getVarint(in);
+        } catch (BufferUnderflowException e) {
+            throw new ProtocolException("Truncated deflated payload");
+        }
+        if (length < 0 || length > FrameCodec.MAX_PAYLOAD_SIZE) {
+            throw new ProtocolException("Deflated payload of " + length + " bytes is too large");
+        }
+
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setDictionary(DICTIONARY);
+        inflater.setInput(data, in.position(), in.remaining());
+        // Never inflates past the declared length, so a small frame cannot expand
+        // into an unbounded amount of memory.
+        byte[] out = new byte[length];
+        int filled = 0;
+        try {
+            while (filled < length && !inflater.finished()) {
+                int n = inflater.inflate(out, filled, length - filled);
+                if (n == 0) {
+                    break; // Ran out of input
+                }
+                filled += n;
+            }
+        } catch (DataFormatException e) {
+            throw new ProtocolException("Corrupt deflated payload: " + e.getMessage());
+        }
+        if (filled != length) {
+            throw new ProtocolException("Deflated payload inflates to " + filled + " bytes, expected " + length);
+        }
+        return out;
+    }
+
+    // Whether a HELLO payload, a comma-separated list of options, offers compression.
+    public static boolean isOffered(String hello) {
+        return FrameCodec.offers(hello, NAME);
+    }
+
+    private static byte[] scratch(int size) {
+        if (size > MAX_SCRATCH_SIZE) {
+            return new byte[size];
+        }
+        byte[] scratch = SCRATCH.get();
+        if (scratch.length < size) {
+            scratch = new byte[Math.max(size, scratch.length * 2)];
+            SCRATCH.set(scratch);
+        }
+        return scratch;
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+}
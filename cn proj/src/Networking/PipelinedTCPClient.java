@@ -0,0 +1,143 @@
+package Networking;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+// Keeps up to 'depth' requests in flight on a single TCP connection. The server
+// answers in order, so replies are matched to callbacks first-in first-out.
+public class PipelinedTCPClient implements Closeable {
+    private static final String CLOSED_RESPONSE = "Error: Connection closed";
+
+    private final Socket socket;
+    private final Thread writer;
+    private final Semaphore window;
+    private final BlockingQueue<String> outbound = new LinkedBlockingQueue<>();
+    private final Queue<Consumer<String>> awaitingReply = new ConcurrentLinkedQueue<>();
+    private final Object sendLock = new Object();
+    private volatile boolean closed;
+    private volatile BiConsumer<String, String> roomListener;
+
+    public PipelinedTCPClient(String host, int port, int depth) throws IOException {
+        if (depth <= 0) {
+            throw new IllegalArgumentException("depth must be positive");
+        }
+        this.window = new Semaphore(depth);
+        this.socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.connect(new InetSocketAddress(host, port), 5000);
+
+        String name = host + ":" + port;
+        writer = new Thread(this::writeLoop, "tcp-pipeline-writer-" + name);
+        writer.setDaemon(true);
+        writer.start();
+        Thread reader = new Thread(this::readLoop, "tcp-pipeline-reader-" + name);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    // Room pushes take no part in reply matching; see RoomRegistry.
+    public void setRoomListener(BiConsumer<String, String> roomListener) {
+        this.roomListener = roomListener;
+    }
+
+    // Blocks while 'depth' requests are already waiting for a reply.
+    public void send(String message, Consumer<String> onResponseReceived) throws InterruptedException {
+        window.acquire();
+        synchronized (sendLock) {
+            if (closed) {
+                window.release();
+                onResponseReceived.accept(CLOSED_RESPONSE);
+                return;
+            }
+            // Callback and message must be queued in the same order.
+            awaitingReply.add(onResponseReceived);
+            outbound.add(message);
+        }
+    }
+
+    public int getInFlightCount() {
+        return awaitingReply.size();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    // Writes everything queued so far and then flushes once, so a burst of requests
+    // goes out in as few segments as possible.
+    private void writeLoop() {
+        List<String> batch = new ArrayList<>();
+        try {
+            Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            while (!closed) {
+                batch.add(outbound.take());
+                outbound.drainTo(batch);
+                for (String message : batch) {
+                    out.write(message);
+                    out.write('\n');
+                }
+                out.flush();
+                batch.clear();
+            }
+        } catch (IOException e) {
+            close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void readLoop() {
+        try (BufferedReader in = new BufferedReader(
+                new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+            String response;
+            while ((response = in.readLine()) != null) {
+                if (RoomRegistry.isPush(response)) {
+                    RoomRegistry.deliverPush(response.substring(RoomRegistry.PUSH_PREFIX.length()), roomListener);
+                    continue;
+                }
+                Consumer<String> callback = awaitingReply.poll();
+                // A line nobody asked for took no permit, so it must not give one back.
+                if (callback != null) {
+                    window.release();
+                    callback.accept(RoomRegistry.unescapeReply(response));
+                }
+            }
+        } catch (IOException e) {
+            // Treated the same as the server closing the connection
+        } finally {
+            close();
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (sendLock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        writer.interrupt(); // Otherwise it waits in outbound.take() forever
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+        Consumer<String> callback;
+        while ((callback = awaitingReply.poll()) != null) {
+            window.release();
+            callback.accept(CLOSED_RESPONSE);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package Networking;
+
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Token buckets per client address, plus an optional one for the whole server, checked
+// before a message reaches the bot. A bucket holds 'burst' tokens and refills at 'rate'
+// per second; a message takes one.
+//
+// Each bucket is a single timestamp: the time at which it will be full again. Taking a
+// token pushes that time out by one refill interval, and a bucket that would end up more
+// than 'burst' intervals ahead of now is empty. So checking and taking is one CAS, with
+// no lock and no refill thread, and a bucket whose time has passed is full, no different
+// from one that was never created. The sweeper drops those, which keeps the map as small
+// as the set of clients actually sending.
+public class RateLimiter implements AutoCloseable {
+    // What happens to a message over the limit. A TCP reply is matched to its request by
+    // order, so TCP always answers SLOW_DOWN; SHED only drops UDP messages.
+    public enum LimitPolicy {
+        SLOW_DOWN, SHED
+    }
+
+    public static final String SLOW_DOWN_REPLY = "Slow down, you are sending messages too fast";
+
+    private final long clientInterval;
+    private final long clientDepth;
+    private final Map<InetAddress, AtomicLong> clients = new ConcurrentHashMap<>();
+    private volatile int maxClients = 100000;
+    private volatile LimitPolicy policy = LimitPolicy.SLOW_DOWN;
+
+    private volatile long globalInterval;
+    private volatile long globalDepth;
+    private final AtomicLong global = new AtomicLong();
+
+    private final ScheduledExecutorService sweeper;
+
+    private final LongAdder allowed = new LongAdder();
+    private final LongAdder limitedClient = new LongAdder();
+    private final LongAdder limitedGlobal = new LongAdder();
+    private final LongAdder untracked = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+
+    // 'rate' messages per second per client, with bursts of up to 'burst'.
+    public RateLimiter(double rate, int burst) {
+        if (rate <= 0 || burst <= 0) {
+            throw new IllegalArgumentException("rate and burst must be positive");
+        }
+        this.clientInterval = intervalNanos(rate);
+        this.clientDepth = clientInterval * burst;
+        sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "rate-limiter-sweeper");
+            t.setDaemon(true);
+            return t;
+        });
+        sweeper.scheduleWithFixedDelay(this::evictIdle, 1, 1, TimeUnit.SECONDS);
+    }
+
+    private static long intervalNanos(double rate) {
+        return Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / rate));
+    }
+
+    // Caps the whole server as well, whoever is sending. A rate of 0 (the default)
+    // leaves only the per-client limit.
+    public void setGlobalLimit(double rate, int burst) {
+        if (rate < 0 || (rate > 0 && burst <= 0)) {
+            throw new IllegalArgumentException("rate must not be negative and burst must be positive");
+        }
+        globalInterval = rate > 0 ? intervalNanos(rate) : 0;
+        globalDepth = globalInterval * burst;
+    }
+
+    // Clients beyond this many, when none of the tracked ones has gone quiet, are only
+    // held to the global limit until the sweeper makes room.
+    public void setMaxClients(int maxClients) {
+        if (maxClients <= 0) {
+            throw new IllegalArgumentException("maxClients must be positive");
+        }
+        this.maxClients = maxClients;
+    }
+
+    public void setPolicy(LimitPolicy policy) {
+        this.policy = policy;
+    }
+
+    public LimitPolicy getPolicy() {
+        return policy;
+    }
+
+    // Takes a token for one message from 'client'. Returns false if it is over its
+    // own limit or the server is over the global one.
+    public boolean tryAcquire(InetAddress client) {
+        long now = System.nanoTime();
+        AtomicLong bucket = clients.get(client);
+        if (bucket == null) {
+            if (clients.size() >= maxClients) {
+                untracked.increment();
+            } else {
+                bucket = clients.computeIfAbsent(client, k -> new AtomicLong(now));
+            }
+        }
+        if (bucket != null && !take(bucket, now, clientInterval, clientDepth)) {
+            limitedClient.increment();
+            return false;
+        }
+        long interval = globalInterval;
+        if (interval > 0 && !take(global, now, interval, globalDepth)) {
+            if (bucket != null) {
+                bucket.addAndGet(-clientInterval); // Give the client its token back
+            }
+            limitedGlobal.increment();
+            return false;
+        }
+        allowed.increment();
+        return true;
+    }
+
+    private static boolean take(AtomicLong bucket, long now, long interval, long depth) {
+        while (true) {
+            long fullAt = bucket.get();
+            long next = Math.max(fullAt - now, 0) + interval;
+            if (next > depth) {
+                return false;
+            }
+            if (bucket.compareAndSet(fullAt, now + next)) {
+                return true;
+            }
+        }
+    }
+
+    // A full bucket is the same as no bucket. A message racing with its removal may
+    // land on the removed one and go uncounted, which only errs in the client's favour.
+    public void evictIdle() {
+        long now = System.nanoTime();
+        clients.values().removeIf(bucket -> {
+            if (bucket.get() - now <= 0) {
+                evicted.increment();
+                return true;
+            }
+            return false;
+        });
+    }
+
+    public int getClientCount() {
+        return clients.size();
+    }
+
+    public long getAllowedCount() {
+        return allowed.sum();
+    }
+
+    public long getLimitedCount() {
+        return limitedClient.sum() + limitedGlobal.sum();
+    }
+
+    public long getClientLimitedCount() {
+        return limitedClient.sum();
+    }
+
+    public long getGlobalLimitedCount() {
+        return limitedGlobal.sum();
+    }
+
+    public long getEvictedCount() {
+        return evicted.sum();
+    }
+
+    @Override
+    public void close() {
+        sweeper.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        return "RateLimiter[clients=" + getClientCount() + ", allowed=" + getAllowedCount()
+                + ", limited=" + getClientLimitedCount() + " client/" + getGlobalLimitedCount() + " global"
+                + ", untracked=" + untracked.sum() + ", evicted=" + getEvictedCount() + ", policy=" + policy + "]";
+    }
+}
@@ -0,0 +1,111 @@
+package Networking;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+// Pipeline workers can finish a connection's messages out of order, but a line- or
+// frame-based client matches replies to requests by position. Each request takes a
+// slot when it is read; replies, already encoded by the worker, are written strictly
+// in slot order.
+final class ReplySequencer {
+    // Called on bot workers under the sequencer's lock, so it must not block on the
+    // network: implementations queue the bytes for the connection's own writer.
+    interface Output {
+        void write(ByteBuffer reply) throws IOException;
+
+        // Called once every reply handed out so far has been written.
+        void flush() throws IOException;
+    }
+
+    private final Output output;
+    private final Map<Integer, Slot> ready = new HashMap<>();
+    private int nextSlot;
+    private int nextWrite;
+    private boolean failed;
+
+    // What a slot has that is not yet written, and whether its reply is complete.
+    private static final class Slot {
+        private final ArrayDeque<ByteBuffer> parts = new ArrayDeque<>();
+        private boolean done;
+    }
+
+    // A slot whose reply comes in several parts, e.g. the chunks of a streamed reply.
+    // Parts of the slot being written go out, and are flushed, as soon as they arrive;
+    // those of later slots wait their turn.
+    final class StreamSlot {
+        private final int slot;
+
+        private StreamSlot(int slot) {
+            this.slot = slot;
+        }
+
+        void partial(ByteBuffer part) {
+            complete(slot, part, false);
+        }
+
+        void last(ByteBuffer part) {
+            complete(slot, part, true);
+        }
+    }
+
+    ReplySequencer(Output output) {
+        this.output = output;
+    }
+
+    synchronized Consumer<ByteBuffer> nextSlot() {
+        return nextStreamSlot()::last;
+    }
+
+    synchronized StreamSlot nextStreamSlot() {
+        return new StreamSlot(nextSlot++);
+    }
+
+    private synchronized void complete(int slot, ByteBuffer part, boolean last) {
+        Slot pending = ready.computeIfAbsent(slot, k -> new Slot());
+        pending.parts.add(part);
+        pending.done |= last;
+        try {
+            boolean streamed = false;
+            while ((pending = ready.get(nextWrite)) != null) {
+                ByteBuffer next;
+                while ((next = pending.parts.poll()) != null) {
+                    if (!failed) {
+                        output.write(next);
+                        streamed = true;
+                    }
+                }
+                if (!pending.done) {
+                    break; // Later slots wait for the rest of this one
+                }
+                ready.remove(nextWrite++);
+                streamed = false;
+            }
+            if (!failed && (nextWrite == nextSlot || streamed)) {
+                output.flush();
+            }
+        } catch (IOException e) {
+            failed = true; // Connection is gone; keep counting slots so drain still finishes
+            while ((pending = ready.get(nextWrite)) != null && pending.done) {
+                ready.remove(nextWrite++);
+            }
+        }
+        notifyAll();
+    }
+
+    // Waits until every reply handed out so far has been written, or the timeout passes.
+    synchronized boolean awaitDrained(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (nextWrite != nextSlot) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,18 @@
+package Networking;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// One connection (or UDP peer) that has joined at least one room. Each transport
+// supplies its own delivery; it must never block the thread that posted.
+public abstract class RoomMember {
+    private final Set<String> rooms = ConcurrentHashMap.newKeySet();
+
+    // Called on the posting thread. Returns false if the message was dropped for this
+    // member, e.g. because its outbound queue is full.
+    protected abstract boolean deliver(RoomRegistry.Message message);
+
+    Set<String> getRooms() {
+        return rooms;
+    }
+}
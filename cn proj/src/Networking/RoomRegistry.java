@@ -0,0 +1,279 @@
+package Networking;
+
+import History.MessageLog;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+// Chat rooms on top of the request/reply protocol. A client joins with "/join room",
+// posts with "/say room message" and leaves with "/leave room"; each command gets an
+// ordinary reply, so replies still line up with requests. A post is pushed to every
+// other member of the room as "ROOM:room|message" (a line over TCP, a datagram over
+// UDP, a TYPE_ROOM frame for binary clients).
+//
+// A post is encoded once per format and every member gets a view of the same bytes.
+// Members queue it without blocking, so a slow member only ever loses its own pushes.
+public class RoomRegistry {
+    public static final String PUSH_PREFIX = "ROOM:";
+    static final char ESCAPE = '\\';
+    public static final int MAX_ROOM_NAME_LENGTH = 64;
+    private static final String USAGE = "Usage: /join room | /leave room | /say room message";
+
+    private final Map<String, Set<RoomMember>> rooms = new ConcurrentHashMap<>();
+    private final AtomicInteger messageIds = new AtomicInteger();
+    private int memberQueueCapacity = 256;
+    private volatile MessageLog messageLog;
+
+    private final LongAdder posts = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    // Pushes a member may have waiting before further ones are dropped for it.
+    public void setMemberQueueCapacity(int memberQueueCapacity) {
+        if (memberQueueCapacity <= 0) {
+            throw new IllegalArgumentException("memberQueueCapacity must be positive");
+        }
+        this.memberQueueCapacity = memberQueueCapacity;
+    }
+
+    public int getMemberQueueCapacity() {
+        return memberQueueCapacity;
+    }
+
+    // Posts are appended under "room:<name>", with an empty reply.
+    public void setMessageLog(MessageLog messageLog) {
+        this.messageLog = messageLog;
+    }
+
+    // Cheap enough to call on every message: anything not starting with '/' is
+    // rejected on the first character.
+    public static boolean isCommand(String line) {
+        return line.startsWith("/join ") || line.startsWith("/leave ") || line.startsWith("/say ");
+    }
+
+    // Client side: a push can arrive ahead of any reply on the same connection or
+    // socket, so clients check for one before matching what they read to a request.
+    public static boolean isPush(String line) {
+        return line.startsWith(PUSH_PREFIX);
+    }
+
+    // In text, a reply that starts like a push, or like an escaped reply, is sent with
+    // one more ESCAPE in front; servers escape every text reply and clients unescape
+    // every reply they match, so no reply is ever taken for a push.
+    static String escapeReply(String reply) {
+        boolean escape = reply.startsWith(PUSH_PREFIX) || (!reply.isEmpty() && reply.charAt(0) == ESCAPE);
+        return escape ? ESCAPE + reply : reply;
+    }
+
+    static String unescapeReply(String line) {
+        return !line.isEmpty() && line.charAt(0) == ESCAPE ? line.substring(1) : line;
+    }
+
+    // Hands "room|text" (a push line without its prefix, or a TYPE_ROOM payload) to
+    // the listener, if there is one.
+    static void deliverPush(String roomAndText, BiConsumer<String, String> listener) {
+        int bar = roomAndText.indexOf('|');
+        if (listener != null && bar > 0) {
+            listener.accept(roomAndText.substring(0, bar), roomAndText.substring(bar + 1));
+        }
+    }
+
+    // Returns the reply to a room command, or null if the line is not one and should
+    // go to the bot instead.
+    public String handleCommand(RoomMember member, String line) {
+        if (!isCommand(line)) {
+            return null;
+        }
+        String[] parts = line.split(" ", 3);
+        String room = parts[1];
+        if (room.isEmpty() || room.length() > MAX_ROOM_NAME_LENGTH || room.indexOf('|') >= 0) {
+            return USAGE;
+        }
+        switch (parts[0]) {
+            case "/join":
+                return "Joined " + room + " (" + join(room, member) + " members)";
+            case "/leave":
+                return leave(room, member) ? "Left " + room : "Not in " + room;
+            default:
+                if (parts.length < 3) {
+                    return USAGE;
+                }
+                if (!member.getRooms().contains(room)) {
+                    return "Join " + room + " first";
+                }
+                return "Sent to " + broadcast(room, member, parts[2]) + " members of " + room;
+        }
+    }
+
+    // Returns the room's size after joining.
+    public int join(String room, RoomMember member) {
+        member.getRooms().add(room);
+        return rooms.compute(room, (name, members) -> {
+            if (members == null) {
+                members = ConcurrentHashMap.newKeySet();
+            }
+            members.add(member);
+            return members;
+        }).size();
+    }
+
+    public boolean leave(String room, RoomMember member) {
+        if (!member.getRooms().remove(room)) {
+            return false;
+        }
+        // An empty room is removed in the same step, so a concurrent join recreates it.
+        rooms.computeIfPresent(room, (name, members) -> {
+            members.remove(member);
+            return members.isEmpty() ? null : members;
+        });
+        return true;
+    }
+
+    // For a connection that went away.
+    public void leaveAll(RoomMember member) {
+        for (String room : member.getRooms()) {
+            leave(room, member);
+        }
+    }
+
+    // Pushes text to everyone in the room except 'from' (which may be null). Returns
+    // how many members accepted it.
+    public int broadcast(String room, RoomMember from, String text) {
+        Set<RoomMember> members = rooms.get(room);
+        posts.increment();
+        MessageLog log = messageLog;
+        if (log != null) {
+            log.append("room:" + room, text, "");
+        }
+        if (members == null) {
+            return 0;
+        }
+        Message message = new Message(room, text, messageIds.incrementAndGet());
+        int accepted = 0;
+        int rejected = 0;
+        for (RoomMember member : members) {
+            if (member == from) {
+                continue;
+            }
+            if (member.deliver(message)) {
+                accepted++;
+            } else {
+                rejected++;
+            }
+        }
+        delivered.add(accepted);
+        dropped.add(rejected);
+        return accepted;
+    }
+
+    // For members that accepted a push but had to drop it later on.
+    void recordDropped() {
+        delivered.decrement();
+        dropped.increment();
+    }
+
+    public int getRoomCount() {
+        return rooms.size();
+    }
+
+    public int getMemberCount(String room) {
+        Set<RoomMember> members = rooms.get(room);
+        return members == null ? 0 : members.size();
+    }
+
+    public long getPostCount() {
+        return posts.sum();
+    }
+
+    public long getDeliveredCount() {
+        return delivered.sum();
+    }
+
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "RoomRegistry[rooms=" + getRoomCount() + ", posts=" + getPostCount() + ", delivered="
+                + getDeliveredCount() + ", dropped=" + getDroppedCount() + "]";
+    }
+
+    // One post. Each encoding is built the first time a member asks for it, on the
+    // posting thread, and every call hands out a fresh view of the same bytes.
+    public static final class Message {
+        private final String room;
+        private final String text;
+        private final int id;
+        private byte[] payload;
+        private ByteBuffer line;
+        private ByteBuffer frame;
+        private List<ByteBuffer> datagramFrames;
+
+        Message(String room, String text, int id) {
+            this.room = room;
+            this.text = text;
+            this.id = id;
+        }
+
+        public String getRoom() {
+            return room;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        // "ROOM:room|text\n" for line-based streams.
+        public ByteBuffer line() {
+            if (line == null) {
+                line = ByteBuffer.wrap((PUSH_PREFIX + room + "|" + text + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+            return line.duplicate();
+        }
+
+        // The same line without the newline, for text UDP peers.
+        public ByteBuffer datagram() {
+            ByteBuffer datagram = line();
+            datagram.limit(datagram.limit() - 1);
+            return datagram;
+        }
+
+        // A TYPE_ROOM frame carrying "room|text", for binary streams.
+        public ByteBuffer frame() {
+            if (frame == null) {
+                frame = ByteBuffer.allocate(FrameCodec.maxEncodedSize(payload().length));
+                FrameCodec.encode(FrameCodec.TYPE_ROOM, FrameCodec.NO_SEQUENCE, payload(), frame);
+                frame.flip();
+            }
+            return frame.duplicate();
+        }
+
+        // The frame split into datagrams, for binary UDP peers.
+        public List<ByteBuffer> datagramFrames() {
+            if (datagramFrames == null) {
+                datagramFrames = FrameCodec.encodeDatagrams(FrameCodec.TYPE_ROOM, FrameCodec.NO_SEQUENCE, id,
+                        payload());
+            }
+            List<ByteBuffer> views = new ArrayList<>(datagramFrames.size());
+            for (ByteBuffer datagram : datagramFrames) {
+                views.add(datagram.duplicate());
+            }
+            return views;
+        }
+
+        private byte[] payload() {
+            if (payload == null) {
+                payload = (room + "|" + text).getBytes(StandardCharsets.UTF_8);
+            }
+            return payload;
+        }
+    }
+}
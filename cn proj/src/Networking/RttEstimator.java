@@ -0,0 +1,48 @@
+package Networking;
+
+// Smoothed round-trip time and retransmission timeout, computed the way TCP does it
+// (RFC 6298): SRTT/RTTVAR with gains 1/8 and 1/4, RTO = SRTT + 4 * RTTVAR.
+public class RttEstimator {
+    private static final long INITIAL_RTO_MILLIS = 1000;
+
+    private final long minRtoMillis;
+    private final long maxRtoMillis;
+    private double srtt = -1;
+    private double rttvar;
+    private long rto = INITIAL_RTO_MILLIS;
+
+    public RttEstimator(long minRtoMillis, long maxRtoMillis) {
+        this.minRtoMillis = minRtoMillis;
+        this.maxRtoMillis = maxRtoMillis;
+    }
+
+    // Only feed samples from segments that were sent once (Karn's algorithm);
+    // otherwise there is no telling which transmission the ACK belongs to.
+    public synchronized void sample(long rttMillis) {
+        if (srtt < 0) {
+            srtt = rttMillis;
+            rttvar = rttMillis / 2.0;
+        } else {
+            rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - rttMillis);
+            srtt = 0.875 * srtt + 0.125 * rttMillis;
+        }
+        rto = clamp(Math.round(srtt + Math.max(1, 4 * rttvar)));
+    }
+
+    public synchronized long getRtoMillis() {
+        return rto;
+    }
+
+    public synchronized double getSrttMillis() {
+        return srtt;
+    }
+
+    // Exponential backoff for a segment that timed out again.
+    public long backoff(long currentRtoMillis) {
+        return clamp(currentRtoMillis * 2);
+    }
+
+    private long clamp(long millis) {
+        return Math.max(minRtoMillis, Math.min(maxRtoMillis, millis));
+    }
+}
@@ -0,0 +1,112 @@
+package Networking;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Room member on a blocking stream. Pushes wait in a bounded queue and a task on the
+// writer executor drains it, holding the stream's monitor, which is also what the
+// connection's own replies write under. A slow socket therefore stalls one writer
+// task, never the poster; once its queue is full, further pushes are dropped. A
+// drain still stuck after WRITE_TIMEOUT_MILLIS closes the connection, so a client
+// that stops reading cannot keep a writer thread forever.
+public class StreamRoomMember extends RoomMember {
+    static final long WRITE_TIMEOUT_MILLIS = 10000;
+    private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "room-write-watchdog");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final OutputStream out;
+    private final Closeable connection;
+    private final Executor writer;
+    private final int capacity;
+    private final boolean binary;
+    private final Queue<ByteBuffer> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private volatile boolean closed;
+
+    public StreamRoomMember(OutputStream out, Closeable connection, Executor writer, int capacity, boolean binary) {
+        this.out = out;
+        this.connection = connection;
+        this.writer = writer;
+        this.capacity = capacity;
+        this.binary = binary;
+    }
+
+    @Override
+    protected boolean deliver(RoomRegistry.Message message) {
+        if (closed || queued.incrementAndGet() > capacity) {
+            queued.decrementAndGet();
+            return false;
+        }
+        queue.add(binary ? message.frame() : message.line());
+        if (draining.compareAndSet(false, true)) {
+            try {
+                writer.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                close(); // Server is stopping
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void drain() {
+        do {
+            // Armed before taking the monitor: a reply write stuck on the same socket
+            // holds it just as long.
+            ScheduledFuture<?> watchdog = WATCHDOG.schedule(this::stalled, WRITE_TIMEOUT_MILLIS,
+                    TimeUnit.MILLISECONDS);
+            try {
+                synchronized (out) {
+                    ByteBuffer next;
+                    while ((next = queue.poll()) != null) {
+                        queued.decrementAndGet();
+                        out.write(next.array(), next.arrayOffset() + next.position(), next.remaining());
+                    }
+                    out.flush();
+                }
+            } catch (IOException e) {
+                close(); // Connection is gone
+            } finally {
+                watchdog.cancel(false);
+            }
+            draining.set(false);
+            // A push may have been queued after the last poll but before the flag was cleared.
+        } while (!closed && !queue.isEmpty() && draining.compareAndSet(false, true));
+    }
+
+    // Closing the socket is the only way to break a blocked write; the connection
+    // thread then sees it gone and leaves its rooms.
+    private void stalled() {
+        close();
+        try {
+            connection.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    public int getQueuedCount() {
+        return queued.get();
+    }
+
+    public void close() {
+        closed = true;
+        queue.clear();
+    }
+}
@@ -0,0 +1,437 @@
+package Networking;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import java.io.*;
+import java.lang.ref.WeakReference;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+// Client-side pool of persistent TCP connections, keyed by host:port.
+// A connection is borrowed for exactly one request/reply exchange and then handed
+// back, so replies are matched to requests by the connection they arrived on.
+public class TCPConnectionPool implements Closeable {
+    // One thread evicts idle connections for every pool in the process.
+    private static final ScheduledExecutorService EVICTOR = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "tcp-pool-evictor");
+        t.setDaemon(true);
+        return t;
+    });
+    private static final TCPConnectionPool DEFAULT = new TCPConnectionPool(WireFormat.TEXT);
+    private static final TCPConnectionPool DEFAULT_BINARY = new TCPConnectionPool(WireFormat.BINARY);
+
+    private final Map<String, Deque<PooledConnection>> idleConnections = new ConcurrentHashMap<>();
+    private final AtomicInteger activeCount = new AtomicInteger();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private final AtomicLong createdCount = new AtomicLong();
+    private final AtomicLong evictedCount = new AtomicLong();
+
+    private volatile long idleTimeoutMillis = 30000;
+    private volatile int maxIdlePerRoute = 64;
+    private volatile int connectTimeoutMillis = 5000;
+    private volatile int compressionThreshold = -1;
+    private volatile boolean streaming;
+    private volatile SSLContext sslContext;
+    private volatile BiConsumer<String, String> roomListener;
+    private volatile boolean closed;
+    private final ScheduledFuture<?> eviction;
+    private final WireFormat wireFormat;
+
+    public TCPConnectionPool() {
+        this(WireFormat.TEXT);
+    }
+
+    public TCPConnectionPool(WireFormat wireFormat) {
+        this.wireFormat = wireFormat;
+        eviction = scheduleEviction(this);
+    }
+
+    // The task only holds the pool weakly, so a pool that is dropped without being
+    // closed can still be collected; its task then cancels itself.
+    private static ScheduledFuture<?> scheduleEviction(TCPConnectionPool pool) {
+        WeakReference<TCPConnectionPool> reference = new WeakReference<>(pool);
+        AtomicReference<ScheduledFuture<?>> task = new AtomicReference<>();
+        task.set(EVICTOR.scheduleWithFixedDelay(() -> {
+            TCPConnectionPool live = reference.get();
+            if (live != null) {
+                live.evictIdle();
+            } else {
+                task.get().cancel(false);
+            }
+        }, 1, 1, TimeUnit.SECONDS));
+        return task.get();
+    }
+
+    public WireFormat getWireFormat() {
+        return wireFormat;
+    }
+
+    // Shared by every TCPHandler unless one is given its own pool. Never close these.
+    public static TCPConnectionPool getDefault() {
+        return DEFAULT;
+    }
+
+    public static TCPConnectionPool getDefault(WireFormat wireFormat) {
+        return wireFormat == WireFormat.BINARY ? DEFAULT_BINARY : DEFAULT;
+    }
+
+    public void setIdleTimeoutMillis(long idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    public void setMaxIdlePerRoute(int maxIdlePerRoute) {
+        this.maxIdlePerRoute = maxIdlePerRoute;
+    }
+
+    public void setConnectTimeoutMillis(int connectTimeoutMillis) {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+    }
+
+    // Binary connections offer compression when they are opened and, if the server
+    // agrees, deflate messages of at least this many bytes. Negative (the default)
+    // never offers it. Only affects connections opened afterwards.
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    // Binary connections ask for streamed replies when they are opened, so that
+    // request(..., onChunk) gets a StreamingBot's reply as it is produced. Only affects
+    // connections opened afterwards.
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    // New connections run TLS with this context. Reusing one context is what lets a
+    // reconnect resume the earlier session instead of doing a full handshake. See Tls.
+    public void setSslContext(SSLContext sslContext) {
+        this.sslContext = sslContext;
+    }
+
+    // Pushes from rooms a pooled connection has joined. A connection only reads while
+    // it is exchanging, so they turn up just before the next reply on it.
+    public void setRoomListener(BiConsumer<String, String> roomListener) {
+        this.roomListener = roomListener;
+    }
+
+    // Sends one line and waits for the one-line reply. A reused connection may have
+    // been closed by the server while it sat idle, so that case is retried once on a
+    // fresh connection.
+    public String request(String host, int port, String message) throws IOException {
+        return request(host, port, message, 0);
+    }
+
+    // readTimeoutMillis bounds the wait for the reply (0 waits forever). A connection
+    // that timed out may still get the late reply, so it is closed, not reused.
+    public String request(String host, int port, String message, int readTimeoutMillis) throws IOException {
+        return request(host, port, message, readTimeoutMillis, null);
+    }
+
+    // onChunk, if not null, gets the reply in the pieces it arrives in; see
+    // PooledConnection.exchange. Once a piece has been handed over the request is
+    // no longer retried, so none is ever delivered twice.
+    public String request(String host, int port, String message, int readTimeoutMillis, Consumer<String> onChunk)
+            throws IOException {
+        AtomicBoolean delivered = new AtomicBoolean();
+        Consumer<String> tracked = onChunk == null ? null : chunk -> {
+            delivered.set(true);
+            onChunk.accept(chunk);
+        };
+        PooledConnection connection = borrow(host, port);
+        try {
+            return exchangeAndRelease(connection, message, readTimeoutMillis, tracked);
+        } catch (IOException e) {
+            if (!connection.reused || e instanceof SocketTimeoutException || delivered.get()) {
+                throw e;
+            }
+            return exchangeAndRelease(borrow(host, port, true), message, readTimeoutMillis, tracked);
+        }
+    }
+
+    private String exchangeAndRelease(PooledConnection connection, String message, int readTimeoutMillis,
+            Consumer<String> onChunk) throws IOException {
+        try {
+            connection.socket.setSoTimeout(readTimeoutMillis);
+            String response = connection.exchange(message, onChunk);
+            if (response == null) {
+                throw new EOFException("Connection closed by " + connection.route);
+            }
+            release(connection);
+            return response;
+        } catch (IOException e) {
+            invalidate(connection);
+            throw e;
+        }
+    }
+
+    public PooledConnection borrow(String host, int port) throws IOException {
+        return borrow(host, port, false);
+    }
+
+    private PooledConnection borrow(String host, int port, boolean forceNew) throws IOException {
+        String route = host + ":" + port;
+        if (!forceNew) {
+            Deque<PooledConnection> idle = idleConnections.get(route);
+            PooledConnection connection;
+            while (idle != null && (connection = idle.pollFirst()) != null) {
+                idleCount.decrementAndGet();
+                if (connection.socket.isClosed()) {
+                    evictedCount.incrementAndGet();
+                    continue;
+                }
+                connection.reused = true;
+                activeCount.incrementAndGet();
+                return connection;
+            }
+        }
+
+        Socket socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.connect(new InetSocketAddress(host, port), connectTimeoutMillis);
+        try {
+            SSLContext context = sslContext;
+            if (context != null) {
+                SSLSocket tls = (SSLSocket) context.getSocketFactory().createSocket(socket, host, port, true);
+                socket = tls;
+                // The certificate must name the host we meant to reach, not just chain to a trusted root.
+                SSLParameters parameters = tls.getSSLParameters();
+                parameters.setEndpointIdentificationAlgorithm("HTTPS");
+                tls.setSSLParameters(parameters);
+                // A server that accepts but never answers must not hang the handshake;
+                // the exchange sets its own read timeout afterwards.
+                int readTimeout = tls.getSoTimeout();
+                tls.setSoTimeout(connectTimeoutMillis);
+                tls.startHandshake();
+                tls.setSoTimeout(readTimeout);
+            }
+            PooledConnection connection = new PooledConnection(route, socket);
+            createdCount.incrementAndGet();
+            activeCount.incrementAndGet();
+            return connection;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    public void release(PooledConnection connection) {
+        activeCount.decrementAndGet();
+        Deque<PooledConnection> idle = idleConnections.computeIfAbsent(connection.route,
+                k -> new ConcurrentLinkedDeque<>());
+        if (closed || idle.size() >= maxIdlePerRoute) {
+            connection.close();
+            evictedCount.incrementAndGet();
+            return;
+        }
+        connection.lastUsed = System.nanoTime();
+        // Most recently used first, so the tail of the deque is what goes stale.
+        idle.offerFirst(connection);
+        idleCount.incrementAndGet();
+        if (closed) {
+            clear(); // Raced with close()
+        }
+    }
+
+    public void invalidate(PooledConnection connection) {
+        activeCount.decrementAndGet();
+        connection.close();
+    }
+
+    private void evictIdle() {
+        long cutoff = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        for (Deque<PooledConnection> idle : idleConnections.values()) {
+            Iterator<PooledConnection> it = idle.descendingIterator();
+            while (it.hasNext()) {
+                PooledConnection connection = it.next();
+                if (connection.lastUsed - cutoff < 0 && idle.removeFirstOccurrence(connection)) {
+                    idleCount.decrementAndGet();
+                    evictedCount.incrementAndGet();
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    // Closes every idle connection. Borrowed ones are closed when they are handed back.
+    public void clear() {
+        for (Deque<PooledConnection> idle : idleConnections.values()) {
+            PooledConnection connection;
+            while ((connection = idle.pollFirst()) != null) {
+                idleCount.decrementAndGet();
+                evictedCount.incrementAndGet();
+                connection.close();
+            }
+        }
+    }
+
+    // Stops evicting and closes the idle connections. The pool still works afterwards,
+    // but keeps nothing: each request opens a connection, closed when it is handed back.
+    @Override
+    public void close() {
+        closed = true;
+        eviction.cancel(false);
+        clear();
+    }
+
+    public int getActiveCount() {
+        return activeCount.get();
+    }
+
+    public int getIdleCount() {
+        return idleCount.get();
+    }
+
+    public long getCreatedCount() {
+        return createdCount.get();
+    }
+
+    public long getEvictedCount() {
+        return evictedCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "TCPConnectionPool[active=" + getActiveCount() + ", idle=" + getIdleCount()
+                + ", created=" + getCreatedCount() + ", evicted=" + getEvictedCount() + "]";
+    }
+
+    public final class PooledConnection {
+        private final String route;
+        private final Socket socket;
+        private final InputStream input;
+        private final OutputStream output;
+        // Text format only
+        private final BufferedReader in;
+        private final PrintWriter out;
+        private volatile long lastUsed = System.nanoTime();
+        private boolean reused;
+        // Binary format only; -1 until the server agrees to compression
+        private int compressThreshold = -1;
+
+        private PooledConnection(String route, Socket socket) throws IOException {
+            this.route = route;
+            this.socket = socket;
+            this.input = new BufferedInputStream(socket.getInputStream());
+            this.output = new BufferedOutputStream(socket.getOutputStream());
+            if (wireFormat == WireFormat.TEXT) {
+                this.in = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+                this.out = new PrintWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8), true);
+            } else {
+                this.in = null;
+                this.out = null;
+                if (compressionThreshold >= 0 || streaming) {
+                    negotiate(compressionThreshold, streaming);
+                }
+            }
+        }
+
+        // One HELLO round trip before the first message, bounded by the connect timeout.
+        // Options the server does not echo back stay off.
+        private void negotiate(int threshold, boolean streaming) throws IOException {
+            StringJoiner offered = new StringJoiner(",");
+            if (threshold >= 0) {
+                offered.add(PayloadCompression.NAME);
+            }
+            if (streaming) {
+                offered.add(FrameCodec.OPTION_STREAM);
+            }
+            FrameCodec.write(output, FrameCodec.TYPE_HELLO, FrameCodec.NO_SEQUENCE, offered.toString());
+            output.flush();
+            socket.setSoTimeout(connectTimeoutMillis);
+            FrameCodec.Frame hello = FrameCodec.read(input);
+            if (hello == null) {
+                throw new EOFException("Connection closed by " + route);
+            }
+            if (hello.type == FrameCodec.TYPE_HELLO && threshold >= 0 && PayloadCompression.isOffered(hello.text())) {
+                compressThreshold = threshold;
+            }
+        }
+
+        // Returns null if the server closed the connection instead of replying.
+        public String exchange(String message) throws IOException {
+            return exchange(message, null);
+        }
+
+        // onChunk, if not null, gets each piece of a streamed reply as it arrives and
+        // the rest of the reply after the last one; a reply that was not streamed is a
+        // single piece.
+        public String exchange(String message, Consumer<String> onChunk) throws IOException {
+            if (wireFormat == WireFormat.BINARY) {
+                FrameCodec.write(output, FrameCodec.TYPE_MESSAGE, FrameCodec.NO_SEQUENCE, message, compressThreshold);
+                output.flush();
+                StringBuilder streamed = new StringBuilder();
+                FrameCodec.Frame reply;
+                while ((reply = FrameCodec.read(input)) != null
+                        && (reply.type == FrameCodec.TYPE_CHUNK || reply.type == FrameCodec.TYPE_ROOM)) {
+                    if (reply.type == FrameCodec.TYPE_ROOM) {
+                        RoomRegistry.deliverPush(reply.text(), roomListener);
+                        continue;
+                    }
+                    if (FrameCodec.chunkOffset(reply) != streamed.length()) {
+                        throw new ProtocolException("Chunk out of place on " + route);
+                    }
+                    String chunk = FrameCodec.chunkText(reply);
+                    streamed.append(chunk);
+                    if (onChunk != null) {
+                        onChunk.accept(chunk);
+                    }
+                }
+                if (reply == null) {
+                    return null;
+                }
+                String rest = reply.text();
+                if (onChunk != null && (!rest.isEmpty() || streamed.length() == 0)) {
+                    onChunk.accept(rest);
+                }
+                return streamed.length() == 0 ? rest : streamed.append(rest).toString();
+            }
+            out.println(message);
+            if (out.checkError()) {
+                throw new IOException("Write to " + route + " failed");
+            }
+            String reply;
+            while ((reply = in.readLine()) != null && RoomRegistry.isPush(reply)) {
+                RoomRegistry.deliverPush(reply.substring(RoomRegistry.PUSH_PREFIX.length()), roomListener);
+            }
+            if (reply == null) {
+                return null;
+            }
+            reply = RoomRegistry.unescapeReply(reply);
+            if (onChunk != null) {
+                onChunk.accept(reply);
+            }
+            return reply;
+        }
+
+        public String getRoute() {
+            return route;
+        }
+
+        private void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing more to do with it
+            }
+        }
+    }
+}
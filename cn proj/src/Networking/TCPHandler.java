@@ -1,69 +1,754 @@
 package Networking;
 
+import History.MessageLog;
+import Bot.StreamingBot;
+import Metrics.ServerMetrics;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
 public class TCPHandler implements NetworkManager {
+    // A reply this long after its request was read is flushed even if more requests
+    // are waiting; holding it back only pays when replies are cheap.
+    private static final long FLUSH_AFTER_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
     private ServerSocket serverSocket;
-    private boolean isRunning;
+    private Thread acceptThread;
+    private volatile boolean isRunning;
+
+    // Connection engine: every accepted socket is served on its own thread, so one
+    // slow client no longer holds up the rest of the backlog.
+    private ExecutorService connectionExecutor;
+    private final Set<Socket> activeConnections = ConcurrentHashMap.newKeySet();
+    private Semaphore connectionPermits;
+    private int maxConnections = 10000;
+    private long drainTimeoutMillis = 2000;
+
+    // Client side: sendMessage reuses persistent connections from this pool.
+    private volatile TCPConnectionPool connectionPool = TCPConnectionPool.getDefault();
+    // Whether this handler created connectionPool, and so closes it.
+    private boolean ownPool;
+    // When > 0, sendMessage pipelines over one connection per host:port instead.
+    private int pipelineDepth;
+    private final Map<String, PipelinedTCPClient> pipelinedClients = new ConcurrentHashMap<>();
+    private volatile BiConsumer<String, String> roomListener;
+
+    // Simulated network conditions for traffic arriving at the server; null for none.
+    private volatile NetworkImpairment impairment;
+    // When set, connection threads only read and write; the bot runs on its workers.
+    private volatile BotPipeline botPipeline;
+    private volatile ServerMetrics metrics = new ServerMetrics();
+    // Room support is off unless a registry is set; room pushes are written on roomWriters.
+    private volatile RoomRegistry rooms;
+    private ExecutorService roomWriters;
+    // Every exchange is appended here when set, keyed by "tcp:<client host>", and
+    // "/history" reads the client's recent exchanges back from it.
+    private volatile MessageLog messageLog;
+    // Smallest reply worth deflating for binary clients that ask for compression.
+    private volatile int compressionThreshold = PayloadCompression.DEFAULT_THRESHOLD;
+    private volatile SSLContext sslContext;
+    private volatile RateLimiter rateLimiter;
+
+    public void setMaxConnections(int maxConnections) {
+        if (maxConnections <= 0) {
+            throw new IllegalArgumentException("maxConnections must be positive");
+        }
+        this.maxConnections = maxConnections;
+    }
+
+    public void setDrainTimeoutMillis(long drainTimeoutMillis) {
+        this.drainTimeoutMillis = drainTimeoutMillis;
+    }
+
+    // Format used by sendMessage; the server always accepts both.
+    public void setWireFormat(WireFormat wireFormat) {
+        if (roomListener != null) {
+            replacePool(new TCPConnectionPool(wireFormat), true);
+        } else {
+            replacePool(TCPConnectionPool.getDefault(wireFormat), false);
+        }
+    }
+
+    // The caller closes a pool it hands in; this handler only closes pools it made.
+    public void setConnectionPool(TCPConnectionPool connectionPool) {
+        replacePool(connectionPool, false);
+    }
+
+    private synchronized void replacePool(TCPConnectionPool replacement, boolean own) {
+        if (ownPool && connectionPool != replacement) {
+            connectionPool.close();
+        }
+        connectionPool = replacement;
+        ownPool = own;
+        if (roomListener != null) {
+            replacement.setRoomListener(roomListener);
+        }
+    }
+
+    public TCPConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    public void setPipelineDepth(int pipelineDepth) {
+        this.pipelineDepth = pipelineDepth;
+    }
+
+    public void setBotPipeline(BotPipeline botPipeline) {
+        this.botPipeline = botPipeline;
+    }
+
+    // Lets several handlers, or a server and its scrape endpoint, share one set of metrics.
+    public void setMetrics(ServerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void setRoomRegistry(RoomRegistry rooms) {
+        this.rooms = rooms;
+    }
+
+    public void setMessageLog(MessageLog messageLog) {
+        this.messageLog = messageLog;
+    }
+
+    // A negative value turns every request for compression down.
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    // Set before startServer. The handshake runs on the connection's own thread, on
+    // its first read, so a slow client never holds up accept. See Tls.
+    public void setSslContext(SSLContext sslContext) {
+        this.sslContext = sslContext;
+    }
+
+    // Checked for every message before it reaches the bot, keyed by client address.
+    public void setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    public int getActiveConnectionCount() {
+        return activeConnections.size();
+    }
 
     @Override
     public void startServer(int port, Function<String, String> onMessageReceived) {
-        new Thread(() -> {
-            try {
-                serverSocket = new ServerSocket(port);
-                isRunning = true;
-                // Log server start (we can't easily log to GUI here without another callback,
-                // but the Function return value is for the client. We'll assume the Function
-                // handles logging if needed,
-                // or we just process silently and return the response).
-                // Actually, the previous implementation used Consumer<String> which was used
-                // for logging.
-                // To keep it simple, we will assume the Function does the logging AND returns
-                // the response.
+        connectionPermits = new Semaphore(maxConnections);
+        connectionExecutor = newConnectionExecutor();
+        if (rooms != null) {
+            roomWriters = newRoomWriterExecutor();
+        }
+        try {
+            SSLContext context = sslContext;
+            serverSocket = context != null ? context.getServerSocketFactory().createServerSocket(port)
+                    : new ServerSocket(port);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        isRunning = true;
 
+        acceptThread = new Thread(() -> {
+            try {
                 while (isRunning) {
-                    Socket clientSocket = serverSocket.accept();
+                    // Once the cap is reached we stop accepting; pending clients wait in the
+                    // listen backlog until a connection slot frees up.
+                    connectionPermits.acquire();
+                    Socket clientSocket;
+                    try {
+                        clientSocket = serverSocket.accept();
+                    } catch (IOException e) {
+                        connectionPermits.release();
+                        throw e;
+                    }
+                    activeConnections.add(clientSocket);
+                    connectionExecutor.execute(() -> serveClient(clientSocket, onMessageReceived));
+                }
+            } catch (SocketException e) {
+                // Server socket closed by stopServer
+            } catch (IOException e) {
+                e.printStackTrace();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "tcp-accept-" + port);
+        acceptThread.start();
+    }
+
+    private void serveClient(Socket clientSocket, Function<String, String> onMessageReceived) {
+        ServerMetrics metrics = this.metrics;
+        metrics.connectionOpened();
+        try (Socket socket = clientSocket) {
+            if (socket instanceof SSLSocket) {
+                // The handshake goes out as several small writes; Nagle would hold them back.
+                socket.setTcpNoDelay(true);
+            }
+            // Byte counts are taken beneath the buffers, once per socket read or write.
+            InputStream raw = socket.getInputStream();
+            if (impairment != null) {
+                raw = NetworkImpairment.delay(raw, () -> impairment, "tcp-" + socket.getPort());
+            }
+            BufferedInputStream input = new BufferedInputStream(new CountingInputStream(raw, metrics));
+            BufferedOutputStream output = new BufferedOutputStream(
+                    new CountingOutputStream(socket.getOutputStream(), metrics));
+            // The first byte tells binary clients (FrameCodec) apart from line-based ones.
+            input.mark(1);
+            int first = input.read();
+            input.reset();
+            // History is kept per client host, not per connection, so it outlives reconnects.
+            String peer = "tcp:" + socket.getInetAddress().getHostAddress();
+            if ((byte) first == FrameCodec.MAGIC_0) {
+                serveBinary(socket, input, output, onMessageReceived, peer);
+            } else {
+                serveText(socket, input, output, onMessageReceived, peer);
+            }
+        } catch (IOException e) {
+            // Client reset or connection closed during drain
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            activeConnections.remove(clientSocket);
+            connectionPermits.release();
+            metrics.connectionClosed();
+        }
+    }
+
+    // Every write to 'output' holds its monitor, so room pushes, written from another
+    // thread, only ever land between whole replies.
+    private void serveText(Socket socket, InputStream input, OutputStream output,
+            Function<String, String> onMessageReceived, String peer) throws IOException, InterruptedException {
+        InetAddress client = socket.getInetAddress();
+        BufferedReader in = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+        BotPipeline pipeline = botPipeline;
+        QueuedReplies replyQueue = pipeline != null ? new QueuedReplies(output, connectionExecutor) : null;
+        ReplySequencer replies = replyQueue != null ? new ReplySequencer(replyQueue) : null;
+        ServerMetrics metrics = this.metrics;
+        RoomRegistry rooms = this.rooms;
+        MessageLog log = messageLog;
+        RateLimiter limiter = rateLimiter;
+        StreamRoomMember member = null;
+
+        try {
+            String inputLine;
+            while ((inputLine = in.readLine()) != null) {
+                long received = System.nanoTime();
+                metrics.messageIn();
+                if (limiter != null && !limiter.tryAcquire(client)) {
+                    metrics.dropped();
+                    if (replies != null) {
+                        replies.nextSlot().accept(encodeLine(RateLimiter.SLOW_DOWN_REPLY));
+                    } else {
+                        writeLine(in, output, RateLimiter.SLOW_DOWN_REPLY, received);
+                    }
+                    continue;
+                }
+                if (log != null && MessageLog.isCommand(inputLine)) {
+                    String history = log.handleCommand(peer, inputLine);
+                    if (replies != null) {
+                        replies.nextSlot().accept(encodeLine(history));
+                    } else {
+                        writeLine(in, output, history, received);
+                    }
+                    metrics.replied(received);
+                    continue;
+                }
+                if (rooms != null && RoomRegistry.isCommand(inputLine)) {
+                    if (member == null) {
+                        member = new StreamRoomMember(output, socket, roomWriters, rooms.getMemberQueueCapacity(),
+                                false);
+                    }
+                    String roomReply = rooms.handleCommand(member, inputLine);
+                    record(log, peer, inputLine, roomReply);
+                    if (replies != null) {
+                        replies.nextSlot().accept(encodeLine(roomReply));
+                    } else {
+                        writeLine(in, output, roomReply, received);
+                    }
+                    metrics.replied(received);
+                    continue;
+                }
+                if (replies != null) {
+                    Consumer<ByteBuffer> slot = replies.nextSlot();
+                    String message = inputLine;
+                    boolean queued = pipeline.submit(message, reply -> {
+                        slot.accept(encodeLine(reply));
+                        record(log, peer, message, reply);
+                        metrics.replied(received);
+                    });
+                    if (!queued) {
+                        metrics.dropped();
+                    }
+                    continue;
+                }
+                String reply = onMessageReceived.apply(inputLine);
+                writeLine(in, output, reply, received);
+                record(log, peer, inputLine, reply);
+                metrics.replied(received);
+            }
+            if (replies != null) {
+                replies.awaitDrained(drainTimeoutMillis);
+                replyQueue.writeQueued(); // Whatever the drain task has not got to yet
+            }
+        } finally {
+            if (member != null) {
+                rooms.leaveAll(member);
+                member.close();
+            }
+        }
+    }
+
+    // Only an enqueue; the log's writer thread does the I/O.
+    private static void record(MessageLog log, String peer, String message, String reply) {
+        if (log != null) {
+            log.append(peer, message, reply);
+        }
+    }
+
+    private static ByteBuffer encodeLine(String reply) {
+        return ByteBuffer.wrap((RoomRegistry.escapeReply(reply) + System.lineSeparator())
+                .getBytes(StandardCharsets.UTF_8));
+    }
+
+    // 'received' is when the request was read.
+    private static void writeLine(BufferedReader in, OutputStream out, String reply, long received)
+            throws IOException {
+        byte[] line = (RoomRegistry.escapeReply(reply) + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+        synchronized (out) {
+            out.write(line);
+            // Pipelining clients send several requests back to back; only flush once
+            // we have answered everything that has already arrived, or the bot is slow
+            // enough that the client would be left waiting on a steady stream of them.
+            if (!in.ready() || System.nanoTime() - received > FLUSH_AFTER_NANOS) {
+                out.flush();
+            }
+        }
+    }
+
+    private void serveBinary(Socket socket, InputStream in, OutputStream out,
+            Function<String, String> onMessageReceived, String peer) throws IOException, InterruptedException {
+        InetAddress client = socket.getInetAddress();
+        BotPipeline pipeline = botPipeline;
+        QueuedReplies replyQueue = pipeline != null ? new QueuedReplies(out, connectionExecutor) : null;
+        ReplySequencer replies = replyQueue != null ? new ReplySequencer(replyQueue) : null;
+        ServerMetrics metrics = this.metrics;
+        RoomRegistry rooms = this.rooms;
+        MessageLog log = messageLog;
+        RateLimiter limiter = rateLimiter;
+        StreamRoomMember member = null;
+
+        // Replies stay uncompressed, and whole, until the client says hello and asks otherwise.
+        int compressThreshold = -1;
+        boolean stream = false;
+
+        try {
+            FrameCodec.Frame frame;
+            while ((frame = FrameCodec.read(in)) != null) {
+                if (frame.type == FrameCodec.TYPE_HELLO) {
+                    String offered = frame.text();
+                    boolean compress = compressionThreshold >= 0 && PayloadCompression.isOffered(offered);
+                    compressThreshold = compress ? compressionThreshold : -1;
+                    stream = FrameCodec.offers(offered, FrameCodec.OPTION_STREAM);
+                    StringJoiner agreed = new StringJoiner(",");
+                    if (compress) {
+                        agreed.add(PayloadCompression.NAME);
+                    }
+                    if (stream) {
+                        agreed.add(FrameCodec.OPTION_STREAM);
+                        // A chunk and the reply after it are small writes; Nagle would hold
+                        // the second back until the client acknowledged the first.
+                        socket.setTcpNoDelay(true);
+                    }
+                    writeFrame(in, out, FrameCodec.TYPE_HELLO, FrameCodec.NO_SEQUENCE, agreed.toString(), -1,
+                            System.nanoTime());
+                    continue;
+                }
+                if (frame.type != FrameCodec.TYPE_MESSAGE) {
+                    continue;
+                }
+                long received = System.nanoTime();
+                metrics.messageIn();
+                int seq = frame.seq;
+                int threshold = compressThreshold;
+                if (limiter != null && !limiter.tryAcquire(client)) {
+                    metrics.dropped();
+                    if (replies != null) {
+                        replies.nextSlot().accept(FrameCodec.encode(FrameCodec.TYPE_SLOW_DOWN, seq,
+                                RateLimiter.SLOW_DOWN_REPLY, threshold));
+                    } else {
+                        writeFrame(in, out, FrameCodec.TYPE_SLOW_DOWN, seq, RateLimiter.SLOW_DOWN_REPLY, threshold,
+                                received);
+                    }
+                    continue;
+                }
+                String text = frame.text();
+                if (log != null && MessageLog.isCommand(text)) {
+                    String history = log.handleCommand(peer, text);
+                    if (replies != null) {
+                        replies.nextSlot().accept(FrameCodec.encode(FrameCodec.TYPE_REPLY, seq, history, threshold));
+                    } else {
+                        writeFrame(in, out, FrameCodec.TYPE_REPLY, seq, history, threshold, received);
+                    }
+                    metrics.replied(received);
+                    continue;
+                }
+                if (rooms != null && RoomRegistry.isCommand(text)) {
+                    if (member == null) {
+                        member = new StreamRoomMember(out, socket, roomWriters, rooms.getMemberQueueCapacity(), true);
+                    }
+                    String roomReply = rooms.handleCommand(member, text);
+                    record(log, peer, text, roomReply);
+                    if (replies != null) {
+                        replies.nextSlot().accept(FrameCodec.encode(FrameCodec.TYPE_REPLY, seq, roomReply, threshold));
+                    } else {
+                        writeFrame(in, out, FrameCodec.TYPE_REPLY, seq, roomReply, threshold, received);
+                    }
+                    metrics.replied(received);
+                    continue;
+                }
+                // Chunks are written as the bot produces them; the reply that ends them
+                // carries whatever they did not.
+                AtomicInteger streamed = stream ? new AtomicInteger() : null;
+                if (replies != null) {
+                    boolean queued;
+                    if (streamed != null) {
+                        ReplySequencer.StreamSlot slot = replies.nextStreamSlot();
+                        queued = pipeline.submit(text,
+                                chunk -> slot.partial(FrameCodec.encodeChunk(seq, streamed.getAndAdd(chunk.length()),
+                                        chunk)),
+                                reply -> {
+                                    slot.last(FrameCodec.encode(FrameCodec.TYPE_REPLY, seq,
+                                            reply.substring(streamed.get()), threshold));
+                                    record(log, peer, text, reply);
+                                    metrics.replied(received);
+                                });
+                    } else {
+                        Consumer<ByteBuffer> slot = replies.nextSlot();
+                        queued = pipeline.submit(text, reply -> {
+                            slot.accept(FrameCodec.encode(FrameCodec.TYPE_REPLY, seq, reply, threshold));
+                            record(log, peer, text, reply);
+                            metrics.replied(received);
+                        });
+                    }
+                    if (!queued) {
+                        metrics.dropped();
+                    }
+                    continue;
+                }
+                String reply;
+                if (streamed != null && onMessageReceived instanceof StreamingBot) {
+                    StringBuilder whole = new StringBuilder();
+                    try {
+                        ((StreamingBot) onMessageReceived).stream(text, chunk -> {
+                            whole.append(chunk);
+                            writeChunk(out, FrameCodec.encodeChunk(seq, streamed.getAndAdd(chunk.length()), chunk));
+                        });
+                    } catch (UncheckedIOException e) {
+                        throw e.getCause(); // From writeChunk
+                    }
+                    reply = whole.toString();
+                } else {
+                    reply = onMessageReceived.apply(text);
+                }
+                String rest = streamed != null ? reply.substring(streamed.get()) : reply;
+                writeFrame(in, out, FrameCodec.TYPE_REPLY, seq, rest, threshold, received);
+                record(log, peer, text, reply);
+                metrics.replied(received);
+            }
+            if (replies != null) {
+                replies.awaitDrained(drainTimeoutMillis);
+                replyQueue.writeQueued(); // Whatever the drain task has not got to yet
+            }
+        } finally {
+            if (member != null) {
+                rooms.leaveAll(member);
+                member.close();
+            }
+        }
+    }
+
+    private static void writeFrame(InputStream in, OutputStream out, byte type, int seq, String text,
+            int compressThreshold, long received) throws IOException {
+        synchronized (out) {
+            FrameCodec.write(out, type, seq, text, compressThreshold);
+            if (in.available() == 0 || System.nanoTime() - received > FLUSH_AFTER_NANOS) {
+                out.flush();
+            }
+        }
+    }
+
+    // A chunk goes out at once; waiting for the rest of the reply is what streaming avoids.
+    private static void writeChunk(OutputStream out, ByteBuffer chunk) {
+        synchronized (out) {
+            try {
+                out.write(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining());
+                out.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
 
-                    BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-                    PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
+    // Pipeline replies for one connection. Workers only queue them, in order; a task on
+    // the connection executor writes them once the sequencer asks for a flush, so a
+    // client that stops reading holds up that task and never a bot worker. The
+    // connection thread itself is blocked reading, or it would do the writing.
+    private static final class QueuedReplies implements ReplySequencer.Output {
+        private final OutputStream out;
+        private final Executor executor;
+        private final Queue<ByteBuffer> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean draining = new AtomicBoolean();
+        private volatile boolean failed;
 
-                    String inputLine;
-                    while ((inputLine = in.readLine()) != null) {
-                        String response = onMessageReceived.apply(inputLine);
-                        out.println(response);
+        QueuedReplies(OutputStream out, Executor executor) {
+            this.out = out;
+            this.executor = executor;
+        }
+
+        @Override
+        public void write(ByteBuffer reply) {
+            if (!failed) {
+                queue.add(reply);
+            }
+        }
+
+        @Override
+        public void flush() {
+            if (draining.compareAndSet(false, true)) {
+                try {
+                    executor.execute(this::drain);
+                } catch (RejectedExecutionException e) {
+                    draining.set(false); // Stopping; the connection thread writes the rest
+                }
+            }
+        }
+
+        private void drain() {
+            do {
+                writeQueued();
+                draining.set(false);
+                // A reply may have been queued after the last poll but before the flag was cleared.
+            } while (!queue.isEmpty() && draining.compareAndSet(false, true));
+        }
+
+        // Under the stream's monitor, like every other write, so room pushes only land
+        // between whole replies.
+        void writeQueued() {
+            try {
+                synchronized (out) {
+                    ByteBuffer next;
+                    while ((next = queue.poll()) != null) {
+                        out.write(next.array(), next.arrayOffset() + next.position(), next.remaining());
                     }
-                    clientSocket.close();
+                    out.flush();
                 }
             } catch (IOException e) {
-                e.printStackTrace();
+                failed = true; // Connection is gone
+                queue.clear();
             }
-        }).start();
+        }
+    }
+
+    private static final class CountingInputStream extends FilterInputStream {
+        private final ServerMetrics metrics;
+
+        CountingInputStream(InputStream in, ServerMetrics metrics) {
+            super(in);
+            this.metrics = metrics;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                metrics.bytesIn(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                metrics.bytesIn(n);
+            }
+            return n;
+        }
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream {
+        private final ServerMetrics metrics;
+
+        CountingOutputStream(OutputStream out, ServerMetrics metrics) {
+            super(out);
+            this.metrics = metrics;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            metrics.bytesOut(1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            metrics.bytesOut(len);
+        }
+    }
+
+    // Prefer one virtual thread per connection when the runtime has them (JDK 21+),
+    // otherwise fall back to a cached pool of platform threads.
+    private static ExecutorService newConnectionExecutor() {
+        ExecutorService virtual = ClientExecutor.newVirtualThreadPerTaskExecutor();
+        if (virtual != null) {
+            return virtual;
+        }
+        return Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "tcp-connection");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    // Virtual threads when available; otherwise a cached pool, so members stalled on a
+    // full socket buffer never leave the others waiting for a writer. Each stall is
+    // bounded by StreamRoomMember.WRITE_TIMEOUT_MILLIS.
+    private static ExecutorService newRoomWriterExecutor() {
+        ExecutorService virtual = ClientExecutor.newVirtualThreadPerTaskExecutor();
+        if (virtual != null) {
+            return virtual;
+        }
+        return Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "room-writer");
+            t.setDaemon(true);
+            return t;
+        });
     }
 
     @Override
     public void sendMessage(String host, int port, String message, Consumer<String> onResponseReceived) {
-        new Thread(() -> {
-            try (Socket socket = new Socket(host, port);
-                    PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+        sendMessageAsync(host, port, message, 0).whenComplete((response, error) -> {
+            if (error == null) {
+                onResponseReceived.accept(response);
+            } else {
+                error.printStackTrace();
+            }
+        });
+    }
+
+    // The exchange runs on the shared client executor. The deadline covers queueing,
+    // connecting and the reply; on timeout or cancellation the request's connection
+    // is abandoned rather than reused.
+    @Override
+    public CompletableFuture<String> sendMessageAsync(String host, int port, String message, long timeoutMillis) {
+        return send(host, port, message, timeoutMillis, null);
+    }
 
-                out.println(message);
-                String response = in.readLine();
-                if (response != null) {
-                    onResponseReceived.accept(response);
+    // Pieces arrive as they are read, on the client executor, when the pool has
+    // streaming on and the connection is binary. Pipelined sends are never streamed.
+    @Override
+    public CompletableFuture<String> sendMessageStreaming(String host, int port, String message, long timeoutMillis,
+            Consumer<String> onChunk) {
+        if (pipelineDepth > 0) {
+            return NetworkManager.super.sendMessageStreaming(host, port, message, timeoutMillis, onChunk);
+        }
+        return send(host, port, message, timeoutMillis, onChunk);
+    }
+
+    private CompletableFuture<String> send(String host, int port, String message, long timeoutMillis,
+            Consumer<String> onChunk) {
+        CompletableFuture<String> result = new CompletableFuture<>();
+        if (pipelineDepth > 0) {
+            sendPipelined(host, port, message, result);
+        } else {
+            int readTimeout = (int) Math.min(Integer.MAX_VALUE, Math.max(0, timeoutMillis));
+            Future<?> task = ClientExecutor.get().submit(() -> {
+                if (result.isDone()) {
+                    return; // Cancelled or timed out while queued
+                }
+                try {
+                    result.complete(connectionPool.request(host, port, message, readTimeout, onChunk));
+                } catch (IOException | RuntimeException e) {
+                    result.completeExceptionally(e);
+                }
+            });
+            result.whenComplete((response, error) -> {
+                if (error != null) {
+                    task.cancel(true);
+                }
+            });
+        }
+        if (timeoutMillis > 0) {
+            result.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        result.whenComplete((response, error) -> {
+            if (error instanceof TimeoutException || error instanceof SocketTimeoutException) {
+                metrics.timedOut();
+            }
+        });
+        return result;
+    }
+
+    private void sendPipelined(String host, int port, String message, CompletableFuture<String> result) {
+        String route = host + ":" + port;
+        ClientExecutor.get().execute(() -> {
+            try {
+                PipelinedTCPClient client;
+                synchronized (pipelinedClients) {
+                    client = pipelinedClients.get(route);
+                    if (client == null || client.isClosed()) {
+                        client = new PipelinedTCPClient(host, port, pipelineDepth);
+                        client.setRoomListener(roomListener);
+                        pipelinedClients.put(route, client);
+                    }
                 }
+                // Blocks while 'pipelineDepth' requests are already in flight.
+                client.send(message, result::complete);
             } catch (IOException e) {
-                e.printStackTrace();
+                result.completeExceptionally(e);
+            } catch (InterruptedException e) {
+                result.completeExceptionally(e);
+                Thread.currentThread().interrupt();
             }
-        }).start();
+        });
     }
 
+    // Also closes the idle connections of a pool this handler made; the GUI drops a
+    // handler after stopping it.
     @Override
     public void stopServer() {
         isRunning = false;
+        synchronized (this) {
+            if (ownPool) {
+                connectionPool.close();
+            }
+        }
         try {
             if (serverSocket != null && !serverSocket.isClosed()) {
                 serverSocket.close();
@@ -71,11 +756,73 @@ public class TCPHandler implements NetworkManager {
         } catch (IOException e) {
             e.printStackTrace();
         }
+        if (acceptThread != null) {
+            acceptThread.interrupt(); // In case it is parked waiting for a free slot
+        }
+        if (connectionExecutor == null) {
+            return;
+        }
+
+        // Graceful drain: no new requests are read, but a request already being
+        // processed still gets its reply written before the connection closes.
+        for (Socket socket : activeConnections) {
+            try {
+                socket.shutdownInput();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+        connectionExecutor.shutdown();
+        try {
+            if (!connectionExecutor.awaitTermination(drainTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                for (Socket socket : activeConnections) {
+                    try {
+                        socket.close();
+                    } catch (IOException e) {
+                        // Ignore, we are forcing shutdown
+                    }
+                }
+                connectionExecutor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            connectionExecutor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        if (roomWriters != null) {
+            roomWriters.shutdownNow();
+            roomWriters = null;
+        }
+    }
+
+    // Pushes arrive on whichever connection joined the room, and a pool has one
+    // listener, so a handler still on the shared default pool moves to a pool of its own.
+    @Override
+    public void setRoomListener(BiConsumer<String, String> listener) {
+        roomListener = listener;
+        TCPConnectionPool pool = connectionPool;
+        if (listener != null && pool == TCPConnectionPool.getDefault(pool.getWireFormat())) {
+            replacePool(new TCPConnectionPool(pool.getWireFormat()), true);
+        } else {
+            pool.setRoomListener(listener);
+        }
+        for (PipelinedTCPClient client : pipelinedClients.values()) {
+            client.setRoomListener(listener);
+        }
     }
 
     @Override
     public void setSimulatePacketLoss(boolean simulate) {
-        // TCP handles packet loss internally, so we don't simulate it at this layer
-        // or we could, but the user asked for UDP specifically.
+        // TCP recovers lost segments itself, so here loss shows up as retransmission delay.
+        setImpairment(simulate ? NetworkImpairment.packetLoss(0.5) : null);
+    }
+
+    // A stream never loses or reorders data; the impairment only delays it. Connections
+    // accepted while one is set keep following this setting, including turning it off.
+    public void setImpairment(NetworkImpairment impairment) {
+        NetworkImpairment previous = this.impairment;
+        this.impairment = impairment;
+        if (previous != null && previous != impairment) {
+            previous.shutdown();
+        }
     }
 }
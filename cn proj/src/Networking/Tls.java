@@ -0,0 +1,76 @@
+package Networking;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+// SSLContexts for the TCP transports. A full handshake costs a round trip more than
+// plain TCP plus the certificate and key exchange work; a resumed one reuses the
+// secrets from an earlier session and skips most of that. Resumption only happens
+// when the same context is used again, since the sessions (and on TLS 1.3, the
+// tickets the server hands out) live in its session cache, so keep one context per
+// process. Clients check that the certificate names the host they connected to, so a
+// self-signed keystore for testing needs the names it will be reached by:
+//
+//   keytool -genkeypair -alias chat -keyalg EC -dname CN=localhost
+//           -ext SAN=dns:localhost,ip:127.0.0.1 -validity 365
+//           -storetype PKCS12 -keystore chat.p12 -storepass changeit
+public final class Tls {
+    public static final int DEFAULT_SESSION_CACHE_SIZE = 10000;
+    public static final int DEFAULT_SESSION_TIMEOUT_SECONDS = 3600;
+
+    private Tls() {
+    }
+
+    // Server side: the certificate and key in a PKCS12 keystore.
+    public static SSLContext serverContext(Path keystore, char[] password) throws IOException {
+        try {
+            KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagers.init(load(keystore, password), password);
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keyManagers.getKeyManagers(), null, null);
+            configureSessions(context.getServerSessionContext());
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot use keystore " + keystore + ": " + e.getMessage(), e);
+        }
+    }
+
+    // Client side: trusts the certificates in a PKCS12 truststore, which may be the
+    // server's own keystore when it is self-signed. Null trusts the JDK's CAs.
+    public static SSLContext clientContext(Path truststore, char[] password) throws IOException {
+        try {
+            TrustManagerFactory trustManagers = null;
+            if (truststore != null) {
+                trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+                trustManagers.init(load(truststore, password));
+            }
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, trustManagers != null ? trustManagers.getTrustManagers() : null, null);
+            configureSessions(context.getClientSessionContext());
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot use truststore " + truststore + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static KeyStore load(Path path, char[] password) throws IOException, GeneralSecurityException {
+        KeyStore store = KeyStore.getInstance("PKCS12");
+        try (InputStream in = Files.newInputStream(path)) {
+            store.load(in, password);
+        }
+        return store;
+    }
+
+    private static void configureSessions(SSLSessionContext sessions) {
+        sessions.setSessionCacheSize(DEFAULT_SESSION_CACHE_SIZE);
+        sessions.setSessionTimeout(DEFAULT_SESSION_TIMEOUT_SECONDS);
+    }
+}
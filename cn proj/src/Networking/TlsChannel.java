@@ -0,0 +1,227 @@
+package Networking;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+
+// Runs one SSLEngine over a non-blocking channel for NioTcpHandler. The loop hands
+// it whatever the socket has and gets back decrypted bytes; replies are encrypted
+// straight from the connection's pending queue. Handshake messages are answered as
+// they come up, and the caller keeps OP_WRITE armed while hasOutput() says so.
+//
+// The engine's delegated tasks (certificate and signature work) run inline on the
+// loop. They only come up in a full handshake; a resumed one skips them, which is
+// most of why resumption is cheap.
+final class TlsChannel {
+    private static final int MAX_GATHER = 64;
+
+    private final SSLEngine engine;
+    private ByteBuffer netIn;   // Ciphertext read but not yet unwrapped, in fill mode
+    private ByteBuffer netOut;  // Ciphertext not yet written, in fill mode
+    private ByteBuffer appIn;   // Plaintext for the caller
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private boolean inboundClosed;
+    // Plaintext taken from the caller's queue so far, for its backlog accounting.
+    private long plaintextConsumed;
+
+    TlsChannel(SSLEngine engine) throws SSLException {
+        this.engine = engine;
+        int packetSize = engine.getSession().getPacketBufferSize();
+        netIn = ByteBuffer.allocate(packetSize);
+        netOut = ByteBuffer.allocate(packetSize);
+        appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+        engine.beginHandshake();
+    }
+
+    // Reads what the socket has and decrypts it. Returns the ciphertext byte count,
+    // or -1 once the peer has closed; the plaintext is then in plaintext().
+    int read(SocketChannel channel) throws IOException {
+        int read = channel.read(netIn);
+        if (read < 0) {
+            return -1;
+        }
+        netIn.flip();
+        appIn.clear();
+        try {
+            unwrap:
+            while (true) {
+                SSLEngineResult result = engine.unwrap(netIn, appIn);
+                switch (result.getStatus()) {
+                    case BUFFER_UNDERFLOW:
+                        break unwrap; // Half a record; wait for the rest
+                    case BUFFER_OVERFLOW:
+                        appIn = grow(appIn, appIn.position() + engine.getSession().getApplicationBufferSize());
+                        continue;
+                    case CLOSED:
+                        inboundClosed = true;
+                        break unwrap;
+                    default:
+                        break;
+                }
+                if (!runHandshake()) {
+                    break;
+                }
+                if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+                    break; // Nothing more to do until netOut has been written
+                }
+                if (!netIn.hasRemaining() && result.getHandshakeStatus()
+                        != SSLEngineResult.HandshakeStatus.NEED_UNWRAP_AGAIN) {
+                    break;
+                }
+            }
+        } finally {
+            netIn.compact();
+        }
+        // A record can be bigger than the buffer we started with.
+        int packetSize = engine.getSession().getPacketBufferSize();
+        if (netIn.capacity() < packetSize) {
+            netIn = grow(netIn, packetSize);
+        }
+        appIn.flip();
+        if (inboundClosed && !appIn.hasRemaining()) {
+            return -1;
+        }
+        return read;
+    }
+
+    // What the last read() decrypted, ready to read.
+    ByteBuffer plaintext() {
+        return appIn;
+    }
+
+    // Runs delegated tasks and queues handshake messages. Returns false if the engine
+    // is waiting for more data from the peer.
+    private boolean runHandshake() throws SSLException {
+        while (true) {
+            switch (engine.getHandshakeStatus()) {
+                case NEED_TASK:
+                    Runnable task;
+                    while ((task = engine.getDelegatedTask()) != null) {
+                        task.run();
+                    }
+                    break;
+                case NEED_WRAP:
+                    if (!wrap(null)) {
+                        return true; // netOut is full; the caller flushes it and we carry on
+                    }
+                    break;
+                case NEED_UNWRAP:
+                    return netIn.hasRemaining();
+                default:
+                    return true;
+            }
+        }
+    }
+
+    // Encrypts as much of 'pending' as fits into netOut and writes netOut out.
+    // Returns the number of ciphertext bytes written.
+    int write(SocketChannel channel, Queue<ByteBuffer> pending) throws IOException {
+        int written = 0;
+        while (true) {
+            written += drain(channel);
+            if (netOut.position() > 0) {
+                break; // Socket buffer is full
+            }
+            runHandshake();
+            if (netOut.position() > 0) {
+                continue;
+            }
+            if (pending.isEmpty() || isHandshaking()) {
+                break; // Replies wait for the handshake to finish
+            }
+            if (!wrap(pending)) {
+                break;
+            }
+        }
+        return written;
+    }
+
+    long getPlaintextConsumed() {
+        return plaintextConsumed;
+    }
+
+    // Whether write() left anything that needs OP_WRITE. Replies held back by a
+    // handshake do not: the peer's next message moves the handshake on.
+    boolean hasOutput(Queue<ByteBuffer> pending) {
+        return netOut.position() > 0 || (!pending.isEmpty() && !isHandshaking());
+    }
+
+    private boolean isHandshaking() {
+        SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+        return status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING
+                && status != SSLEngineResult.HandshakeStatus.FINISHED;
+    }
+
+    // Several small replies go into one record. Returns false if netOut had no room.
+    private boolean wrap(Queue<ByteBuffer> pending) throws SSLException {
+        int count = 0;
+        if (pending != null) {
+            for (ByteBuffer buffer : pending) {
+                gather[count++] = buffer;
+                if (count == MAX_GATHER) {
+                    break;
+                }
+            }
+        }
+        SSLEngineResult result;
+        try {
+            result = engine.wrap(gather, 0, count, netOut);
+        } finally {
+            for (int i = 0; i < count; i++) {
+                gather[i] = null;
+            }
+        }
+        plaintextConsumed += result.bytesConsumed();
+        if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+            if (netOut.position() == 0) {
+                netOut = grow(netOut, engine.getSession().getPacketBufferSize());
+                return true;
+            }
+            return false;
+        }
+        if (pending != null) {
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                pending.clear(); // Nowhere to send them
+            }
+            while (!pending.isEmpty() && !pending.peek().hasRemaining()) {
+                pending.poll();
+            }
+        }
+        return result.getStatus() == SSLEngineResult.Status.OK;
+    }
+
+    private int drain(SocketChannel channel) throws IOException {
+        if (netOut.position() == 0) {
+            return 0;
+        }
+        netOut.flip();
+        try {
+            return channel.write(netOut);
+        } finally {
+            netOut.compact();
+        }
+    }
+
+    // Best effort: a close_notify if the socket takes it right away.
+    void close(SocketChannel channel) {
+        engine.closeOutbound();
+        try {
+            netOut.clear();
+            wrap(null);
+            drain(channel);
+        } catch (IOException e) {
+            // Closing anyway
+        }
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer, int capacity) {
+        ByteBuffer grown = ByteBuffer.allocate(Math.max(capacity, buffer.capacity()));
+        buffer.flip();
+        grown.put(buffer);
+        return grown;
+    }
+}
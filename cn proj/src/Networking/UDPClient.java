@@ -0,0 +1,674 @@
+package Networking;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Queue;
+import java.util.StringJoiner;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+// Client side of the UDP protocol. All messages leave from one socket, so the server
+// sees a single peer and can keep per-peer sequence state. Replies to "SEQ:n|"
+// messages come back as "ACK:n|<reply>" or "NACK:<missing>|n" and are matched on the
+// sending server and n; replies to plain messages are matched in the order they were
+// sent to that server.
+//
+// In reliable mode every message is sequenced and kept until it is ACKed: it is
+// resent when the server NACKs it or when its retransmission timeout expires, and
+// the timeout adapts to the measured round-trip time (selective-repeat ARQ). A seq
+// the client stops sending is named in a SKIP, so the server does not hold every
+// later message back waiting for it.
+public class UDPClient {
+    static final String TIMEOUT_RESPONSE = "Error: Server timeout";
+    private static final int MAX_RETRANSMISSIONS = 20;
+
+    private static final Map<String, UDPClient> DEFAULT_CLIENTS = new ConcurrentHashMap<>();
+
+    private final DatagramChannel channel;
+    // Sequence numbers are counted per server, so requests are kept per server too.
+    private final Map<SocketAddress, Server> servers = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer;
+    private volatile long timeoutMillis = 5000;
+
+    private final boolean reliable;
+    private final Semaphore sendWindow;
+    private final RttEstimator rtt = new RttEstimator(20, 2000);
+    private final AtomicInteger retransmissions = new AtomicInteger();
+
+    private final WireFormat wireFormat;
+    private final AtomicInteger messageIds = new AtomicInteger();
+    private final FragmentReassembler reassembler = new FragmentReassembler(10000, 256);
+    private volatile int compressionThreshold = -1;
+    private volatile boolean streaming;
+    private volatile BiConsumer<String, String> roomListener;
+    // Each server's answer to our HELLO, and when we last asked servers yet to answer.
+    private final Map<SocketAddress, String> helloAnswers = new ConcurrentHashMap<>();
+    private final Map<SocketAddress, Long> helloSent = new ConcurrentHashMap<>();
+
+    public UDPClient() throws IOException {
+        this(false, UDPSession.WINDOW_SIZE, WireFormat.TEXT);
+    }
+
+    // windowSize is the number of unacknowledged messages allowed in reliable mode;
+    // it should not exceed the server's receive window.
+    public UDPClient(boolean reliable, int windowSize, WireFormat wireFormat) throws IOException {
+        if (windowSize <= 0 || windowSize > UDPSession.WINDOW_SIZE) {
+            throw new IllegalArgumentException("windowSize must be between 1 and " + UDPSession.WINDOW_SIZE);
+        }
+        this.reliable = reliable;
+        this.wireFormat = wireFormat;
+        this.sendWindow = new Semaphore(windowSize);
+        channel = DatagramChannel.open();
+        channel.bind(null);
+        timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "udp-client-timer");
+            t.setDaemon(true);
+            return t;
+        });
+        Thread receiver = new Thread(this::receiveLoop, "udp-client-receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    // Shared by every UDPHandler with the same settings unless one is given its own client.
+    public static synchronized UDPClient getDefault(boolean reliable, WireFormat wireFormat) throws IOException {
+        String key = reliable + "/" + wireFormat;
+        UDPClient client = DEFAULT_CLIENTS.get(key);
+        if (client == null) {
+            client = new UDPClient(reliable, UDPSession.WINDOW_SIZE / 2, wireFormat);
+            DEFAULT_CLIENTS.put(key, client);
+        }
+        return client;
+    }
+
+    public void setTimeoutMillis(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    // In binary format, offers compression to each server with a HELLO and, once the
+    // server agrees, deflates messages of at least this many bytes. Negative (the
+    // default) never offers it.
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    // In binary format, also asks each server in the HELLO to stream replies, so that
+    // sendStreaming gets a StreamingBot's reply as it is produced. Only sequenced
+    // messages (reliable mode, or an explicit "SEQ:n|") are streamed.
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    // Room pushes from the servers this client talks to; see RoomRegistry.
+    public void setRoomListener(BiConsumer<String, String> roomListener) {
+        this.roomListener = roomListener;
+    }
+
+    public boolean isReliable() {
+        return reliable;
+    }
+
+    public long getRetransmissionTimeoutMillis() {
+        return rtt.getRtoMillis();
+    }
+
+    public int getRetransmissionCount() {
+        return retransmissions.get();
+    }
+
+    // Callback form: every failure short of a local I/O error is reported to the
+    // callback as TIMEOUT_RESPONSE, as it always has been.
+    public void send(String host, int port, String message, Consumer<String> onResponseReceived) {
+        sendAsync(host, port, message, 0).whenComplete((response, error) -> {
+            if (error == null) {
+                onResponseReceived.accept(response);
+            } else if (error instanceof IOException) {
+                error.printStackTrace();
+            } else {
+                onResponseReceived.accept(TIMEOUT_RESPONSE);
+            }
+        });
+    }
+
+    // timeoutMillis is the deadline for the reply; 0 falls back to the client's timeout
+    // in best-effort mode and to the retransmission limit in reliable mode. The future
+    // completes on the receiver thread, so dependent stages should not block. In
+    // reliable mode a deadline or cancel only ends the wait: the message keeps its
+    // window slot and is retransmitted until ACKed or given up, since the server
+    // holds every later message back until it has it.
+    public CompletableFuture<String> sendAsync(String host, int port, String message, long timeoutMillis) {
+        return sendStreaming(host, port, message, timeoutMillis, null);
+    }
+
+    // As sendAsync, and onChunk gets the reply in pieces on the receiver thread: each
+    // chunk that arrives in order, then whatever of the reply they did not cover. A
+    // lost or late chunk is only a gap that the reply fills. A reply that was not
+    // streamed is a single piece.
+    public CompletableFuture<String> sendStreaming(String host, int port, String message, long timeoutMillis,
+            Consumer<String> onChunk) {
+        CompletableFuture<String> result = new CompletableFuture<>();
+        if (timeoutMillis > 0) {
+            ScheduledFuture<?> deadline = timer.schedule(() -> result.completeExceptionally(
+                    new TimeoutException("No reply within " + timeoutMillis + " ms")), timeoutMillis,
+                    TimeUnit.MILLISECONDS);
+            result.whenComplete((response, error) -> deadline.cancel(false));
+        }
+        if (!reliable || sendWindow.tryAcquire()) {
+            start(host, port, message, timeoutMillis, onChunk, result);
+            return result;
+        }
+        // The window is full: wait for room on the shared client executor, not on the caller.
+        ClientExecutor.get().execute(() -> {
+            try {
+                sendWindow.acquire();
+            } catch (InterruptedException e) {
+                result.completeExceptionally(e);
+                return;
+            }
+            if (result.isDone()) {
+                sendWindow.release(); // Timed out or cancelled while waiting
+                return;
+            }
+            start(host, port, message, timeoutMillis, onChunk, result);
+        });
+        return result;
+    }
+
+    // In reliable mode the caller already holds a window slot. Sequence numbers are only
+    // assigned here, after the slot, so everything in flight fits the server's window.
+    private void start(String host, int port, String message, long timeoutMillis, Consumer<String> onChunk,
+            CompletableFuture<String> result) {
+        Pending pending;
+        Pending previous = null;
+        try {
+            InetSocketAddress address = new InetSocketAddress(host, port);
+            byte[] data = message.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer body = ByteBuffer.wrap(data);
+            int seq = UDPHandler.parseSequenceHeader(body);
+            Server server = server(address);
+
+            // A seq is taken and registered in one step, so skipAbandoned never sees a
+            // number below nextSeq that is still on its way into 'sequenced'.
+            synchronized (server) {
+                if (reliable) {
+                    if (seq < 0) {
+                        seq = server.nextSeq.getAndIncrement();
+                        if (wireFormat == WireFormat.TEXT) {
+                            data = ("SEQ:" + seq + "|" + message).getBytes(StandardCharsets.UTF_8);
+                        }
+                    } else {
+                        int explicit = seq;
+                        server.nextSeq.accumulateAndGet(explicit + 1, Math::max);
+                    }
+                }
+
+                ByteBuffer[] datagrams;
+                if (wireFormat == WireFormat.BINARY) {
+                    // The sequence number travels in the frame header, not in the text.
+                    byte[] payload = new byte[body.remaining()];
+                    body.get(payload);
+                    datagrams = FrameCodec.encodeDatagrams(FrameCodec.TYPE_MESSAGE, seq,
+                            messageIds.incrementAndGet(), payload, compressionThresholdFor(address))
+                            .toArray(new ByteBuffer[0]);
+                } else {
+                    datagrams = new ByteBuffer[] { ByteBuffer.wrap(data) };
+                }
+                pending = new Pending(seq, datagrams, address, onChunk, result);
+                if (seq >= 0) {
+                    previous = server.sequenced.put(seq, pending);
+                } else {
+                    server.unsequenced.add(pending);
+                }
+            }
+        } catch (RuntimeException e) {
+            if (reliable) {
+                sendWindow.release();
+            }
+            result.completeExceptionally(e);
+            return;
+        }
+
+        if (previous != null) {
+            previous.fail(new CancellationException("Superseded by a resend of SEQ:" + pending.seq));
+            previous.end(false);
+        }
+        if (!reliable) {
+            // Registered only now, so a caller that already gave up still cleans up.
+            result.whenComplete((response, error) -> pending.end(false));
+        }
+
+        if (reliable) {
+            pending.rto = rtt.getRtoMillis();
+            transmit(pending);
+        } else {
+            long wait = timeoutMillis > 0 ? timeoutMillis : this.timeoutMillis;
+            pending.timeout = timer.schedule(() -> pending.fail(new TimeoutException("No reply within " + wait
+                    + " ms")), wait, TimeUnit.MILLISECONDS);
+            try {
+                sendAll(pending);
+            } catch (IOException e) {
+                pending.fail(e);
+            }
+        }
+    }
+
+    private Server server(SocketAddress address) {
+        return servers.computeIfAbsent(address, k -> new Server());
+    }
+
+    // Messages go out uncompressed, and replies come back whole, until the server has
+    // answered a HELLO. The HELLO itself may be lost, so it is repeated at most once a
+    // second until answered.
+    private int compressionThresholdFor(InetSocketAddress server) {
+        int threshold = compressionThreshold;
+        boolean streaming = this.streaming;
+        if (threshold < 0 && !streaming) {
+            return -1;
+        }
+        String agreed = helloAnswers.get(server);
+        if (agreed != null) {
+            return threshold >= 0 && PayloadCompression.isOffered(agreed) ? threshold : -1;
+        }
+        long now = System.nanoTime();
+        Long asked = helloSent.get(server);
+        if (asked == null || now - asked > TimeUnit.SECONDS.toNanos(1)) {
+            helloSent.put(server, now);
+            StringJoiner offered = new StringJoiner(",");
+            if (threshold >= 0) {
+                offered.add(PayloadCompression.NAME);
+            }
+            if (streaming) {
+                offered.add(FrameCodec.OPTION_STREAM);
+            }
+            try {
+                channel.send(FrameCodec.encode(FrameCodec.TYPE_HELLO, FrameCodec.NO_SEQUENCE, offered.toString()),
+                        server);
+            } catch (IOException e) {
+                // Asked again with a later message
+            }
+        }
+        return -1;
+    }
+
+    private void sendAll(Pending pending) throws IOException {
+        for (ByteBuffer datagram : pending.datagrams) {
+            channel.send(datagram.duplicate(), pending.address);
+        }
+    }
+
+    private void transmit(Pending pending) {
+        synchronized (pending) {
+            if (pending.ended) {
+                return;
+            }
+            if (pending.timeout != null) {
+                pending.timeout.cancel(false);
+            }
+            if (pending.transmissions > MAX_RETRANSMISSIONS) {
+                timer.execute(() -> {
+                    pending.fail(new TimeoutException("No reply after " + MAX_RETRANSMISSIONS + " retransmissions"));
+                    pending.end(false);
+                });
+                return;
+            }
+            if (pending.transmissions > 0) {
+                retransmissions.incrementAndGet();
+            }
+            pending.transmissions++;
+            pending.held = false;
+            pending.lastSent = System.nanoTime();
+            pending.timeout = timer.schedule(() -> onRetransmissionTimeout(pending), pending.rto,
+                    TimeUnit.MILLISECONDS);
+        }
+        try {
+            sendAll(pending);
+        } catch (IOException e) {
+            // Leave it to the retransmission timer
+        }
+    }
+
+    private void onRetransmissionTimeout(Pending pending) {
+        synchronized (pending) {
+            pending.rto = rtt.backoff(pending.rto);
+        }
+        transmit(pending);
+    }
+
+    private void receiveLoop() {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        try {
+            while (true) {
+                buffer.clear();
+                SocketAddress sender = channel.receive(buffer);
+                buffer.flip();
+                if (FrameCodec.isBinary(buffer)) {
+                    dispatchFrame(buffer, sender);
+                } else {
+                    dispatch(StandardCharsets.UTF_8.decode(buffer).toString(), sender);
+                }
+            }
+        } catch (ClosedChannelException e) {
+            // Client closed
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Anything from an address we never sent to is not a reply.
+    private void dispatch(String response, SocketAddress sender) {
+        Server server = servers.get(sender);
+        if (server == null) {
+            return;
+        }
+        if (RoomRegistry.isPush(response)) {
+            RoomRegistry.deliverPush(response.substring(RoomRegistry.PUSH_PREFIX.length()), roomListener);
+        } else if (response.startsWith("ACK:")) {
+            int split = response.indexOf('|');
+            if (split > 0) {
+                String reply = RoomRegistry.unescapeReply(response.substring(split + 1));
+                onReply(server, parseInt(response, 4, split), reply);
+            }
+        } else if (response.startsWith("NACK:")) {
+            int split = response.lastIndexOf('|');
+            if (split > 0) {
+                onNack(server, sender, parseInt(response, split + 1, response.length()), response.substring(5, split));
+            }
+        } else {
+            onUnsequencedReply(server, RoomRegistry.unescapeReply(response));
+        }
+    }
+
+    private void dispatchFrame(ByteBuffer datagram, SocketAddress sender) {
+        FrameCodec.Frame frame;
+        try {
+            frame = FrameCodec.decode(datagram);
+            if (frame != null && frame.type == FrameCodec.TYPE_FRAGMENT) {
+                frame = reassembler.add(sender, frame);
+            }
+        } catch (ProtocolException e) {
+            return; // Not ours
+        }
+        if (frame == null) {
+            return;
+        }
+        Server server = servers.get(sender);
+        if (frame.type == FrameCodec.TYPE_HELLO) {
+            helloAnswers.put(sender, frame.text());
+            helloSent.remove(sender);
+        } else if (server == null) {
+            return;
+        } else if (frame.type == FrameCodec.TYPE_ROOM) {
+            RoomRegistry.deliverPush(frame.text(), roomListener);
+        } else if (frame.type == FrameCodec.TYPE_CHUNK) {
+            if (frame.seq >= 0) {
+                onChunk(server, frame);
+            }
+        } else if (frame.type == FrameCodec.TYPE_REPLY || frame.type == FrameCodec.TYPE_SLOW_DOWN) {
+            if (frame.seq >= 0) {
+                onReply(server, frame.seq, frame.text());
+            } else {
+                onUnsequencedReply(server, frame.text());
+            }
+        } else if (frame.type == FrameCodec.TYPE_NACK) {
+            onNack(server, sender, frame.seq, frame.text());
+        }
+    }
+
+    private void onReply(Server server, int seq, String response) {
+        Pending pending = server.sequenced.get(seq);
+        if (pending != null) {
+            if (reliable && pending.transmissions == 1 && !pending.held) {
+                rtt.sample(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - pending.lastSent));
+            }
+            pending.complete(response);
+            pending.end(true); // Even if the caller stopped waiting
+        }
+    }
+
+    private void onChunk(Server server, FrameCodec.Frame chunk) {
+        Pending pending = server.sequenced.get(chunk.seq);
+        if (pending == null || pending.onChunk == null) {
+            return;
+        }
+        try {
+            pending.chunk(FrameCodec.chunkOffset(chunk), FrameCodec.chunkText(chunk));
+        } catch (ProtocolException e) {
+            return; // The reply carries the whole text anyway
+        }
+        if (reliable) {
+            onHeld(pending); // The server has the message; only the rest of the reply is missing
+        }
+    }
+
+    // 'seq' is the message that revealed the gap, 'missing' the ranges the server lacks.
+    private void onNack(Server server, SocketAddress sender, int seq, String missing) {
+        Pending pending = server.sequenced.get(seq);
+        if (reliable) {
+            // The NACKed message itself is held by the server, so it counts as delivered
+            // for timing purposes; resend what the server says is missing in front of it.
+            if (pending != null) {
+                onHeld(pending);
+            }
+            retransmitMissing(server, missing);
+            skipAbandoned(server, sender, missing, seq);
+            return;
+        }
+        if (pending != null) {
+            pending.complete("NACK:" + missing);
+        }
+    }
+
+    private void onUnsequencedReply(Server server, String response) {
+        Pending pending;
+        // Skip entries that already timed out.
+        while ((pending = server.unsequenced.poll()) != null) {
+            if (pending.complete(response)) {
+                break;
+            }
+        }
+    }
+
+    // The server buffers the message until the gap is filled and then ACKs it. Its
+    // timer is pushed back rather than cancelled, in case the server loses the session.
+    private void onHeld(Pending pending) {
+        synchronized (pending) {
+            if (pending.ended || pending.held) {
+                return;
+            }
+            pending.held = true;
+            if (pending.transmissions == 1) {
+                rtt.sample(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - pending.lastSent));
+            }
+            if (pending.timeout != null) {
+                pending.timeout.cancel(false);
+            }
+            pending.rto = rtt.backoff(pending.rto);
+            pending.timeout = timer.schedule(() -> onRetransmissionTimeout(pending), pending.rto,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // ranges looks like "3-5,8"
+    private void retransmitMissing(Server server, String ranges) {
+        long minGap = TimeUnit.MILLISECONDS.toNanos(Math.max(1, (long) rtt.getSrttMillis()));
+        for (String range : ranges.split(",")) {
+            int dash = range.indexOf('-');
+            int from = parseInt(range, 0, dash < 0 ? range.length() : dash);
+            int to = dash < 0 ? from : parseInt(range, dash + 1, range.length());
+            for (int seq = from; seq >= 0 && seq <= to; seq++) {
+                Pending pending = server.sequenced.get(seq);
+                // Several NACKs can name the same gap; one resend per round trip is enough.
+                if (pending != null && System.nanoTime() - pending.lastSent > minGap) {
+                    transmit(pending);
+                }
+            }
+        }
+    }
+
+    // The server is missing seqs from the start of 'missing' up to 'seq' that are no
+    // longer in flight here: given up on, or ACKed before the server lost its session.
+    // The whole stretch is checked rather than just the NACKed ranges, since those only
+    // reach a window ahead of the server.
+    private void skipAbandoned(Server server, SocketAddress address, String missing, int seq) {
+        int end = 0;
+        while (end < missing.length() && Character.isDigit(missing.charAt(end))) {
+            end++;
+        }
+        int from = parseInt(missing, 0, end);
+        if (from < 0) {
+            return;
+        }
+        StringJoiner ranges = new StringJoiner(",");
+        synchronized (server) {
+            int to = Math.min(seq, server.nextSeq.get());
+            int runStart = -1;
+            for (int s = from; s <= to; s++) {
+                boolean abandoned = s < to && !server.sequenced.containsKey(s);
+                if (abandoned && runStart < 0) {
+                    runStart = s;
+                } else if (!abandoned && runStart >= 0) {
+                    ranges.add(runStart == s - 1 ? Integer.toString(runStart) : runStart + "-" + (s - 1));
+                    runStart = -1;
+                }
+            }
+        }
+        if (ranges.length() > 0) {
+            sendSkip(address, ranges.toString());
+        }
+    }
+
+    private void sendSkip(SocketAddress address, String ranges) {
+        ByteBuffer datagram = wireFormat == WireFormat.BINARY
+                ? FrameCodec.encode(FrameCodec.TYPE_SKIP, FrameCodec.NO_SEQUENCE, ranges)
+                : ByteBuffer.wrap((UDPHandler.SKIP_PREFIX + ranges).getBytes(StandardCharsets.UTF_8));
+        try {
+            channel.send(datagram, address);
+        } catch (IOException e) {
+            // The server's next NACK brings it up again
+        }
+    }
+
+    private static int parseInt(String s, int from, int to) {
+        try {
+            return Integer.parseInt(s, from, to, 10);
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            return -1;
+        }
+    }
+
+    public void close() throws IOException {
+        channel.close();
+        timer.shutdownNow();
+    }
+
+    // What is in flight to one server.
+    private static final class Server {
+        private final AtomicInteger nextSeq = new AtomicInteger();
+        private final Map<Integer, Pending> sequenced = new ConcurrentHashMap<>();
+        private final Queue<Pending> unsequenced = new ConcurrentLinkedQueue<>();
+    }
+
+    private final class Pending {
+        private final int seq;
+        private final ByteBuffer[] datagrams;
+        private final InetSocketAddress address;
+        private final Consumer<String> onChunk;
+        private final CompletableFuture<String> result;
+        private volatile ScheduledFuture<?> timeout;
+        // Chars of the reply handed to onChunk so far
+        private int delivered;
+        // Reliable mode only
+        private volatile int transmissions;
+        private volatile long lastSent;
+        private long rto;
+        private boolean held;
+        private boolean ended;
+
+        Pending(int seq, ByteBuffer[] datagrams, InetSocketAddress address, Consumer<String> onChunk,
+                CompletableFuture<String> result) {
+            this.seq = seq;
+            this.datagrams = datagrams;
+            this.address = address;
+            this.onChunk = onChunk;
+            this.result = result;
+        }
+
+        // Chunks only come from the receiver thread, so they are handed over in order.
+        void chunk(int offset, String text) {
+            synchronized (this) {
+                if (result.isDone() || offset != delivered || text.isEmpty()) {
+                    return;
+                }
+                delivered += text.length();
+            }
+            onChunk.accept(text);
+        }
+
+        boolean complete(String response) {
+            if (onChunk != null) {
+                String rest;
+                synchronized (this) {
+                    if (result.isDone()) {
+                        return false;
+                    }
+                    rest = delivered == 0 ? response : response.substring(Math.min(delivered, response.length()));
+                    delivered = response.length();
+                }
+                if (!rest.isEmpty() || response.isEmpty()) {
+                    onChunk.accept(rest);
+                }
+            }
+            return result.complete(response);
+        }
+
+        void fail(Throwable error) {
+            result.completeExceptionally(error);
+        }
+
+        // Runs once, when the message is no longer sent or waited for: in best-effort mode
+        // when the future completes, in reliable mode on its ACK, when it is superseded or
+        // when the retransmissions run out. A reliable message that ends unACKed is never
+        // sent again, so the server is told to stop waiting for it.
+        void end(boolean acked) {
+            synchronized (this) {
+                if (ended) {
+                    return;
+                }
+                ended = true;
+            }
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+            Server server = servers.get(address);
+            if (seq >= 0) {
+                server.sequenced.remove(seq, this);
+            } else {
+                server.unsequenced.remove(this);
+            }
+            if (reliable) {
+                sendWindow.release();
+                if (!acked && server.sequenced.get(seq) == null) {
+                    sendSkip(address, Integer.toString(seq));
+                }
+            }
+        }
+    }
+}
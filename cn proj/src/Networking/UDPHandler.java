@@ -1,132 +1,764 @@
 package Networking;
 
+import Bot.StreamingBot;
+import History.MessageLog;
+import Metrics.ServerMetrics;
 import java.io.IOException;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
 public class UDPHandler implements NetworkManager {
-    private DatagramSocket socket;
-    private boolean isRunning;
-    private boolean simulatePacketLoss = false;
-    private int expectedSequenceNumber = 0;
-    private java.util.Random random = new java.util.Random();
+    // Large enough for any UDP payload, so nothing gets truncated on receive.
+    private static final int DATAGRAM_BUFFER_SIZE = 64 * 1024;
+    private static final BufferPool BUFFERS = new BufferPool(DATAGRAM_BUFFER_SIZE, 64);
+    // At most 3 UTF-8 bytes a char, so a chunk of this many always fits one datagram.
+    private static final int MAX_CHUNK_CHARS = 300;
+
+    private DatagramChannel channel;
+    private volatile boolean isRunning;
+    // Simulated network conditions for traffic arriving at the server; null for none.
+    private volatile NetworkImpairment impairment;
+    // Datagrams that got through the impairment are handled here once they arrive, as
+    // many at a time as there are receiver threads, each with a receiver of its own.
+    private ExecutorService impairedHandlers;
+    private ThreadLocal<Receiver> impairedReceivers;
+    private int receiverThreads = 1;
+    // When set, receiver threads hand messages to the pipeline instead of calling the
+    // bot themselves; its workers send the replies.
+    private volatile BotPipeline botPipeline;
+    private volatile ServerMetrics metrics = new ServerMetrics();
+    // Peers that have joined a room, swept with the sessions once idle.
+    private volatile RoomRegistry rooms;
+    private final Map<SocketAddress, DatagramRoomMember> roomMembers = new ConcurrentHashMap<>();
+    // Every exchange is appended here when set, keyed by "udp:<client host>", and
+    // "/history" reads the client's recent exchanges back from it.
+    private volatile MessageLog messageLog;
+
+    // Sequence state is kept per sending address, so concurrent clients do not trip
+    // over each other's numbering. Idle sessions are swept so memory stays bounded.
+    private final Map<SocketAddress, UDPSession> sessions = new ConcurrentHashMap<>();
+    private ScheduledExecutorService sessionSweeper;
+    private long sessionTimeoutMillis = 60000;
+
+    private volatile UDPClient client;
+    // Whether 'client' is a shared default, or one this handler made and must close.
+    private boolean sharedClient;
+    private boolean ownClient;
+    private volatile BiConsumer<String, String> roomListener;
+    private boolean reliable;
+    private WireFormat wireFormat = WireFormat.TEXT;
+
+    // Binary clients may send messages larger than one datagram.
+    private final FragmentReassembler reassembler = new FragmentReassembler(10000, 1024);
+    private final AtomicInteger replyMessageIds = new AtomicInteger();
+    // Binary peers that agreed to compression or streaming in a HELLO, swept with the sessions.
+    private volatile int compressionThreshold = PayloadCompression.DEFAULT_THRESHOLD;
+    private final Map<SocketAddress, HelloPeer> helloPeers = new ConcurrentHashMap<>();
+    private volatile RateLimiter rateLimiter;
 
     @Override
     public void setSimulatePacketLoss(boolean simulate) {
-        this.simulatePacketLoss = simulate;
+        setImpairment(simulate ? NetworkImpairment.packetLoss(0.5) : null); // 50% chance to drop
+    }
+
+    public void setImpairment(NetworkImpairment impairment) {
+        NetworkImpairment previous = this.impairment;
+        this.impairment = impairment;
+        if (previous != null && previous != impairment) {
+            previous.shutdown();
+        }
+    }
+
+    // Several threads may block in receive on the same channel; each one then decodes,
+    // runs the bot and replies independently, so the work spreads across cores.
+    public void setReceiverThreads(int receiverThreads) {
+        if (receiverThreads <= 0) {
+            throw new IllegalArgumentException("receiverThreads must be positive");
+        }
+        this.receiverThreads = receiverThreads;
+    }
+
+    public void setBotPipeline(BotPipeline botPipeline) {
+        this.botPipeline = botPipeline;
+    }
+
+    public void setMetrics(ServerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void setRoomRegistry(RoomRegistry rooms) {
+        this.rooms = rooms;
+    }
+
+    public void setMessageLog(MessageLog messageLog) {
+        this.messageLog = messageLog;
+    }
+
+    // Replies to binary peers that asked for compression are deflated from this many
+    // bytes up; a negative value turns every request for compression down.
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    // Checked for every message before it reaches the bot, keyed by the sender's address.
+    // Under SHED, limited messages get no reply at all, which costs a flooding peer's
+    // receive thread the least.
+    public void setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    public void setSessionTimeoutMillis(long sessionTimeoutMillis) {
+        this.sessionTimeoutMillis = sessionTimeoutMillis;
+    }
+
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    // Reliable mode retransmits until every message is acknowledged; see UDPClient.
+    public void setReliable(boolean reliable) {
+        this.reliable = reliable;
+        replaceClient(null);
+    }
+
+    // Format used by sendMessage; the server always accepts both.
+    public void setWireFormat(WireFormat wireFormat) {
+        this.wireFormat = wireFormat;
+        replaceClient(null);
+    }
+
+    public void setClient(UDPClient client) {
+        replaceClient(client);
+        if (client != null && roomListener != null) {
+            client.setRoomListener(roomListener);
+        }
+    }
+
+    private synchronized void replaceClient(UDPClient replacement) {
+        if (ownClient) {
+            try {
+                client.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        client = replacement;
+        sharedClient = false;
+        ownClient = false;
     }
 
     @Override
     public void startServer(int port, Function<String, String> onMessageReceived) {
-        new Thread(() -> {
+        try {
+            channel = DatagramChannel.open();
+            channel.bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        isRunning = true;
+        impairedReceivers = ThreadLocal.withInitial(() -> new Receiver(onMessageReceived));
+        AtomicInteger handlerCount = new AtomicInteger();
+        impairedHandlers = Executors.newFixedThreadPool(receiverThreads, r -> {
+            Thread t = new Thread(r, "udp-impaired-" + port + "-" + handlerCount.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+        sessions.clear(); // Reset on start
+        sessionSweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "udp-session-sweeper-" + port);
+            t.setDaemon(true);
+            return t;
+        });
+        sessionSweeper.scheduleWithFixedDelay(this::evictIdleSessions, 1, 1, TimeUnit.SECONDS);
+
+        for (int i = 0; i < receiverThreads; i++) {
+            new Thread(() -> receiveLoop(onMessageReceived), "udp-receiver-" + port + "-" + i).start();
+        }
+    }
+
+    private void receiveLoop(Function<String, String> onMessageReceived) {
+        Receiver receiver = new Receiver(onMessageReceived);
+        ByteBuffer receiveBuffer = receiver.receiveBuffer;
+        try {
+            while (isRunning) {
+                receiveBuffer.clear();
+                SocketAddress sender = channel.receive(receiveBuffer);
+                receiveBuffer.flip();
+                metrics.bytesIn(receiveBuffer.remaining());
+
+                NetworkImpairment impairment = this.impairment;
+                if (impairment == null) {
+                    receiver.handle(receiveBuffer, sender);
+                    continue;
+                }
+                // The receive buffer is reused straight away, so delayed delivery needs a copy.
+                byte[] copy = new byte[receiveBuffer.remaining()];
+                receiveBuffer.get(copy);
+                int copies = impairment.transmit(copy.length, () -> handleImpaired(copy, sender));
+                if (copies == 0) {
+                    metrics.dropped(); // Simulated loss
+                }
+            }
+        } catch (ClosedChannelException e) {
+            // Channel closed by stopServer
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            receiver.release();
+        }
+    }
+
+    // Runs when the datagram arrives, on the impairment thread; the bot is left to the
+    // handlers so one slow reply does not hold up every later arrival.
+    private void handleImpaired(byte[] datagram, SocketAddress sender) {
+        ThreadLocal<Receiver> receivers = impairedReceivers;
+        try {
+            impairedHandlers.execute(() -> {
+                try {
+                    receivers.get().handle(ByteBuffer.wrap(datagram), sender);
+                } catch (IOException e) {
+                    // Server stopped while the datagram was in flight
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Server stopped
+        }
+    }
+
+    // Per-thread receive state: everything is set up once and reused for every datagram.
+    private final class Receiver {
+        private final Function<String, String> onMessageReceived;
+        private final ByteBuffer receiveBuffer = BUFFERS.acquire();
+        private final ByteBuffer sendBuffer = BUFFERS.acquire();
+        private final CharBuffer chars = CharBuffer.allocate(DATAGRAM_BUFFER_SIZE);
+        private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        Receiver(Function<String, String> onMessageReceived) {
+            this.onMessageReceived = onMessageReceived;
+        }
+
+        void handle(ByteBuffer datagram, SocketAddress sender) throws IOException {
+            long received = System.nanoTime();
+            if (FrameCodec.isBinary(datagram)) {
+                handleFrame(datagram, sender, received);
+                return;
+            }
+            int seqNum = parseSequenceHeader(datagram);
+            String content = decode(datagram);
+            if (seqNum < 0 && content.startsWith(SKIP_PREFIX)) {
+                skip(content.substring(SKIP_PREFIX.length()), sender, false, received);
+                return;
+            }
+            handleMessage(seqNum, content, sender, false, received);
+        }
+
+        private void handleFrame(ByteBuffer datagram, SocketAddress sender, long received) throws IOException {
+            FrameCodec.Frame frame;
             try {
-                socket = new DatagramSocket(port);
-                isRunning = true;
-                expectedSequenceNumber = 0; // Reset on start
-
-                byte[] buffer = new byte[1024];
-                while (isRunning) {
-                    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                    socket.receive(packet);
-                    String received = new String(packet.getData(), 0, packet.getLength());
-
-                    // Packet Loss Simulation
-                    if (simulatePacketLoss && random.nextInt(100) < 50) { // 50% chance to drop
-                        System.out.println("Server: Packet Dropped! (Simulated)");
-                        continue; // Drop packet
-                    }
+                frame = FrameCodec.decode(datagram);
+                if (frame != null && frame.type == FrameCodec.TYPE_FRAGMENT) {
+                    frame = reassembler.add(sender, frame);
+                }
+            } catch (ProtocolException e) {
+                metrics.dropped();
+                return; // Corrupt datagram, drop it
+            }
+            if (frame != null && frame.type == FrameCodec.TYPE_HELLO) {
+                hello(frame.text(), sender);
+            } else if (frame != null && frame.type == FrameCodec.TYPE_MESSAGE) {
+                handleMessage(frame.seq, frame.text(), sender, true, received);
+            } else if (frame != null && frame.type == FrameCodec.TYPE_SKIP) {
+                skip(frame.text(), sender, true, received);
+            }
+        }
+
+        // A client gave up on these seqs, or they were ACKed before this session lost
+        // them; whatever was held back behind them can go to the bot now.
+        private void skip(String ranges, SocketAddress sender, boolean binary, long received) throws IOException {
+            UDPSession session = sessions.get(sender);
+            if (session == null) {
+                return;
+            }
+            synchronized (session) {
+                for (UDPSession.Delivery delivery : session.skip(ranges)) {
+                    answer(session, binary, delivery.seq, delivery.content, sender, received);
+                }
+            }
+        }
 
-                    String response;
-                    // Parse Sequence Number
-                    if (received.startsWith("SEQ:")) {
-                        try {
-                            int splitIndex = received.indexOf("|");
-                            if (splitIndex != -1) {
-                                int seqNum = Integer.parseInt(received.substring(4, splitIndex));
-                                String content = received.substring(splitIndex + 1);
-
-                                if (seqNum > expectedSequenceNumber) {
-                                    // Gap Detected
-                                    response = "NACK:" + expectedSequenceNumber;
-                                    // We do NOT update expectedSequenceNumber because we still need the missing one
-                                    // But for this simple simulation, we might want to just notify and move on,
-                                    // or strictly wait. The requirement says "notify ... that i have not received".
-                                    // Sending NACK is the notification.
-                                    // To allow the chat to continue, we might want to accept it anyway or just
-                                    // NACK.
-                                    // Let's just NACK and NOT process the message content to simulate "waiting" or
-                                    // "alerting".
-                                    // Actually, if we NACK, the client knows.
-                                    // Let's also process the message so the chat doesn't get stuck,
-                                    // BUT the NACK serves as the "I missed something before this" notification.
-                                    // However, standard ARQ would discard out-of-order.
-                                    // Let's stick to the user request: "send the client that i have not recieved
-                                    // the message".
-                                    // So we send NACK.
-                                } else {
-                                    if (seqNum == expectedSequenceNumber) {
-                                        expectedSequenceNumber++;
-                                    }
-                                    // Process normally
-                                    response = onMessageReceived.apply(content);
-                                }
-                            } else {
-                                response = onMessageReceived.apply(received);
-                            }
-                        } catch (NumberFormatException e) {
-                            response = onMessageReceived.apply(received);
-                        }
-                    } else {
-                        response = onMessageReceived.apply(received);
+        // A peer may say hello again at any time, e.g. after a restart; the last one wins.
+        private void hello(String options, SocketAddress sender) throws IOException {
+            boolean compress = compressionThreshold >= 0 && PayloadCompression.isOffered(options);
+            boolean stream = FrameCodec.offers(options, FrameCodec.OPTION_STREAM);
+            StringJoiner agreed = new StringJoiner(",");
+            if (compress || stream) {
+                helloPeers.put(sender, new HelloPeer(compress, stream));
+            } else {
+                helloPeers.remove(sender);
+            }
+            if (compress) {
+                agreed.add(PayloadCompression.NAME);
+            }
+            if (stream) {
+                agreed.add(FrameCodec.OPTION_STREAM);
+            }
+            reply(true, FrameCodec.TYPE_HELLO, FrameCodec.NO_SEQUENCE, agreed.toString(), sender);
+        }
+
+        // 'received' is when the datagram completing the message arrived; a message
+        // held back for a gap is timed from the datagram that released it.
+        private void handleMessage(int seqNum, String content, SocketAddress sender, boolean binary, long received)
+                throws IOException {
+            metrics.messageIn();
+            if (seqNum < 0) {
+                answer(null, binary, seqNum, content, sender, received);
+                return;
+            }
+
+            // Every session starts at 0, whichever datagram arrives first. A peer whose
+            // session was evicted while it idled is NACKed for everything before its
+            // next seq and SKIPs what it already had ACKed.
+            UDPSession session = sessions.computeIfAbsent(sender, k -> new UDPSession(0));
+            // Held per peer so that messages released from the window reach the bot
+            // in order even with several receiver threads.
+            synchronized (session) {
+                if (session.isDelivered(seqNum)) {
+                    // A retransmission: its reply was lost or is still being worked on.
+                    UDPSession.Reply cached = session.replyTo(seqNum);
+                    if (cached != null) {
+                        reply(binary, cached.type, seqNum, cached.text, sender);
                     }
+                    return;
+                }
+                List<UDPSession.Delivery> deliveries = session.receive(seqNum, content);
+                if (deliveries.isEmpty()) {
+                    // Gap Detected: tell the client which messages we are still missing.
+                    reply(binary, FrameCodec.TYPE_NACK, seqNum, session.missingRanges(seqNum), sender);
+                    metrics.nacked();
+                }
+                for (UDPSession.Delivery delivery : deliveries) {
+                    answer(session, binary, delivery.seq, delivery.content, sender, received);
+                }
+            }
+        }
 
-                    byte[] responseData = response.getBytes();
+        // With a pipeline, messages from one peer still leave the session in order, but
+        // workers may answer them concurrently; clients match replies by sequence number.
+        // Replies to sequenced messages are remembered in their session (null for
+        // unsequenced ones) for retransmissions to get.
+        private void answer(UDPSession session, boolean binary, int seq, String content, SocketAddress sender,
+                long received) throws IOException {
+            RateLimiter limiter = rateLimiter;
+            if (limiter != null && !limiter.tryAcquire(((InetSocketAddress) sender).getAddress())) {
+                metrics.dropped();
+                if (limiter.getPolicy() == RateLimiter.LimitPolicy.SLOW_DOWN) {
+                    byte type = binary ? FrameCodec.TYPE_SLOW_DOWN : FrameCodec.TYPE_REPLY;
+                    remember(session, seq, type, RateLimiter.SLOW_DOWN_REPLY);
+                    reply(binary, type, seq, RateLimiter.SLOW_DOWN_REPLY, sender);
+                }
+                return;
+            }
+            MessageLog log = messageLog;
+            if (log != null && MessageLog.isCommand(content)) {
+                String history = log.handleCommand(logKey(sender), content);
+                remember(session, seq, FrameCodec.TYPE_REPLY, history);
+                reply(binary, FrameCodec.TYPE_REPLY, seq, history, sender);
+                metrics.replied(received);
+                return;
+            }
+            RoomRegistry rooms = UDPHandler.this.rooms;
+            if (rooms != null && RoomRegistry.isCommand(content)) {
+                DatagramRoomMember member = roomMembers.computeIfAbsent(sender,
+                        k -> new DatagramRoomMember(sender, binary));
+                String roomReply = rooms.handleCommand(member, content);
+                remember(session, seq, FrameCodec.TYPE_REPLY, roomReply);
+                reply(binary, FrameCodec.TYPE_REPLY, seq, roomReply, sender);
+                record(sender, content, roomReply);
+                metrics.replied(received);
+                return;
+            }
+            if (rooms != null) {
+                DatagramRoomMember member = roomMembers.get(sender);
+                if (member != null) {
+                    member.lastSeen = received; // Any message keeps a member in its rooms
+                }
+            }
+            BotPipeline pipeline = botPipeline;
+            // Chunks need a seq for the client to match them by.
+            boolean stream = binary && seq >= 0 && streamsTo(sender);
+            if (pipeline == null && stream && onMessageReceived instanceof StreamingBot) {
+                AtomicInteger streamed = new AtomicInteger();
+                StringBuilder whole = new StringBuilder();
+                ((StreamingBot) onMessageReceived).stream(content, chunk -> {
+                    whole.append(chunk);
+                    sendChunk(seq, streamed.getAndAdd(chunk.length()), chunk, sender);
+                });
+                String response = whole.toString();
+                remember(session, seq, FrameCodec.TYPE_REPLY, response);
+                reply(true, FrameCodec.TYPE_REPLY, seq, response, sender);
+                record(sender, content, response);
+                metrics.replied(received);
+                return;
+            }
+            if (pipeline == null) {
+                String response = onMessageReceived.apply(content);
+                remember(session, seq, FrameCodec.TYPE_REPLY, response);
+                reply(binary, FrameCodec.TYPE_REPLY, seq, response, sender);
+                record(sender, content, response);
+                metrics.replied(received);
+                return;
+            }
+            try {
+                // Under BLOCK this stalls the receiver, and the socket buffer absorbs the excess.
+                AtomicInteger streamed = new AtomicInteger();
+                Consumer<String> onChunk = !stream ? null
+                        : chunk -> sendChunk(seq, streamed.getAndAdd(chunk.length()), chunk, sender);
+                boolean queued = pipeline.submit(content, onChunk, response -> {
+                    remember(session, seq, FrameCodec.TYPE_REPLY, response);
+                    sendReply(binary, seq, response, sender);
+                    record(sender, content, response);
+                    metrics.replied(received);
+                });
+                if (!queued) {
+                    metrics.dropped();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // Answers in the format the request came in.
+        private void reply(boolean binary, byte type, int seq, String text, SocketAddress to) throws IOException {
+            if (binary) {
+                byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+                int threshold = compressionThresholdFor(to);
+                if (FrameCodec.maxEncodedSize(payload.length) <= FrameCodec.MAX_DATAGRAM_SIZE) {
+                    sendBuffer.clear();
+                    FrameCodec.encode(type, seq, payload, threshold, sendBuffer);
+                    sendBuffer.flip();
+                    metrics.bytesOut(channel.send(sendBuffer, to));
+                    return;
+                }
+                for (ByteBuffer fragment : FrameCodec.encodeDatagrams(type, seq, replyMessageIds.incrementAndGet(),
+                        payload, threshold)) {
+                    metrics.bytesOut(channel.send(fragment, to));
+                }
+                return;
+            }
+            if (type == FrameCodec.TYPE_NACK) {
+                text = "NACK:" + text + "|" + seq;
+            } else {
+                text = RoomRegistry.escapeReply(text);
+                if (seq >= 0) {
+                    text = "ACK:" + seq + "|" + text;
+                }
+            }
+            sendBuffer.clear();
+            encoder.reset();
+            encoder.encode(CharBuffer.wrap(text), sendBuffer, true);
+            encoder.flush(sendBuffer);
+            sendBuffer.flip();
+            metrics.bytesOut(channel.send(sendBuffer, to));
+        }
+
+        private String decode(ByteBuffer datagram) {
+            chars.clear();
+            decoder.reset();
+            decoder.decode(datagram, chars, true);
+            decoder.flush(chars);
+            chars.flip();
+            return chars.toString();
+        }
+
+        void release() {
+            BUFFERS.release(receiveBuffer);
+            BUFFERS.release(sendBuffer);
+        }
+    }
+
+    private static void remember(UDPSession session, int seq, byte type, String text) {
+        if (session != null) {
+            session.remember(seq, type, text);
+        }
+    }
+
+    private void record(SocketAddress sender, String message, String reply) {
+        MessageLog log = messageLog;
+        if (log != null) {
+            log.append(logKey(sender), message, reply);
+        }
+    }
+
+    // Per client host rather than per socket, so history survives a new client port.
+    private static String logKey(SocketAddress sender) {
+        return "udp:" + ((InetSocketAddress) sender).getAddress().getHostAddress();
+    }
+
+    // Reply path for pipeline workers. It shares no buffers, so any thread may use it.
+    private void sendReply(boolean binary, int seq, String text, SocketAddress to) {
+        try {
+            if (binary) {
+                for (ByteBuffer datagram : FrameCodec.encodeDatagrams(FrameCodec.TYPE_REPLY, seq,
+                        replyMessageIds.incrementAndGet(), text.getBytes(StandardCharsets.UTF_8),
+                        compressionThresholdFor(to))) {
+                    metrics.bytesOut(channel.send(datagram, to));
+                }
+            } else {
+                String escaped = RoomRegistry.escapeReply(text);
+                String tagged = seq >= 0 ? "ACK:" + seq + "|" + escaped : escaped;
+                metrics.bytesOut(channel.send(ByteBuffer.wrap(tagged.getBytes(StandardCharsets.UTF_8)), to));
+            }
+        } catch (IOException e) {
+            // Server stopped before the reply went out
+        }
+    }
+
+    // Sends one piece of a streamed reply, split so that each part fits a datagram.
+    // A lost part is only a gap: the reply that follows carries the whole text. It
+    // shares no buffers, so any thread may use it.
+    private void sendChunk(int seq, int offset, String text, SocketAddress to) {
+        try {
+            int from = 0;
+            while (from < text.length()) {
+                int end = Math.min(text.length(), from + MAX_CHUNK_CHARS);
+                if (end < text.length() && Character.isHighSurrogate(text.charAt(end - 1))) {
+                    end--; // Keep surrogate pairs together
+                }
+                metrics.bytesOut(channel.send(FrameCodec.encodeChunk(seq, offset + from, text.substring(from, end)),
+                        to));
+                from = end;
+            }
+        } catch (IOException e) {
+            // Server stopped before the chunk went out
+        }
+    }
+
+    // -1 (never deflate) unless the peer asked for compression.
+    private int compressionThresholdFor(SocketAddress peer) {
+        HelloPeer hello = helloPeers.get(peer);
+        if (hello == null || !hello.compress) {
+            return -1;
+        }
+        hello.lastSeen = System.nanoTime();
+        return compressionThreshold;
+    }
+
+    private boolean streamsTo(SocketAddress peer) {
+        HelloPeer hello = helloPeers.get(peer);
+        if (hello == null || !hello.stream) {
+            return false;
+        }
+        hello.lastSeen = System.nanoTime();
+        return true;
+    }
+
+    // What a binary peer agreed to in its last HELLO.
+    private static final class HelloPeer {
+        private final boolean compress;
+        private final boolean stream;
+        private volatile long lastSeen = System.nanoTime();
+
+        HelloPeer(boolean compress, boolean stream) {
+            this.compress = compress;
+            this.stream = stream;
+        }
+    }
+
+    // A datagram is sent straight from the posting thread; there is no connection
+    // to back up, and the kernel drops what it cannot send.
+    private final class DatagramRoomMember extends RoomMember {
+        private final SocketAddress address;
+        private final boolean binary;
+        private volatile long lastSeen = System.nanoTime();
+
+        DatagramRoomMember(SocketAddress address, boolean binary) {
+            this.address = address;
+            this.binary = binary;
+        }
 
-                    DatagramPacket responsePacket = new DatagramPacket(
-                            responseData, responseData.length, packet.getAddress(), packet.getPort());
-                    socket.send(responsePacket);
+        @Override
+        protected boolean deliver(RoomRegistry.Message message) {
+            try {
+                if (binary) {
+                    for (ByteBuffer datagram : message.datagramFrames()) {
+                        metrics.bytesOut(channel.send(datagram, address));
+                    }
+                } else {
+                    metrics.bytesOut(channel.send(message.datagram(), address));
                 }
+                return true;
             } catch (IOException e) {
-                e.printStackTrace();
+                return false; // Server stopped
+            }
+        }
+    }
+
+    // Room members have no connection to close, so they must send something (a
+    // /join will do) at least once per session timeout to stay in their rooms.
+    private void evictIdleSessions() {
+        long cutoff = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(sessionTimeoutMillis);
+        sessions.values().removeIf(session -> session.getLastSeen() - cutoff < 0);
+        helloPeers.values().removeIf(peer -> peer.lastSeen - cutoff < 0);
+        reassembler.evictExpired();
+        RoomRegistry rooms = this.rooms;
+        roomMembers.values().removeIf(member -> {
+            if (member.lastSeen - cutoff >= 0) {
+                return false;
+            }
+            if (rooms != null) {
+                rooms.leaveAll(member);
             }
-        }).start();
+            return true;
+        });
+    }
+
+    // Text form of FrameCodec.TYPE_SKIP: "SKIP:<ranges>", without a SEQ: header.
+    static final String SKIP_PREFIX = "SKIP:";
+
+    // Parses a "SEQ:<n>|" header straight from the datagram bytes. On success returns n
+    // and leaves the buffer positioned at the message body; otherwise returns -1 and
+    // leaves the buffer untouched so the whole datagram is treated as the message.
+    public static int parseSequenceHeader(ByteBuffer datagram) {
+        int start = datagram.position();
+        int limit = datagram.limit();
+        if (limit - start < 6 || datagram.get(start) != 'S' || datagram.get(start + 1) != 'E'
+                || datagram.get(start + 2) != 'Q' || datagram.get(start + 3) != ':') {
+            return -1;
+        }
+        long value = 0;
+        for (int i = start + 4; i < limit; i++) {
+            byte b = datagram.get(i);
+            if (b == '|') {
+                if (i == start + 4) {
+                    return -1;
+                }
+                datagram.position(i + 1);
+                return (int) value;
+            }
+            if (b < '0' || b > '9') {
+                return -1;
+            }
+            value = value * 10 + (b - '0');
+            if (value > Integer.MAX_VALUE) {
+                return -1;
+            }
+        }
+        return -1;
     }
 
     @Override
     public void sendMessage(String host, int port, String message, Consumer<String> onResponseReceived) {
-        new Thread(() -> {
-            try {
-                DatagramSocket clientSocket = new DatagramSocket();
-                byte[] buffer = message.getBytes();
-                InetAddress address = InetAddress.getByName(host);
-                DatagramPacket packet = new DatagramPacket(buffer, buffer.length, address, port);
-                clientSocket.send(packet);
-
-                // Wait for response
-                byte[] responseBuffer = new byte[1024];
-                DatagramPacket responsePacket = new DatagramPacket(responseBuffer, responseBuffer.length);
-                clientSocket.setSoTimeout(5000); // 5 second timeout
-                try {
-                    clientSocket.receive(responsePacket);
-                    String response = new String(responsePacket.getData(), 0, responsePacket.getLength());
-                    onResponseReceived.accept(response);
-                } catch (SocketTimeoutException e) {
-                    onResponseReceived.accept("Error: Server timeout");
-                }
+        try {
+            client().send(host, port, message, onResponseReceived);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-                clientSocket.close();
-            } catch (IOException e) {
-                e.printStackTrace();
+    @Override
+    public CompletableFuture<String> sendMessageAsync(String host, int port, String message, long timeoutMillis) {
+        return sendMessageStreaming(host, port, message, timeoutMillis, null);
+    }
+
+    // Streams only when the client has streaming on; see UDPClient.setStreaming. A null
+    // onChunk is a plain sendMessageAsync.
+    @Override
+    public CompletableFuture<String> sendMessageStreaming(String host, int port, String message, long timeoutMillis,
+            Consumer<String> onChunk) {
+        CompletableFuture<String> result;
+        try {
+            result = client().sendStreaming(host, port, message, timeoutMillis, onChunk);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        result.whenComplete((response, error) -> {
+            if (error instanceof TimeoutException) {
+                metrics.timedOut();
             }
-        }).start();
+        });
+        return result;
     }
 
+    // A client has one room listener, so a handler that sets one gets a client of its
+    // own instead of the shared default.
+    private synchronized UDPClient client() throws IOException {
+        if (client == null) {
+            if (roomListener != null) {
+                client = new UDPClient(reliable, UDPSession.WINDOW_SIZE / 2, wireFormat);
+                client.setRoomListener(roomListener);
+                ownClient = true;
+            } else {
+                client = UDPClient.getDefault(reliable, wireFormat);
+                sharedClient = true;
+            }
+        }
+        return client;
+    }
+
+    @Override
+    public synchronized void setRoomListener(BiConsumer<String, String> listener) {
+        roomListener = listener;
+        if (listener != null && sharedClient) {
+            replaceClient(null);
+        } else if (client != null) {
+            client.setRoomListener(listener);
+        }
+    }
+
+    // Also closes a client this handler made, like TCPHandler does with its pool; the
+    // next send makes a new one.
     @Override
     public void stopServer() {
         isRunning = false;
-        if (socket != null && !socket.isClosed()) {
-            socket.close();
+        synchronized (this) {
+            if (ownClient) {
+                replaceClient(null);
+            }
+        }
+        if (sessionSweeper != null) {
+            sessionSweeper.shutdownNow();
+        }
+        if (impairedHandlers != null) {
+            impairedHandlers.shutdownNow();
+        }
+        try {
+            if (channel != null && channel.isOpen()) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
         }
     }
 }
@@ -0,0 +1,179 @@
+package Networking;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Receive-side state for one UDP peer. Out-of-order datagrams that fall inside the
+// window are held back and released once the gap in front of them is filled, either
+// by the missing message or by the peer saying it will never send it. The last
+// WINDOW_SIZE replies are kept, so a retransmission of a message that was already
+// answered gets the same reply again rather than a second run of the bot.
+class UDPSession {
+    static final int WINDOW_SIZE = 64;
+    // Marks a held slot whose message was skipped; compared by identity.
+    private static final String SKIPPED = new String();
+
+    static final class Reply {
+        final int seq;
+        final byte type;
+        final String text;
+
+        Reply(int seq, byte type, String text) {
+            this.seq = seq;
+            this.type = type;
+            this.text = text;
+        }
+    }
+
+    static final class Delivery {
+        final int seq;
+        final String content;
+
+        Delivery(int seq, String content) {
+            this.seq = seq;
+            this.content = content;
+        }
+    }
+
+    private int expected;
+    // Bit i set means seq (expected + i) has arrived and is buffered in 'held'.
+    private long received;
+    private final String[] held = new String[WINDOW_SIZE];
+    private final Reply[] replies = new Reply[WINDOW_SIZE];
+    private volatile long lastSeen = System.nanoTime();
+
+    // Multicast listeners join part way through a numbered stream.
+    UDPSession(int firstSeq) {
+        this.expected = firstSeq;
+    }
+
+    // Returns the messages that can now be handed to the bot, in sequence order.
+    // An empty list means the datagram was a duplicate (check isDelivered first), was
+    // buffered or is too far ahead, and in the last two cases the peer should be told
+    // what is missing.
+    synchronized List<Delivery> receive(int seq, String content) {
+        lastSeen = System.nanoTime();
+        if (seq < expected) {
+            return Collections.emptyList();
+        }
+        int offset = seq - expected;
+        if (offset >= WINDOW_SIZE) {
+            return Collections.emptyList();
+        }
+        if (offset > 0) {
+            received |= 1L << offset;
+            held[seq % WINDOW_SIZE] = content;
+            return Collections.emptyList();
+        }
+
+        List<Delivery> deliveries = new ArrayList<>();
+        deliveries.add(new Delivery(seq, content));
+        advance();
+        release(deliveries);
+        return deliveries;
+    }
+
+    // The peer gave up on seqs 'from' to 'to': treat them as arrived with nothing to
+    // deliver. Returns what that releases. Messages already held are kept, and a range
+    // reaching past the window stops at the first gap that is still open there.
+    synchronized List<Delivery> skip(int from, int to) {
+        lastSeen = System.nanoTime();
+        List<Delivery> deliveries = new ArrayList<>();
+        for (int seq = Math.max(from, expected); seq <= to && seq >= 0; seq++) {
+            int offset = seq - expected;
+            if (offset >= WINDOW_SIZE) {
+                break;
+            }
+            if (offset > 0) {
+                if ((received & (1L << offset)) == 0) {
+                    received |= 1L << offset;
+                    held[seq % WINDOW_SIZE] = SKIPPED;
+                }
+                continue;
+            }
+            advance();
+            release(deliveries);
+            seq = expected - 1; // Already past anything the release took
+        }
+        return deliveries;
+    }
+
+    // ranges looks like "3-5,8", as in a NACK
+    synchronized List<Delivery> skip(String ranges) {
+        List<Delivery> deliveries = new ArrayList<>();
+        for (String range : ranges.split(",")) {
+            int dash = range.indexOf('-');
+            try {
+                int from = Integer.parseInt(range, 0, dash < 0 ? range.length() : dash, 10);
+                int to = dash < 0 ? from : Integer.parseInt(range, dash + 1, range.length(), 10);
+                deliveries.addAll(skip(from, to));
+            } catch (NumberFormatException e) {
+                // Ignore a malformed range
+            }
+        }
+        return deliveries;
+    }
+
+    private void release(List<Delivery> deliveries) {
+        while ((received & 1L) != 0) {
+            int slot = expected % WINDOW_SIZE;
+            if (held[slot] != SKIPPED) {
+                deliveries.add(new Delivery(expected, held[slot]));
+            }
+            held[slot] = null;
+            advance();
+        }
+    }
+
+    private void advance() {
+        expected++;
+        received >>>= 1;
+    }
+
+    // Missing sequence numbers below 'upTo' (exclusive) as ranges, e.g. "3-5,8".
+    synchronized String missingRanges(int upTo) {
+        int end = Math.min(upTo - expected, WINDOW_SIZE);
+        StringBuilder ranges = new StringBuilder();
+        int runStart = -1;
+        for (int i = 0; i <= end; i++) {
+            boolean missing = i < end && (received & (1L << i)) == 0;
+            if (missing && runStart < 0) {
+                runStart = i;
+            } else if (!missing && runStart >= 0) {
+                if (ranges.length() > 0) {
+                    ranges.append(',');
+                }
+                ranges.append(expected + runStart);
+                if (i - 1 > runStart) {
+                    ranges.append('-').append(expected + i - 1);
+                }
+                runStart = -1;
+            }
+        }
+        return ranges.toString();
+    }
+
+    synchronized boolean isDelivered(int seq) {
+        return seq < expected;
+    }
+
+    // Replies may be remembered out of order, as pipeline workers finish them.
+    synchronized void remember(int seq, byte type, String text) {
+        replies[seq % WINDOW_SIZE] = new Reply(seq, type, text);
+    }
+
+    // Null when the reply is not ready yet, or is too old to be kept.
+    synchronized Reply replyTo(int seq) {
+        Reply reply = replies[seq % WINDOW_SIZE];
+        return reply != null && reply.seq == seq ? reply : null;
+    }
+
+    synchronized int getExpected() {
+        return expected;
+    }
+
+    long getLastSeen() {
+        return lastSeen;
+    }
+}
@@ -0,0 +1,9 @@
+package Networking;
+
+// How a client encodes its messages. Servers accept both and answer in kind.
+public enum WireFormat {
+    // Newline-terminated lines over TCP, "SEQ:n|message" datagrams over UDP
+    TEXT,
+    // FrameCodec frames
+    BINARY
+}
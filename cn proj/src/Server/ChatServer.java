@@ -0,0 +1,404 @@
+package Server;
+
+import Bot.CachingBot;
+import Bot.EchoBot;
+import Bot.IntentBot;
+import History.MessageLog;
+import Metrics.MetricsHttpServer;
+import Metrics.ServerMetrics;
+import Networking.BotPipeline;
+import Networking.MulticastAnnouncer;
+import Networking.NetworkManager;
+import Networking.NioTcpHandler;
+import Networking.PayloadCompression;
+import Networking.RateLimiter;
+import Networking.RoomRegistry;
+import Networking.TCPHandler;
+import Networking.UDPHandler;
+
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.util.function.Function;
+
+// Runs the bot behind one of the transports with no GUI attached. Nothing here
+// touches AWT/Swing, so a headless server starts fast and never waits on the EDT.
+public class ChatServer {
+    public static final int DEFAULT_PORT = 12345;
+
+    private final String protocol;
+    private final int port;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int maxConnections = 10000;
+    private int workers = Runtime.getRuntime().availableProcessors();
+    private int queueCapacity = 1024;
+    private BotPipeline.OverloadPolicy overloadPolicy = BotPipeline.OverloadPolicy.BLOCK;
+    private Function<String, String> bot = new EchoBot();
+    private int cacheEntries;
+    private long cacheBytes = 64L * 1024 * 1024;
+    private long cacheTtlMillis;
+    private NetworkManager server;
+    private BotPipeline pipeline;
+    private CachingBot cache;
+    private final ServerMetrics metrics = new ServerMetrics();
+    private int metricsPort = -1;
+    private MetricsHttpServer metricsServer;
+    private boolean roomsEnabled;
+    private RoomRegistry rooms;
+    private MessageLog messageLog;
+    private InetSocketAddress multicastGroup;
+    private NetworkInterface multicastInterface;
+    private MulticastAnnouncer announcer;
+    private int compressionThreshold = PayloadCompression.DEFAULT_THRESHOLD;
+    private SSLContext sslContext;
+    private double rateLimit;
+    private int rateBurst;
+    private double globalRateLimit;
+    private int globalRateBurst;
+    private RateLimiter.LimitPolicy limitPolicy = RateLimiter.LimitPolicy.SLOW_DOWN;
+    private RateLimiter rateLimiter;
+
+    // protocol is one of "tcp", "nio" or "udp".
+    public ChatServer(String protocol, int port) {
+        this.protocol = protocol.toLowerCase();
+        this.port = port;
+        if (!this.protocol.equals("tcp") && !this.protocol.equals("nio") && !this.protocol.equals("udp")) {
+            throw new IllegalArgumentException("Unknown protocol: " + protocol);
+        }
+    }
+
+    // Event loops for nio, receiver threads for udp. The tcp server gives every
+    // connection its own thread, so it is bounded by maxConnections instead.
+    public void setThreads(int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("threads must be positive");
+        }
+        this.threads = threads;
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    // Bot worker threads; 0 runs the bot inline on the network threads.
+    public void setWorkers(int workers) {
+        if (workers < 0) {
+            throw new IllegalArgumentException("workers must not be negative");
+        }
+        this.workers = workers;
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("queueCapacity must be positive");
+        }
+        this.queueCapacity = queueCapacity;
+    }
+
+    public void setOverloadPolicy(BotPipeline.OverloadPolicy overloadPolicy) {
+        this.overloadPolicy = overloadPolicy;
+    }
+
+    public void setBot(Function<String, String> bot) {
+        this.bot = bot;
+    }
+
+    // Puts a CachingBot in front of the bot; maxEntries of 0 turns caching off.
+    public void setResponseCache(int maxEntries, long maxBytes, long ttlMillis) {
+        this.cacheEntries = maxEntries;
+        this.cacheBytes = maxBytes;
+        this.cacheTtlMillis = ttlMillis;
+    }
+
+    // Serves GET /metrics in the Prometheus text format on this port; 0 picks a free
+    // port, a negative value (the default) turns the endpoint off.
+    public void setMetricsPort(int metricsPort) {
+        this.metricsPort = metricsPort;
+    }
+
+    // Lets clients /join rooms and /say to every other member; see RoomRegistry.
+    public void setRooms(boolean roomsEnabled) {
+        this.roomsEnabled = roomsEnabled;
+    }
+
+    // Appends every exchange and room post to an opened log; the caller closes it
+    // after stop().
+    public void setMessageLog(MessageLog messageLog) {
+        this.messageLog = messageLog;
+    }
+
+    // Replies of at least this many bytes are deflated for binary clients that ask for
+    // compression; negative turns compression off. Text clients are never affected.
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    // Runs TLS on every connection; see Networking.Tls. Only the TCP transports
+    // support it. Null (the default) leaves connections in the clear.
+    public void setSslContext(SSLContext sslContext) {
+        if (sslContext != null && protocol.equals("udp")) {
+            throw new IllegalArgumentException("TLS needs a TCP transport, not udp");
+        }
+        this.sslContext = sslContext;
+    }
+
+    // Holds each client address to 'rate' messages a second, in bursts of up to 'burst';
+    // see RateLimiter. A rate of 0 (the default) turns limiting off.
+    public void setRateLimit(double rate, int burst) {
+        if (rate < 0 || (rate > 0 && burst <= 0)) {
+            throw new IllegalArgumentException("rate must not be negative and burst must be positive");
+        }
+        this.rateLimit = rate;
+        this.rateBurst = burst;
+    }
+
+    // Also holds the server as a whole to 'rate' messages a second. Needs setRateLimit.
+    public void setGlobalRateLimit(double rate, int burst) {
+        if (rate < 0 || (rate > 0 && burst <= 0)) {
+            throw new IllegalArgumentException("rate must not be negative and burst must be positive");
+        }
+        this.globalRateLimit = rate;
+        this.globalRateBurst = burst;
+    }
+
+    public void setLimitPolicy(RateLimiter.LimitPolicy limitPolicy) {
+        this.limitPolicy = limitPolicy;
+    }
+
+    // Lets announce() reach every listener on this multicast group at once; see
+    // MulticastAnnouncer. Null (the default) turns announcements off; a null interface
+    // leaves the choice to the operating system.
+    public void setMulticast(InetSocketAddress multicastGroup, NetworkInterface multicastInterface) {
+        if (multicastGroup != null && (multicastGroup.isUnresolved()
+                || !multicastGroup.getAddress().isMulticastAddress())) {
+            throw new IllegalArgumentException("Not a multicast address: " + multicastGroup.getHostString());
+        }
+        this.multicastGroup = multicastGroup;
+        this.multicastInterface = multicastInterface;
+    }
+
+    public synchronized void start() {
+        if (server != null) {
+            return;
+        }
+        Function<String, String> handler = bot;
+        if (cacheEntries > 0) {
+            cache = new CachingBot(bot, cacheEntries, cacheBytes, cacheTtlMillis);
+            handler = cache;
+            if (bot instanceof IntentBot) {
+                // Replies from the old rules must not outlive a reload.
+                ((IntentBot) bot).setOnReload(cache::clear);
+            }
+        }
+        // Timed from the server's side, so a cache hit counts as a fast bot call.
+        handler = metrics.instrument(handler);
+        if (workers > 0) {
+            pipeline = new BotPipeline(handler, workers, queueCapacity, overloadPolicy);
+        }
+        if (rateLimit > 0) {
+            rateLimiter = new RateLimiter(rateLimit, rateBurst);
+            rateLimiter.setGlobalLimit(globalRateLimit, globalRateBurst);
+            rateLimiter.setPolicy(limitPolicy);
+        }
+        rooms = roomsEnabled ? new RoomRegistry() : null;
+        if (rooms != null) {
+            rooms.setMessageLog(messageLog);
+        }
+        switch (protocol) {
+            case "tcp": {
+                TCPHandler tcp = new TCPHandler();
+                tcp.setMaxConnections(maxConnections);
+                tcp.setBotPipeline(pipeline);
+                tcp.setMetrics(metrics);
+                tcp.setRoomRegistry(rooms);
+                tcp.setMessageLog(messageLog);
+                tcp.setCompressionThreshold(compressionThreshold);
+                tcp.setSslContext(sslContext);
+                tcp.setRateLimiter(rateLimiter);
+                server = tcp;
+                break;
+            }
+            case "nio": {
+                NioTcpHandler nio = new NioTcpHandler();
+                nio.setEventLoopCount(threads);
+                nio.setBotPipeline(pipeline);
+                nio.setMetrics(metrics);
+                nio.setRoomRegistry(rooms);
+                nio.setMessageLog(messageLog);
+                nio.setSslContext(sslContext);
+                nio.setRateLimiter(rateLimiter);
+                server = nio;
+                break;
+            }
+            default: {
+                UDPHandler udp = new UDPHandler();
+                udp.setReceiverThreads(threads);
+                udp.setBotPipeline(pipeline);
+                udp.setMetrics(metrics);
+                udp.setRoomRegistry(rooms);
+                udp.setMessageLog(messageLog);
+                udp.setCompressionThreshold(compressionThreshold);
+                udp.setRateLimiter(rateLimiter);
+                server = udp;
+                break;
+            }
+        }
+        server.startServer(port, handler);
+
+        metrics.registerMBean(protocol + "-" + port);
+        if (metricsPort >= 0) {
+            try {
+                metricsServer = new MetricsHttpServer(metricsPort, this::getMetricsText);
+                metricsServer.start();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (multicastGroup != null) {
+            try {
+                announcer = new MulticastAnnouncer(multicastGroup);
+                announcer.setNetworkInterface(multicastInterface);
+                announcer.open();
+            } catch (IOException e) {
+                e.printStackTrace();
+                announcer = null;
+            }
+        }
+    }
+
+    // Sends one announcement to the multicast group and returns its sequence number.
+    public int announce(String text) throws IOException {
+        MulticastAnnouncer current = getAnnouncer();
+        if (current == null) {
+            throw new IllegalStateException("Multicast announcements are off");
+        }
+        return current.announce(text);
+    }
+
+    public synchronized void stop() {
+        if (server != null) {
+            server.stopServer();
+            server = null;
+        }
+        if (metricsServer != null) {
+            metricsServer.stop();
+            metricsServer = null;
+        }
+        if (announcer != null) {
+            announcer.close();
+            announcer = null;
+        }
+        if (rateLimiter != null) {
+            rateLimiter.close();
+            rateLimiter = null;
+        }
+        metrics.unregisterMBean();
+        // After the server, so connections can drain replies that are still being worked on.
+        if (pipeline != null) {
+            pipeline.shutdown();
+            pipeline = null;
+        }
+    }
+
+    // Null when the bot runs inline.
+    public synchronized BotPipeline getPipeline() {
+        return pipeline;
+    }
+
+    // Null when caching is off.
+    public synchronized CachingBot getCache() {
+        return cache;
+    }
+
+    // Null when rooms are off.
+    public synchronized RoomRegistry getRooms() {
+        return rooms;
+    }
+
+    // Null when rate limiting is off.
+    public synchronized RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    // Null unless multicast is on and the group could be opened.
+    public synchronized MulticastAnnouncer getAnnouncer() {
+        return announcer;
+    }
+
+    // Null unless one was set.
+    public MessageLog getMessageLog() {
+        return messageLog;
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    // Null unless the endpoint is running.
+    public synchronized MetricsHttpServer getMetricsServer() {
+        return metricsServer;
+    }
+
+    // The server's metrics plus the pipeline and cache gauges, as served on /metrics.
+    public String getMetricsText() {
+        StringBuilder out = new StringBuilder(metrics.toPrometheusText("chatbot_"));
+        BotPipeline pipeline = getPipeline();
+        if (pipeline != null) {
+            ServerMetrics.appendGauge(out, "chatbot_", "pipeline_queue_depth", "Messages waiting for a bot worker",
+                    pipeline.getQueueDepth());
+            ServerMetrics.appendCounter(out, "chatbot_", "pipeline_shed_total", "Messages answered with the busy reply",
+                    pipeline.getShedCount());
+        }
+        CachingBot cache = getCache();
+        if (cache != null) {
+            ServerMetrics.appendGauge(out, "chatbot_", "cache_hit_ratio", "Response cache hit rate",
+                    cache.getHitRate());
+            ServerMetrics.appendGauge(out, "chatbot_", "cache_entries", "Cached responses", cache.size());
+        }
+        RoomRegistry rooms = getRooms();
+        if (rooms != null) {
+            ServerMetrics.appendGauge(out, "chatbot_", "rooms", "Rooms with at least one member", rooms.getRoomCount());
+            ServerMetrics.appendCounter(out, "chatbot_", "room_pushes_total", "Room posts queued for a member",
+                    rooms.getDeliveredCount());
+            ServerMetrics.appendCounter(out, "chatbot_", "room_pushes_dropped_total",
+                    "Room posts dropped for a member whose queue was full", rooms.getDroppedCount());
+        }
+        MessageLog log = messageLog;
+        if (log != null) {
+            ServerMetrics.appendCounter(out, "chatbot_", "history_written_total", "Records written to the history log",
+                    log.getWrittenCount());
+            ServerMetrics.appendCounter(out, "chatbot_", "history_dropped_total",
+                    "Records dropped because the history writer fell behind", log.getDroppedCount());
+            ServerMetrics.appendGauge(out, "chatbot_", "history_queue_depth", "Records waiting for the history writer",
+                    log.getQueueDepth());
+        }
+        RateLimiter limiter = getRateLimiter();
+        if (limiter != null) {
+            ServerMetrics.appendCounter(out, "chatbot_", "rate_limited_total", "Messages over a client's rate limit",
+                    limiter.getClientLimitedCount());
+            ServerMetrics.appendCounter(out, "chatbot_", "rate_limited_global_total",
+                    "Messages over the server-wide rate limit", limiter.getGlobalLimitedCount());
+            ServerMetrics.appendGauge(out, "chatbot_", "rate_limited_clients", "Clients with a rate limit bucket",
+                    limiter.getClientCount());
+        }
+        MulticastAnnouncer announcer = getAnnouncer();
+        if (announcer != null) {
+            ServerMetrics.appendCounter(out, "chatbot_", "multicast_announced_total", "Announcements sent to the group",
+                    announcer.getAnnouncedCount());
+            ServerMetrics.appendCounter(out, "chatbot_", "multicast_nacks_total", "NACKs received from listeners",
+                    announcer.getNackCount());
+            ServerMetrics.appendCounter(out, "chatbot_", "multicast_resent_total",
+                    "Announcements sent to the group again after a NACK", announcer.getResentCount());
+        }
+        return out.toString();
+    }
+
+    public String getProtocol() {
+        return protocol;
+    }
+
+    public int getPort() {
+        return port;
+    }
+}